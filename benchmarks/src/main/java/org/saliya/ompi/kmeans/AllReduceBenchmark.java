@@ -0,0 +1,70 @@
+package org.saliya.ompi.kmeans;
+
+import mpi.MPIException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Single node, single process ParallelOps.allReduceSum, i.e. the copy in and
+ * out of the memory mapped collective buffer around a one process MPI call.
+ * Needs the OpenMPI Java binding, e.g. -jvmArgs -Djava.library.path=$MPI_HOME/lib
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AllReduceBenchmark {
+    @Param({"2"})
+    public int dimension;
+
+    @Param({"1000", "10000", "100000"})
+    public int numCenters;
+
+    private double[] centerSumsAndCounts;
+    private Path mmapDir;
+
+    @Setup
+    public void setup() throws MPIException, IOException {
+        mmapDir = Files.createTempDirectory("kmeans-mmap");
+        ParallelOps.setupParallelism(new String[0], 1, mmapDir.toString());
+        ParallelOps.setParallelDecomposition(numCenters, dimension, numCenters, 1);
+        centerSumsAndCounts = new Random(42).doubles(numCenters * (dimension + 1)).toArray();
+    }
+
+    @TearDown
+    public void tearDown() throws MPIException, IOException {
+        ParallelOps.endParallelism();
+        try (Stream<Path> files = Files.walk(mmapDir)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    @Benchmark
+    public double[] allReduceSum() throws MPIException {
+        ParallelOps.allReduceSum(centerSumsAndCounts, 0, numCenters * (dimension + 1));
+        return centerSumsAndCounts;
+    }
+}
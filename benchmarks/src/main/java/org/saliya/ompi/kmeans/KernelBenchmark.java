@@ -0,0 +1,71 @@
+package org.saliya.ompi.kmeans;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per point kernels of the assignment step
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KernelBenchmark {
+    private static final int NUM_POINTS = 4096;
+
+    @Param({"2", "16", "128"})
+    public int dimension;
+
+    @Param({"1000", "10000"})
+    public int numCenters;
+
+    private double[] points;
+    private double[] centers;
+    private double[] centerSumsAndCounts;
+    private int pointIdx;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        points = random.doubles(NUM_POINTS * dimension).toArray();
+        centers = random.doubles(numCenters * dimension).toArray();
+        centerSumsAndCounts = new double[numCenters * (dimension + 1)];
+    }
+
+    private int nextPoint() {
+        pointIdx = (pointIdx + 1) % NUM_POINTS;
+        return pointIdx;
+    }
+
+    @Benchmark
+    public double getEuclideanDistance() {
+        int i = nextPoint();
+        return Program.getEuclideanDistance(points, centers, dimension, i * dimension, (i % numCenters) * dimension);
+    }
+
+    @Benchmark
+    public int findCenterWithMinDistance() {
+        return Program.findCenterWithMinDistance(points, centers, dimension, nextPoint() * dimension);
+    }
+
+    @Benchmark
+    public double[] accumulate() {
+        int i = nextPoint();
+        Program.accumulate(points, centerSumsAndCounts, i * dimension, (i % numCenters) * (dimension + 1), dimension);
+        return centerSumsAndCounts;
+    }
+}
@@ -0,0 +1,83 @@
+package org.saliya.ompi.kmeans;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One thread's share of a Lloyd iteration and the sum over threads that
+ * follows it. The defaults follow the d=2 sweeps in run.generic.sh with
+ * n scaled down to a thread's slice, override with -p n=...,d=...,k=...
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LloydBenchmark {
+    @Param({"40000"})
+    public int n;
+
+    @Param({"2", "16"})
+    public int d;
+
+    @Param({"1000", "10000"})
+    public int k;
+
+    @Param({"24"})
+    public int threads;
+
+    private double[] points;
+    private double[] centers;
+    private double[] centerSumsAndCountsForThread;
+    private double[] initialSumsAndCounts;
+    private int[] clusterAssignments;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        points = random.doubles(n * d).toArray();
+        centers = Arrays.copyOf(points, k * d);
+        initialSumsAndCounts = random.doubles(threads * k * (d + 1)).toArray();
+        centerSumsAndCountsForThread = initialSumsAndCounts.clone();
+        clusterAssignments = new int[n];
+
+        // Single thread owning all n points
+        ParallelOps.numThreads = 1;
+        ParallelOps.pointsForThread = new int[]{n};
+        ParallelOps.pointStartIdxForThread = new int[]{0};
+    }
+
+    /* Both benchmarks add into the sums, so each call starts from the same ones */
+    @Setup(Level.Invocation)
+    public void reset() {
+        System.arraycopy(initialSumsAndCounts, 0, centerSumsAndCountsForThread, 0, initialSumsAndCounts.length);
+        Arrays.fill(clusterAssignments, 0);
+    }
+
+    @Benchmark
+    public int[] findNearesetCenters() {
+        Program.findNearesetCenters(d, k, points, 0, centers, centerSumsAndCountsForThread, clusterAssignments, 0);
+        return clusterAssignments;
+    }
+
+    @Benchmark
+    public double[] sumOverThreads() {
+        Program.sumOverThreads(centerSumsAndCountsForThread, threads, k, d);
+        return centerSumsAndCountsForThread;
+    }
+}
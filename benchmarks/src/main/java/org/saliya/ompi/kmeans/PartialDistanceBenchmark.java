@@ -0,0 +1,82 @@
+package org.saliya.ompi.kmeans;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Brute force against partial distance assignment of a block of points,
+ * with points scattered around the centers and assignments of an earlier
+ * pass, as in later iterations
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PartialDistanceBenchmark {
+    private static final int NUM_POINTS = 1024;
+
+    @Param({"2", "4", "8", "16", "32", "64", "128", "256", "512", "1024"})
+    public int dimension;
+
+    @Param({"100", "1000"})
+    public int numCenters;
+
+    private double[] points;
+    private double[] centers;
+    private double[] blockedCenters;
+    private double[] centerSumsAndCounts;
+    private int[] clusterAssignments;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        centers = random.doubles(numCenters * dimension).toArray();
+        points = new double[NUM_POINTS * dimension];
+        for (int i = 0; i < NUM_POINTS; ++i) {
+            int c = random.nextInt(numCenters);
+            for (int j = 0; j < dimension; ++j) {
+                points[i * dimension + j] = centers[c * dimension + j] + 0.1 * random.nextGaussian();
+            }
+        }
+        blockedCenters = new double[numCenters * dimension];
+        PartialDistance.toBlocked(centers, numCenters, dimension, blockedCenters);
+        centerSumsAndCounts = new double[numCenters * (dimension + 1)];
+        clusterAssignments = new int[NUM_POINTS];
+        Program.findNearesetCenters(dimension, points, 0, NUM_POINTS, centers, centerSumsAndCounts, 0,
+                clusterAssignments, 0);
+    }
+
+    /* Both benchmarks add into the sums, so each call starts from zero ones */
+    @Setup(Level.Invocation)
+    public void reset() {
+        Arrays.fill(centerSumsAndCounts, 0.0);
+    }
+
+    @Benchmark
+    public int bruteForce() {
+        return Program.findNearesetCenters(dimension, points, 0, NUM_POINTS, centers, centerSumsAndCounts, 0,
+                clusterAssignments, 0);
+    }
+
+    @Benchmark
+    public int partialDistance() {
+        return PartialDistance.findNearestCenters(dimension, points, 0, NUM_POINTS, blockedCenters, numCenters,
+                centerSumsAndCounts, 0, clusterAssignments, 0);
+    }
+}
@@ -0,0 +1,95 @@
+package org.saliya.ompi.kmeans;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mapping a row range of a points file and copying rows out of it
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PointReaderBenchmark {
+    private static final int ROWS = 100000;
+
+    @Param({"2", "128"})
+    public int dimension;
+
+    @Param({"true", "false"})
+    public boolean isBigEndian;
+
+    private Path file;
+    private PointReader reader;
+    private double[] points;
+
+    @Setup
+    public void setup() throws IOException {
+        file = Files.createTempFile("kmeans-points", ".bin");
+        ByteBuffer buffer = ByteBuffer.allocate(ROWS * dimension * Double.BYTES).order(
+                isBigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+        Random random = new Random(42);
+        while (buffer.hasRemaining()) {
+            buffer.putDouble(random.nextDouble());
+        }
+        buffer.flip();
+        try (FileChannel fc = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                fc.write(buffer);
+            }
+        }
+        reader = PointReader.readRowRange(file.toString(), 0, ROWS, dimension, isBigEndian);
+        points = new double[ROWS * dimension];
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public PointReader readRowRange() throws IOException {
+        return PointReader.readRowRange(file.toString(), 0, ROWS, dimension, isBigEndian);
+    }
+
+    /* Score is rows per second */
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public double[] getPoint() {
+        for (int i = 0; i < ROWS; ++i) {
+            reader.getPoint(i, points, dimension, i * dimension);
+        }
+        return points;
+    }
+
+    /* Score is rows per second */
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public double[] getRows() {
+        reader.getRows(0, ROWS, points, 0);
+        return points;
+    }
+}
@@ -0,0 +1,279 @@
+package org.saliya.ompi.kmeans;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Stopwatch;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Labels points with their nearest center out of a trained centers file,
+ * without any iterations. Binary points files (same format as for Program)
+ * are loaded once and labeled in batches of every requested size, reporting
+ * throughput and batch latency percentiles. With <code>-i -</code> text points,
+ * one per line, are read from stdin and labeled as they arrive, in batches of
+ * the first size.
+ */
+public class Assigner {
+    private static final String STDIN = "-";
+    // Smaller slices aren't worth handing to another thread
+    private static final int MIN_POINTS_PER_THREAD = 256;
+    private static final Pattern SEPARATOR = Pattern.compile("[\\s,]+");
+
+    private static Options programOptions = new Options();
+
+    static {
+        programOptions.addOption("c", true, "Centers file");
+        programOptions.addOption("k", true, "Number of centers");
+        programOptions.addOption("d", true, "Dimensionality");
+        programOptions.addOption("b", true, "Is big-endian?");
+        programOptions.addOption("i", true, "Comma separated binary points files, or - for text points on stdin");
+        programOptions.addOption("T", true, "Number of threads (default all cores)");
+        programOptions.addOption("batch", true, "Comma separated batch sizes (default 1,64,1024,65536)");
+        programOptions.addOption("o", true, "Labels output file (- for stdout), labeled with the first batch size");
+    }
+
+    private final CenterIndex index;
+    private final int numThreads;
+    private final ExecutorService pool;
+
+    public Assigner(CenterIndex index, int numThreads) {
+        this.index = index;
+        this.numThreads = numThreads;
+        this.pool = numThreads > 1 ? Executors.newFixedThreadPool(numThreads - 1, r -> {
+            Thread thread = new Thread(r, "assigner");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+    }
+
+    public static void main(String[] args) throws IOException {
+        Optional<CommandLine> parserResult = Utils.parseCommandLineArguments(args, programOptions);
+        if (!parserResult.isPresent()) {
+            System.out.println(Utils.ERR_PROGRAM_ARGUMENTS_PARSING_FAILED);
+            new HelpFormatter().printHelp(Utils.PROGRAM_NAME, programOptions);
+            return;
+        }
+
+        CommandLine cmd = parserResult.get();
+        if (!(cmd.hasOption("c") && cmd.hasOption("k") && cmd.hasOption("d") && cmd.hasOption("b") &&
+                cmd.hasOption("i"))) {
+            System.out.println(Utils.ERR_INVALID_PROGRAM_ARGUMENTS);
+            new HelpFormatter().printHelp(Utils.PROGRAM_NAME, programOptions);
+            return;
+        }
+
+        int numCenters = Integer.parseInt(cmd.getOptionValue("k"));
+        int dimension = Integer.parseInt(cmd.getOptionValue("d"));
+        boolean isBigEndian = Boolean.parseBoolean(cmd.getOptionValue("b"));
+        String input = cmd.getOptionValue("i");
+        int numThreads = cmd.hasOption("T") ? Integer.parseInt(cmd.getOptionValue("T")) :
+                Runtime.getRuntime().availableProcessors();
+        int[] batchSizes = Arrays.stream((cmd.hasOption("batch") ? cmd.getOptionValue("batch") :
+                "1,64,1024,65536").split(",")).mapToInt(s -> Integer.parseInt(s.trim())).toArray();
+        String outputFile = cmd.hasOption("o") ? cmd.getOptionValue("o") : "";
+        // Reports go to stderr when labels go to stdout
+        PrintWriter log = new PrintWriter(new OutputStreamWriter(STDIN.equals(outputFile) ? System.err :
+                System.out, Charset.defaultCharset()), true);
+
+        Stopwatch timer = Stopwatch.createStarted();
+        double[] centers = new double[numCenters * dimension];
+        PointReader.readRowRange(cmd.getOptionValue("c"), 0, numCenters, dimension, isBigEndian).getRows(0,
+                numCenters, centers, 0);
+        CenterIndex index = new CenterIndex(centers, numCenters, dimension);
+        timer.stop();
+        log.println("Loaded " + numCenters + " centers and built the " + (index.isIndexed() ? "" : "(scan only) ") +
+                "index in " + timer.elapsed(TimeUnit.MILLISECONDS) + " ms");
+
+        Assigner assigner = new Assigner(index, numThreads);
+        try (PrintWriter labelWriter = openLabels(outputFile)) {
+            if (STDIN.equals(input)) {
+                assigner.labelStream(new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)),
+                        batchSizes[0], labelWriter, log);
+            } else {
+                double[] points = readPoints(input.split(","), dimension, isBigEndian);
+                int numPoints = points.length / dimension;
+                log.println("Loaded " + numPoints + " points");
+                int[] labels = new int[numPoints];
+                for (int b = 0; b < batchSizes.length; ++b) {
+                    assigner.labelBatches(points, numPoints, batchSizes[b], labels, log);
+                    if (b == 0 && labelWriter != null) {
+                        for (int label : labels) {
+                            labelWriter.println(label);
+                        }
+                    }
+                }
+            }
+        }
+        assigner.close();
+    }
+
+    /**
+     * Labels all points batch by batch, as a client handing over batches of
+     * that size would see it
+     */
+    public void labelBatches(double[] points, int numPoints, int batchSize, int[] labels, PrintWriter log) {
+        int batches = (numPoints + batchSize - 1) / batchSize;
+        long[] latencies = new long[batches];
+        long start = System.nanoTime();
+        for (int b = 0; b < batches; ++b) {
+            long t = System.nanoTime();
+            int from = b * batchSize;
+            label(points, from, Math.min(batchSize, numPoints - from), labels);
+            latencies[b] = System.nanoTime() - t;
+        }
+        report(log, batchSize, numPoints, System.nanoTime() - start, latencies, batches);
+    }
+
+    /**
+     * Reads text points until the end of the stream, labeling every full batch
+     * as soon as it's read. Latency covers labeling only, not waiting for input.
+     */
+    public void labelStream(BufferedReader in, int batchSize, PrintWriter labelWriter, PrintWriter log)
+            throws IOException {
+        int dimension = index.getDimension();
+        double[] points = new double[batchSize * dimension];
+        int[] labels = new int[batchSize];
+        List<Long> latencies = new ArrayList<>();
+        long computeNs = 0;
+        int total = 0;
+        int count = 0;
+        String line;
+        while (true) {
+            line = in.readLine();
+            if (line != null) {
+                line = line.trim();
+                if (line.isEmpty()) continue;
+                String[] values = SEPARATOR.split(line);
+                if (values.length != dimension) {
+                    throw new IOException("Expected " + dimension + " values but found " + values.length + ": " +
+                            line);
+                }
+                for (int j = 0; j < dimension; ++j) {
+                    points[count * dimension + j] = Double.parseDouble(values[j]);
+                }
+                ++count;
+            }
+            if (count == batchSize || (line == null && count > 0)) {
+                long t = System.nanoTime();
+                label(points, 0, count, labels);
+                long ns = System.nanoTime() - t;
+                latencies.add(ns);
+                computeNs += ns;
+                total += count;
+                if (labelWriter != null) {
+                    for (int i = 0; i < count; ++i) {
+                        labelWriter.println(labels[i]);
+                    }
+                    labelWriter.flush();
+                }
+                count = 0;
+            }
+            if (line == null) break;
+        }
+        report(log, batchSize, total, computeNs, latencies.stream().mapToLong(Long::longValue).toArray(),
+                latencies.size());
+    }
+
+    /**
+     * Labels count points starting at point index from with all threads
+     */
+    public void label(double[] points, int from, int count, int[] labels) {
+        int threads = Math.min(numThreads, Math.max(1, count / MIN_POINTS_PER_THREAD));
+        if (threads == 1) {
+            index.label(points, from, count, labels);
+            return;
+        }
+        int div = count / threads;
+        int rem = count % threads;
+        List<Future<?>> futures = new ArrayList<>(threads - 1);
+        for (int t = 1; t < threads; ++t) {
+            int start = from + t * div + (t < rem ? t : rem);
+            int length = t < rem ? div + 1 : div;
+            futures.add(pool.submit((Callable<Void>) () -> {
+                index.label(points, start, length, labels);
+                return null;
+            }));
+        }
+        // This thread takes the first slice
+        index.label(points, from, rem > 0 ? div + 1 : div, labels);
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public void close() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    private static void report(PrintWriter log, int batchSize, long points, long ns, long[] latencies, int batches) {
+        Arrays.sort(latencies, 0, batches);
+        log.println("  Batch " + batchSize + ": " + batches + " batches, " + points / (ns * 1e-9) +
+                " points/s, latency ms p50 " + percentile(latencies, batches, 0.50) + " p90 " +
+                percentile(latencies, batches, 0.90) + " p99 " + percentile(latencies, batches, 0.99) + " max " +
+                (batches > 0 ? latencies[batches - 1] * 1e-6 : 0.0));
+    }
+
+    /* Nearest rank percentile in ms of sorted latencies */
+    private static double percentile(long[] sorted, int count, double p) {
+        if (count == 0) return 0.0;
+        int rank = (int) Math.ceil(p * count);
+        return sorted[Math.max(0, rank - 1)] * 1e-6;
+    }
+
+    private static double[] readPoints(String[] files, int dimension, boolean isBigEndian) throws IOException {
+        long[] rows = new long[files.length];
+        long total = 0;
+        for (int f = 0; f < files.length; ++f) {
+            rows[f] = Files.size(Paths.get(files[f])) / (Double.BYTES * dimension);
+            total += rows[f];
+        }
+        if (total * dimension > Integer.MAX_VALUE) {
+            throw new IOException(total + " points don't fit in one array, label the files one at a time");
+        }
+        double[] points = new double[(int) (total * dimension)];
+        int offset = 0;
+        for (int f = 0; f < files.length; ++f) {
+            PointReader.readRowRange(files[f], 0, (int) rows[f], dimension, isBigEndian).getRows(0, (int) rows[f],
+                    points, offset);
+            offset += (int) rows[f] * dimension;
+        }
+        return points;
+    }
+
+    private static PrintWriter openLabels(String outputFile) throws IOException {
+        if (outputFile.isEmpty()) return null;
+        if (STDIN.equals(outputFile)) {
+            return new PrintWriter(new OutputStreamWriter(System.out, Charset.defaultCharset()), false);
+        }
+        return new PrintWriter(Files.newBufferedWriter(Paths.get(outputFile), Charset.defaultCharset(),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE));
+    }
+}
@@ -0,0 +1,329 @@
+package org.saliya.ompi.kmeans;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Strings;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs Program over every combination of lists of n, d, k, threads,
+ * processes per node, engines and bind modes, a few times each, and writes
+ * the median and variance of each timing over the repetitions as CSV and
+ * JSON. Replaces sweeping with the run scripts and grepping their output.
+ *
+ * Runs are separate JVMs, with in-process ranks (-procs) locally or under
+ * mpirun. Points and centers of each n, d and k are made once with
+ * DataGenerator and reused. Timings come from the -metrics JSON of each run
+ * and from its "Done in" line.
+ */
+public class BenchmarkDriver {
+    public static final String MODE_LOCAL = "local";
+    public static final String MODE_MPIRUN = "mpirun";
+
+    private static final Pattern DONE = Pattern.compile(
+            "Done in (\\d+) iterations and ([0-9.Ee+-]+) ms on average");
+    // Timings of a run, in the order of the output columns. Compute and allReduce are per iteration
+    private static final String[] TIMINGS = new String[]{
+            "wallMs", "loopMs", "iterationMs", "computeMaxMs", "allReduceMs", "timeToFirstIterationMs",
+            "rankImbalance", "threadImbalance"};
+
+    private static Options programOptions = new Options();
+
+    static {
+        programOptions.addOption("n", true, "Numbers of points, comma separated");
+        programOptions.addOption("d", true, "Dimensionalities, comma separated");
+        programOptions.addOption("k", true, "Numbers of centers, comma separated");
+        programOptions.addOption("T", true, "Threads per process, comma separated");
+        programOptions.addOption("ppn", true, "Processes per node, comma separated (default 1)");
+        programOptions.addOption("engine", true, "Assignment engines, comma separated (default auto)");
+        programOptions.addOption("bind", true, "Bind modes, comma separated, false or a -bindplan (default false)");
+        programOptions.addOption("m", true, "Iterations per run (default 10)");
+        programOptions.addOption("reps", true, "Repetitions of each combination (default 5)");
+        programOptions.addOption("mode", true, "Run ranks [local/mpirun] (default local)");
+        programOptions.addOption("nodes", true, "Nodes with -mode mpirun (default 1)");
+        programOptions.addOption("hostfile", true, "Hostfile with -mode mpirun");
+        programOptions.addOption("jvm", true, "JVM options of each run, e.g. \"-Xmx4g -XX:+UseSerialGC\"");
+        programOptions.addOption("args", true, "More Program options for every run, e.g. \"-sched dynamic\"");
+        programOptions.addOption("data", true, "Directory of generated points and centers");
+        programOptions.addOption("o", true, "Output prefix, writes prefix.csv, prefix.json and logs in prefix_logs");
+        programOptions.addOption("dryrun", false, "Print the commands only");
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Optional<CommandLine> parserResult = Utils.parseCommandLineArguments(args, programOptions);
+        if (!parserResult.isPresent()) {
+            System.out.println(Utils.ERR_PROGRAM_ARGUMENTS_PARSING_FAILED);
+            new HelpFormatter().printHelp(Utils.PROGRAM_NAME, programOptions);
+            return;
+        }
+
+        CommandLine cmd = parserResult.get();
+        if (!(cmd.hasOption("n") && cmd.hasOption("d") && cmd.hasOption("k") && cmd.hasOption("T") &&
+                cmd.hasOption("data") && cmd.hasOption("o"))) {
+            System.out.println(Utils.ERR_INVALID_PROGRAM_ARGUMENTS);
+            new HelpFormatter().printHelp(Utils.PROGRAM_NAME, programOptions);
+            return;
+        }
+
+        String mode = cmd.getOptionValue("mode", MODE_LOCAL);
+        int iterations = Integer.parseInt(cmd.getOptionValue("m", "10"));
+        int reps = Integer.parseInt(cmd.getOptionValue("reps", "5"));
+        String dataDir = cmd.getOptionValue("data");
+        String prefix = cmd.getOptionValue("o");
+        boolean dryRun = cmd.hasOption("dryrun");
+        Path logs = Paths.get(prefix + "_logs");
+        if (!dryRun) {
+            Files.createDirectories(logs);
+        }
+
+        List<Map<String, String>> configs = new ArrayList<>();
+        List<double[][]> results = new ArrayList<>();
+        List<Integer> failures = new ArrayList<>();
+        for (String n : list(cmd.getOptionValue("n")))
+        for (String d : list(cmd.getOptionValue("d")))
+        for (String k : list(cmd.getOptionValue("k"))) {
+            String data = Paths.get(dataDir, n + "_" + d + "_" + k).toString();
+            if (!dryRun) {
+                generate(data, n, d, k);
+            }
+            for (String threads : list(cmd.getOptionValue("T")))
+            for (String ppn : list(cmd.getOptionValue("ppn", "1")))
+            for (String engine : list(cmd.getOptionValue("engine", Lloyd.ENGINE_AUTO)))
+            for (String bind : list(cmd.getOptionValue("bind", "false"))) {
+                Map<String, String> config = new LinkedHashMap<>();
+                config.put("n", n);
+                config.put("d", d);
+                config.put("k", k);
+                config.put("T", threads);
+                config.put("ppn", ppn);
+                config.put("engine", engine);
+                config.put("bind", bind);
+                String name = String.join("_", config.values());
+
+                double[][] timings = new double[TIMINGS.length][reps];
+                int failed = 0;
+                for (int rep = 0; rep < reps; ++rep) {
+                    Path metrics = logs.resolve(name + "_r" + rep + ".json");
+                    List<String> command = command(cmd, mode, config, data, iterations, metrics.toString());
+                    if (dryRun) {
+                        System.out.println(String.join(" ", command));
+                        continue;
+                    }
+                    Path log = logs.resolve(name + "_r" + rep + ".txt");
+                    double[] timing = run(command, log, metrics);
+                    if (timing == null) {
+                        ++failed;
+                        System.out.println("  " + name + " repetition " + rep + " failed, see " + log);
+                        Arrays.fill(timing = new double[TIMINGS.length], Double.NaN);
+                    }
+                    for (int t = 0; t < TIMINGS.length; ++t) {
+                        timings[t][rep] = timing[t];
+                    }
+                }
+                if (dryRun) continue;
+                configs.add(config);
+                results.add(timings);
+                failures.add(failed);
+                System.out.println(name + " median ms per iteration " + median(timings[2]) + " variance " +
+                        variance(timings[2]));
+            }
+        }
+        if (dryRun) return;
+        writeCsv(prefix + ".csv", configs, results, failures);
+        writeJson(prefix + ".json", configs, results, failures);
+        System.out.println("Wrote " + prefix + ".csv and " + prefix + ".json");
+    }
+
+    private static List<String> list(String values) {
+        List<String> list = new ArrayList<>();
+        for (String value : values.split(",")) {
+            if (!value.trim().isEmpty()) list.add(value.trim());
+        }
+        return list;
+    }
+
+    /* Options are split on whitespace only, their values may have commas */
+    private static List<String> words(String options) {
+        List<String> words = new ArrayList<>();
+        for (String word : options.trim().split("\\s+")) {
+            if (!word.isEmpty()) words.add(word);
+        }
+        return words;
+    }
+
+    private static void generate(String data, String n, String d, String k) throws IOException {
+        if (new File(data, "points.bin").exists() && new File(data, "centers.bin").exists()) return;
+        Files.createDirectories(Paths.get(data));
+        DataGenerator.main(new String[]{"-n", n, "-d", d, "-k", k, "-b", "false", "-t", "false", "-o", data});
+    }
+
+    private static List<String> command(CommandLine cmd, String mode, Map<String, String> config, String data,
+                                        int iterations, String metrics) {
+        List<String> command = new ArrayList<>();
+        int ppn = Integer.parseInt(config.get("ppn"));
+        if (MODE_MPIRUN.equals(mode)) {
+            int nodes = Integer.parseInt(cmd.getOptionValue("nodes", "1"));
+            command.addAll(Arrays.asList("mpirun", "--map-by", "ppr:" + ppn + ":node", "--bind-to", "none"));
+            if (cmd.hasOption("hostfile")) {
+                command.addAll(Arrays.asList("-hostfile", cmd.getOptionValue("hostfile")));
+            }
+            command.addAll(Arrays.asList("-np", Integer.toString(nodes * ppn)));
+        } else if (!MODE_LOCAL.equals(mode)) {
+            throw new IllegalArgumentException("Unknown mode " + mode);
+        }
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        if (cmd.hasOption("jvm")) {
+            command.addAll(words(cmd.getOptionValue("jvm")));
+        }
+        command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), Program.class.getName(),
+                "-n", config.get("n"), "-d", config.get("d"), "-k", config.get("k"), "-t", "0",
+                "-m", Integer.toString(iterations), "-b", "false", "-T", config.get("T"),
+                "-c", Paths.get(data, "centers.bin").toString(), "-p", Paths.get(data, "points.bin").toString(),
+                "-engine", config.get("engine"), "-metrics", metrics));
+        String bind = config.get("bind");
+        if ("false".equals(bind) || "none".equals(bind)) {
+            command.addAll(Arrays.asList("-bind", "false"));
+        } else {
+            command.addAll(Arrays.asList("-bind", "true"));
+            if (!"true".equals(bind)) {
+                command.addAll(Arrays.asList("-bindplan", bind));
+            }
+        }
+        if (MODE_LOCAL.equals(mode)) {
+            command.addAll(Arrays.asList("-procs", Integer.toString(ppn)));
+        }
+        if (cmd.hasOption("args")) {
+            command.addAll(words(cmd.getOptionValue("args")));
+        }
+        return command;
+    }
+
+    /* Timings in the order of TIMINGS, null if the run failed */
+    private static double[] run(List<String> command, Path log, Path metrics) throws IOException,
+            InterruptedException {
+        Files.deleteIfExists(metrics);
+        long t = System.nanoTime();
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log.toFile()).start();
+        int exit = process.waitFor();
+        double wallMs = (System.nanoTime() - t) * 1e-6;
+        String output = new String(Files.readAllBytes(log), Charset.defaultCharset());
+        Matcher done = DONE.matcher(output);
+        if (exit != 0 || !done.find() || !Files.exists(metrics)) return null;
+
+        String json = new String(Files.readAllBytes(metrics), Charset.defaultCharset());
+        int itrs = Integer.parseInt(done.group(1));
+        double loopMs = Double.parseDouble(done.group(2));
+        // The summary sums compute and reductions over the iterations
+        int perItr = Math.max(1, itrs);
+        return new double[]{wallMs, loopMs, loopMs / perItr, field(json, "computeMaxMs") / perItr,
+                (field(json, "allReduceLocalMeanMs") + field(json, "allReduceInterNodeMeanMs")) / perItr,
+                field(json, "timeToFirstIterationMs"), field(json, "rankImbalance"), field(json, "threadImbalance")};
+    }
+
+    /* A number of the metrics JSON summary, NaN if null */
+    private static double field(String json, String name) {
+        Matcher matcher = Pattern.compile("\"" + name + "\": ([0-9.Ee+-]+|null)").matcher(json);
+        if (!matcher.find() || "null".equals(matcher.group(1))) return Double.NaN;
+        return Double.parseDouble(matcher.group(1));
+    }
+
+    /* Over the repetitions that didn't fail */
+
+    static double median(double[] values) {
+        double[] finite = Arrays.stream(values).filter(v -> !Double.isNaN(v)).sorted().toArray();
+        if (finite.length == 0) return Double.NaN;
+        int mid = finite.length / 2;
+        return finite.length % 2 == 1 ? finite[mid] : (finite[mid - 1] + finite[mid]) / 2;
+    }
+
+    /* Sample variance */
+    static double variance(double[] values) {
+        double[] finite = Arrays.stream(values).filter(v -> !Double.isNaN(v)).toArray();
+        if (finite.length < 2) return finite.length == 1 ? 0.0 : Double.NaN;
+        double mean = Arrays.stream(finite).average().getAsDouble();
+        double sq = 0.0;
+        for (double v : finite) {
+            sq += (v - mean) * (v - mean);
+        }
+        return sq / (finite.length - 1);
+    }
+
+    private static void writeCsv(String file, List<Map<String, String>> configs, List<double[][]> results,
+                                 List<Integer> failures) throws IOException {
+        try (PrintWriter writer = open(file)) {
+            StringBuilder header = new StringBuilder(String.join(",", configs.isEmpty() ?
+                    Arrays.asList("n", "d", "k", "T", "ppn", "engine", "bind") : configs.get(0).keySet()));
+            header.append(",reps,failed");
+            for (String timing : TIMINGS) {
+                header.append(',').append(timing).append("Median,").append(timing).append("Variance");
+            }
+            writer.println(header);
+            for (int i = 0; i < configs.size(); ++i) {
+                StringBuilder row = new StringBuilder(String.join(",", configs.get(i).values()));
+                row.append(',').append(results.get(i)[0].length).append(',').append(failures.get(i));
+                for (double[] values : results.get(i)) {
+                    row.append(',').append(number(median(values))).append(',').append(number(variance(values)));
+                }
+                writer.println(row);
+            }
+        }
+    }
+
+    private static void writeJson(String file, List<Map<String, String>> configs, List<double[][]> results,
+                                  List<Integer> failures) throws IOException {
+        try (PrintWriter writer = open(file)) {
+            writer.println("[");
+            for (int i = 0; i < configs.size(); ++i) {
+                StringBuilder sb = new StringBuilder("  {");
+                for (Map.Entry<String, String> entry : configs.get(i).entrySet()) {
+                    String value = entry.getValue();
+                    boolean isNumber = value.matches("[0-9]+");
+                    sb.append('"').append(entry.getKey()).append("\": ").append(isNumber ? value : '"' + value + '"')
+                            .append(", ");
+                }
+                sb.append("\"reps\": ").append(results.get(i)[0].length).append(", \"failed\": ")
+                        .append(failures.get(i));
+                double[][] timings = results.get(i);
+                for (int t = 0; t < TIMINGS.length; ++t) {
+                    sb.append(", \"").append(TIMINGS[t]).append("\": {\"median\": ")
+                            .append(number(median(timings[t]))).append(", \"variance\": ")
+                            .append(number(variance(timings[t]))).append(", \"values\": [");
+                    for (int r = 0; r < timings[t].length; ++r) {
+                        if (r > 0) sb.append(", ");
+                        sb.append(number(timings[t][r]));
+                    }
+                    sb.append("]}");
+                }
+                sb.append(i < configs.size() - 1 ? "}," : "}");
+                writer.println(sb);
+            }
+            writer.println("]");
+        }
+    }
+
+    private static PrintWriter open(String file) throws IOException {
+        return new PrintWriter(Files.newBufferedWriter(Paths.get(file), Charset.defaultCharset(),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE));
+    }
+
+    private static String number(double value) {
+        return Double.isFinite(value) ? Double.toString(value) : "null";
+    }
+}
@@ -0,0 +1,163 @@
+package org.saliya.ompi.kmeans;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Computes thread affinity masks for the TxP pattern from the real node
+ * topology instead of the hard coded Juliet layout in {@link ThreadBitAssigner}.
+ *
+ * If the MPI launcher already bound the process (--bind-to core/socket) its
+ * mask is honored and only split among the threads. Processes of a node that
+ * share one mask, all of the node with --bind-to none or the same cgroup or
+ * cpuset, first divide the cores of that mask among themselves. Cores are
+ * ordered by socket and NUMA node, so contiguous shares stay within a socket
+ * whenever the counts allow it.
+ */
+public class BindingPlanner {
+    public static final String PLAN_AUTO = "auto";
+    public static final String PLAN_JULIET = "juliet";
+
+    /**
+     * @param rankInMask position of this process among the procsInMask
+     *                   processes of the node with the same mask, see
+     *                   {@link ParallelOps#shareOfMask}
+     */
+    public static BitSet[] plan(CpuTopology topology, BitSet processMask, int rankInMask, int procsInMask,
+                                int numThreads) {
+        BitSet allowed = (BitSet) processMask.clone();
+        allowed.and(topology.onlineCpus);
+        if (allowed.isEmpty()) {
+            // Mask does not make sense for this topology, treat as unbound
+            allowed = (BitSet) topology.onlineCpus.clone();
+        }
+
+        List<int[]> pool = coresWithin(topology, allowed);
+        if (procsInMask > 1) {
+            pool = shareOf(pool, rankInMask, procsInMask);
+        }
+        return splitAmongThreads(pool, numThreads);
+    }
+
+    /**
+     * Juliet fallback, kept as it was
+     */
+    public static BitSet[] julietPlan(int rank, int numThreads, int nodes) {
+        BitSet[] bitSets = new BitSet[numThreads];
+        for (int t = 0; t < numThreads; ++t) {
+            bitSets[t] = ThreadBitAssigner.getBitSet(rank, t, numThreads, nodes);
+        }
+        return bitSets;
+    }
+
+    /* Cores (with only their allowed hardware threads) that intersect the mask */
+    private static List<int[]> coresWithin(CpuTopology topology, BitSet allowed) {
+        List<int[]> pool = new ArrayList<>();
+        for (CpuTopology.Core core : topology.cores) {
+            int[] cpus = Arrays.stream(core.cpus).filter(allowed::get).toArray();
+            if (cpus.length > 0) {
+                pool.add(cpus);
+            }
+        }
+        return pool;
+    }
+
+    /* Contiguous slice of the shared cores for this process */
+    private static List<int[]> shareOf(List<int[]> cores, int rankOnNode, int procsOnNode) {
+        List<int[]> units = new ArrayList<>();
+        if (cores.size() >= procsOnNode) {
+            units.addAll(cores);
+        } else {
+            // More processes than cores, so hand out individual hardware threads
+            for (int[] core : cores) {
+                for (int cpu : core) {
+                    units.add(new int[]{cpu});
+                }
+            }
+        }
+
+        int count = units.size();
+        if (count < procsOnNode) {
+            // Over subscribed node, processes wrap around
+            List<int[]> pool = new ArrayList<>(1);
+            pool.add(units.get(rankOnNode % count));
+            return pool;
+        }
+        int div = count / procsOnNode;
+        int rem = count % procsOnNode;
+        int start = rankOnNode * div + (rankOnNode < rem ? rankOnNode : rem);
+        int length = rankOnNode < rem ? div + 1 : div;
+        return new ArrayList<>(units.subList(start, start + length));
+    }
+
+    private static BitSet[] splitAmongThreads(List<int[]> pool, int numThreads) {
+        BitSet[] bitSets = new BitSet[numThreads];
+        int cores = pool.size();
+        if (numThreads <= cores) {
+            // Each thread gets contiguous cores along with all their hardware threads
+            int div = cores / numThreads;
+            int rem = cores % numThreads;
+            for (int t = 0; t < numThreads; ++t) {
+                int start = t * div + (t < rem ? t : rem);
+                int length = t < rem ? div + 1 : div;
+                bitSets[t] = new BitSet();
+                for (int c = start; c < start + length; ++c) {
+                    for (int cpu : pool.get(c)) {
+                        bitSets[t].set(cpu);
+                    }
+                }
+            }
+            return bitSets;
+        }
+
+        // More threads than cores: spread over first hardware threads of every core
+        // before doubling up on siblings, and wrap around if still short
+        List<Integer> hwThreads = new ArrayList<>();
+        int maxSiblings = pool.stream().mapToInt(c -> c.length).max().orElse(1);
+        for (int s = 0; s < maxSiblings; ++s) {
+            for (int[] core : pool) {
+                if (s < core.length) {
+                    hwThreads.add(core[s]);
+                }
+            }
+        }
+        for (int t = 0; t < numThreads; ++t) {
+            bitSets[t] = new BitSet();
+            bitSets[t].set(hwThreads.get(t % hwThreads.size()));
+        }
+        return bitSets;
+    }
+
+    public static String describe(BitSet[] plan, CpuTopology topology) {
+        StringBuilder sb = new StringBuilder();
+        for (int t = 0; t < plan.length; ++t) {
+            sb.append("\n    T").append(t).append(" cpus ").append(toCpuList(plan[t]));
+            if (topology != null) {
+                TreeSet<Integer> sockets = new TreeSet<>();
+                TreeSet<Integer> numas = new TreeSet<>();
+                plan[t].stream().forEach(cpu -> {
+                    sockets.add(topology.socketOf(cpu));
+                    numas.add(topology.numaOf(cpu));
+                });
+                sb.append(" socket ").append(sockets).append(" numa ").append(numas);
+            }
+        }
+        return sb.toString();
+    }
+
+    public static String toCpuList(BitSet bitSet) {
+        StringBuilder sb = new StringBuilder();
+        int start = bitSet.nextSetBit(0);
+        while (start >= 0) {
+            int end = bitSet.nextClearBit(start) - 1;
+            if (sb.length() > 0) sb.append(',');
+            sb.append(start);
+            if (end > start) sb.append('-').append(end);
+            start = bitSet.nextSetBit(end + 1);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,101 @@
+package org.saliya.ompi.kmeans;
+
+import java.util.stream.IntStream;
+
+/**
+ * Nearest center lookup over fixed (trained) centers.
+ *
+ * Keeps the center to center distances, so a point close enough to a guess,
+ * closer than half the distance from the guess to any other center, is
+ * labeled after a single distance, and otherwise centers that can't beat the
+ * best so far are skipped by the triangle inequality. Labels are the same as
+ * {@link Program#findCenterWithMinDistance}, ties included. Past
+ * {@link #MAX_INDEXED_CENTERS} the k^2 table isn't worth it and lookups are
+ * plain scans.
+ */
+public class CenterIndex {
+    public static final int MAX_INDEXED_CENTERS = 8192;
+
+    private final double[] centers;
+    private final int numCenters;
+    private final int dimension;
+    // k x k distances and half the distance to the nearest other center, null if not indexed
+    private final double[] centerDistances;
+    private final double[] halfNearest;
+
+    public CenterIndex(double[] centers, int numCenters, int dimension) {
+        this.centers = centers;
+        this.numCenters = numCenters;
+        this.dimension = dimension;
+        if (numCenters > MAX_INDEXED_CENTERS || numCenters < 2) {
+            centerDistances = null;
+            halfNearest = null;
+            return;
+        }
+        centerDistances = new double[numCenters * numCenters];
+        halfNearest = new double[numCenters];
+        IntStream.range(0, numCenters).parallel().forEach(i -> {
+            double nearest = Double.MAX_VALUE;
+            for (int j = 0; j < numCenters; ++j) {
+                double dist = i == j ? 0.0 : Program.getEuclideanDistance(centers, centers, dimension, i * dimension,
+                        j * dimension);
+                centerDistances[i * numCenters + j] = dist;
+                if (i != j && dist < nearest) {
+                    nearest = dist;
+                }
+            }
+            halfNearest[i] = nearest / 2;
+        });
+    }
+
+    public boolean isIndexed() {
+        return centerDistances != null;
+    }
+
+    public int getNumCenters() {
+        return numCenters;
+    }
+
+    public int getDimension() {
+        return dimension;
+    }
+
+    /**
+     * @param guess center to try first, e.g. the label of the previous point
+     */
+    public int nearest(double[] points, int pointOffset, int guess) {
+        if (centerDistances == null) {
+            return Program.findCenterWithMinDistance(points, centers, dimension, pointOffset);
+        }
+        double dMin = Program.getEuclideanDistance(points, centers, dimension, pointOffset, guess * dimension);
+        if (dMin < halfNearest[guess]) {
+            // Every other center is strictly further away
+            return guess;
+        }
+        int best = guess;
+        for (int c = 0; c < numCenters; ++c) {
+            if (c == best) continue;
+            // d(x,c) >= d(best,c) - d(x,best) > d(x,best)
+            if (centerDistances[best * numCenters + c] > 2 * dMin) continue;
+            double dist = Program.getEuclideanDistance(points, centers, dimension, pointOffset, c * dimension);
+            // Lowest index wins ties, as with a plain scan
+            if (dist < dMin || (dist == dMin && c < best)) {
+                dMin = dist;
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Labels count points starting at point index from, trying the previous
+     * label first
+     */
+    public void label(double[] points, int from, int count, int[] labels) {
+        int guess = 0;
+        for (int i = from; i < from + count; ++i) {
+            guess = nearest(points, i * dimension, guess);
+            labels[i] = guess;
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package org.saliya.ompi.kmeans;
+
+import mpi.MPIException;
+import org.saliya.ompi.kmeans.comm.Communicator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * Periodic checkpoints of the iteration state.
+ *
+ * A checkpoint lives in <code>dir/ckpt-&lt;iteration&gt;</code>. Rank 0 writes
+ * the centers and, optionally, every rank writes the cluster assignments of its
+ * own range as a shard. Shards are written by a background thread from copies,
+ * so the iterations go on while they are being written. A checkpoint becomes
+ * the latest one only after every rank reported its shard written, which is
+ * checked at the next checkpoint (or at the end), and recorded by rank 0 in
+ * <code>dir/latest</code>. The checkpoint it replaces is removed then.
+ *
+ * Files are little endian, a header of ints followed by the payload.
+ */
+public class Checkpointer {
+    private static final int MAGIC = 0x4B4D434B; // KMCK
+    private static final int VERSION = 1;
+    private static final String LATEST = "latest";
+    private static final String CENTERS = "centers.bin";
+    private static final String SHARD_PREFIX = "assign-";
+    private static final String DIR_PREFIX = "ckpt-";
+    // magic, version, iteration, k, d
+    private static final int CENTERS_HEADER_BYTES = 5 * Integer.BYTES;
+    // magic, version, iteration, start, count
+    private static final int SHARD_HEADER_BYTES = 5 * Integer.BYTES;
+
+    private final Path dir;
+    private final boolean withAssignments;
+    private final ExecutorService writer;
+
+    private Future<?> pending;
+    private int pendingItr = -1;
+    private int committedItr = -1;
+
+    /**
+     * Collective call. Removes whatever an earlier run left in dir, except for
+     * the latest committed checkpoint when resuming from it.
+     */
+    public Checkpointer(String dir, boolean withAssignments, boolean resume) throws MPIException, IOException {
+        this.dir = Paths.get(dir);
+        this.withAssignments = withAssignments;
+        if (resume) {
+            // Replaced like any other once this run commits its first checkpoint
+            committedItr = latest(dir);
+        }
+        if (ParallelOps.worldProcRank == 0) {
+            Files.createDirectories(this.dir);
+            if (!resume) {
+                Files.deleteIfExists(this.dir.resolve(LATEST));
+            }
+            try (DirectoryStream<Path> stale = Files.newDirectoryStream(this.dir, DIR_PREFIX + "*")) {
+                for (Path ckpt : stale) {
+                    if (!ckpt.equals(checkpointDir(this.dir, committedItr))) {
+                        deleteRecursively(ckpt);
+                    }
+                }
+            }
+        }
+        if (ParallelOps.worldProcsCount > 1) {
+            ParallelOps.worldProcsComm.barrier();
+        }
+        this.writer = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "checkpoint-" + ParallelOps.worldProcRank);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Collective call. Commits the previous checkpoint if every rank wrote its
+     * part, then starts writing this one in the background.
+     *
+     * @param itr number of iterations done, i.e. the state to resume from
+     */
+    public void write(int itr, double[] centers, int numCenters, int dimension, int[] clusterAssignments,
+                      int pointStartIdxForProc) throws MPIException {
+        commitPending();
+
+        // Copies, as both arrays change in the next iteration
+        final double[] centersCopy = ParallelOps.worldProcRank == 0 ? centers.clone() : null;
+        final int[] assignmentsCopy = withAssignments ? clusterAssignments.clone() : null;
+        final Path ckpt = checkpointDir(dir, itr);
+        pending = writer.submit(() -> {
+            Files.createDirectories(ckpt);
+            if (centersCopy != null) {
+                writeCenters(ckpt.resolve(CENTERS), itr, centersCopy, numCenters, dimension);
+            }
+            if (assignmentsCopy != null) {
+                writeShard(ckpt.resolve(SHARD_PREFIX + ParallelOps.worldProcRank + ".bin"), itr, assignmentsCopy,
+                        pointStartIdxForProc);
+            }
+            return null;
+        });
+        pendingItr = itr;
+    }
+
+    /**
+     * Collective call. Waits for and commits the last checkpoint.
+     */
+    public void finish() throws MPIException {
+        commitPending();
+        writer.shutdown();
+    }
+
+    public int getCommittedIteration() {
+        return committedItr;
+    }
+
+    private void commitPending() throws MPIException {
+        if (pending == null) return;
+        int[] ok = new int[]{1};
+        try {
+            pending.get();
+        } catch (InterruptedException | ExecutionException e) {
+            System.out.println("  Rank " + ParallelOps.worldProcRank + " failed to write checkpoint " + pendingItr +
+                    ": " + (e.getCause() != null ? e.getCause() : e));
+            ok[0] = 0;
+        }
+        pending = null;
+        if (ParallelOps.worldProcsCount > 1) {
+            ParallelOps.worldProcsComm.allReduce(ok, 1, Communicator.Op.MIN);
+        }
+        if (ok[0] == 0) return;
+
+        // Only rank 0 knows whether latest moved, so all follow its result
+        int[] committed = new int[]{1};
+        if (ParallelOps.worldProcRank == 0) {
+            try {
+                Path tmp = dir.resolve(LATEST + ".tmp");
+                Files.write(tmp, Integer.toString(pendingItr).getBytes(StandardCharsets.UTF_8));
+                Files.move(tmp, dir.resolve(LATEST), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                System.out.println("  Failed to commit checkpoint " + pendingItr + ": " + e);
+                committed[0] = 0;
+            }
+        }
+        if (ParallelOps.worldProcsCount > 1) {
+            ParallelOps.worldProcsComm.bcast(committed, 1, 0);
+        }
+        if (committed[0] == 0) return;
+
+        if (ParallelOps.worldProcRank == 0 && committedItr >= 0) {
+            try {
+                deleteRecursively(checkpointDir(dir, committedItr));
+            } catch (IOException e) {
+                // Checkpoint pendingItr is the latest either way
+                System.out.println("  Warning: failed to remove replaced checkpoint " + committedItr + ": " + e);
+            }
+        }
+        committedItr = pendingItr;
+    }
+
+    /**
+     * @return iterations done in the latest committed checkpoint, -1 if there is none
+     */
+    public static int latest(String dir) throws IOException {
+        Path latest = Paths.get(dir, LATEST);
+        if (!Files.exists(latest)) return -1;
+        return Integer.parseInt(new String(Files.readAllBytes(latest), StandardCharsets.UTF_8).trim());
+    }
+
+    public static void readCenters(String dir, int itr, double[] centers, int numCenters, int dimension)
+            throws IOException {
+        ByteBuffer buffer = map(checkpointDir(Paths.get(dir), itr).resolve(CENTERS));
+        checkHeader(buffer, itr);
+        int k = buffer.getInt();
+        int d = buffer.getInt();
+        if (k != numCenters || d != dimension) {
+            throw new IOException("Checkpoint " + itr + " has k=" + k + " d=" + d + " but the run has k=" +
+                    numCenters + " d=" + dimension);
+        }
+        buffer.asDoubleBuffer().get(centers, 0, numCenters * dimension);
+    }
+
+    /**
+     * Fills the assignments of the given range from whichever shards overlap
+     * it, so the number of ranks may differ from the run that wrote them.
+     *
+     * @return false if the checkpoint has no (or not all) assignments
+     */
+    public static boolean readAssignments(String dir, int itr, int[] clusterAssignments, int pointStartIdxForProc)
+            throws IOException {
+        int start = pointStartIdxForProc;
+        int end = start + clusterAssignments.length;
+        long found = 0;
+        try (DirectoryStream<Path> shards = Files.newDirectoryStream(checkpointDir(Paths.get(dir), itr),
+                SHARD_PREFIX + "*.bin")) {
+            for (Path shard : shards) {
+                ByteBuffer buffer = map(shard);
+                checkHeader(buffer, itr);
+                int shardStart = buffer.getInt();
+                int shardCount = buffer.getInt();
+                int from = Math.max(start, shardStart);
+                int to = Math.min(end, shardStart + shardCount);
+                if (to <= from) continue;
+                buffer.position(buffer.position() + (from - shardStart) * Integer.BYTES);
+                buffer.asIntBuffer().get(clusterAssignments, from - start, to - from);
+                found += to - from;
+            }
+        }
+        return found == clusterAssignments.length;
+    }
+
+    private static Path checkpointDir(Path dir, int itr) {
+        return dir.resolve(DIR_PREFIX + itr);
+    }
+
+    private static void writeCenters(Path file, int itr, double[] centers, int numCenters, int dimension)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(CENTERS_HEADER_BYTES + numCenters * dimension * Double.BYTES).order(
+                ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(itr).putInt(numCenters).putInt(dimension);
+        buffer.asDoubleBuffer().put(centers, 0, numCenters * dimension);
+        write(file, buffer);
+    }
+
+    private static void writeShard(Path file, int itr, int[] clusterAssignments, int pointStartIdxForProc)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SHARD_HEADER_BYTES + clusterAssignments.length * Integer.BYTES).order(
+                ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(itr).putInt(pointStartIdxForProc).putInt(
+                clusterAssignments.length);
+        buffer.asIntBuffer().put(clusterAssignments);
+        write(file, buffer);
+    }
+
+    private static void write(Path file, ByteBuffer buffer) throws IOException {
+        buffer.position(0);
+        try (FileChannel fc = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                fc.write(buffer);
+            }
+            fc.force(false);
+        }
+    }
+
+    private static ByteBuffer map(Path file) throws IOException {
+        try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return buffer;
+        }
+    }
+
+    private static void checkHeader(ByteBuffer buffer, int itr) throws IOException {
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION || buffer.getInt() != itr) {
+            throw new IOException("Not a version " + VERSION + " checkpoint file of iteration " + itr);
+        }
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) return;
+        try (Stream<Path> paths = Files.walk(path)) {
+            for (Path p : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(p);
+            }
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package org.saliya.ompi.kmeans;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Hands out a rank's points to its threads in chunks instead of one fixed
+ * range per thread.
+ *
+ * Chunks are cut from the static thread ranges of {@link ParallelOps}, so every
+ * thread owns the chunks of its own range (and its NUMA slab with -load numa).
+ * A thread takes its own chunks from the front and, once they are gone, steals
+ * from the back of the other threads' ranges, starting with its neighbours.
+ * Each owner keeps its head and tail packed into one long, so a chunk is
+ * claimed with a single CAS by exactly one thread.
+ */
+public class ChunkScheduler {
+    public static final String SCHED_STATIC = "static";
+    public static final String SCHED_DYNAMIC = "dynamic";
+
+    // Fallback when the L2 size can't be read
+    private static final int DEFAULT_CACHE_BYTES = 256 * 1024;
+    private static final int MIN_CHUNK_POINTS = 16;
+    // Keep enough chunks per thread for stealing to even things out
+    private static final int MIN_CHUNKS_PER_THREAD = 8;
+    // Longs per owner in the state array, keeps owners on separate cache lines
+    private static final int STRIDE = 8;
+
+    private final int numThreads;
+    public final int chunkPoints;
+
+    private final int[] chunkCount;
+    private final AtomicLongArray state;
+
+    // Written only by the thread itself
+    private final long[] stolen;
+    private final long[] taken;
+
+    public ChunkScheduler(int numThreads, int[] pointsForThread, int chunkPoints) {
+        this.numThreads = numThreads;
+        this.chunkPoints = chunkPoints;
+        chunkCount = new int[numThreads];
+        for (int t = 0; t < numThreads; ++t) {
+            chunkCount[t] = (pointsForThread[t] + chunkPoints - 1) / chunkPoints;
+        }
+        state = new AtomicLongArray(numThreads * STRIDE);
+        stolen = new long[numThreads * STRIDE];
+        taken = new long[numThreads * STRIDE];
+    }
+
+    /**
+     * Chunk size in points such that a chunk of points fits in half of the L2
+     * cache, leaving room for the centers being streamed past it
+     */
+    public static int chunkPointsFor(int dimension, int pointsForProc, int numThreads) {
+        long cacheBytes = CpuTopology.readCacheSize(2);
+        if (cacheBytes <= 0) {
+            cacheBytes = DEFAULT_CACHE_BYTES;
+        }
+        int chunk = (int) Math.max(MIN_CHUNK_POINTS, cacheBytes / 2 / (Double.BYTES * dimension));
+        int balanced = pointsForProc / (numThreads * MIN_CHUNKS_PER_THREAD);
+        return Math.max(MIN_CHUNK_POINTS, Math.min(chunk, balanced));
+    }
+
+    /**
+     * Cuts the chunks from new thread ranges, after points moved between
+     * ranks. Taken and stolen counts carry over.
+     */
+    public void resize(int[] pointsForThread) {
+        for (int t = 0; t < numThreads; ++t) {
+            chunkCount[t] = (pointsForThread[t] + chunkPoints - 1) / chunkPoints;
+        }
+    }
+
+    /**
+     * Makes all chunks available again. Call before every parallel region.
+     */
+    public void reset() {
+        for (int t = 0; t < numThreads; ++t) {
+            state.set(t * STRIDE, pack(0, chunkCount[t]));
+        }
+    }
+
+    /**
+     * @return next chunk for the thread as <code>owner * 2^32 + chunk within
+     * owner</code>, or -1 when no work is left anywhere
+     */
+    public long next(int threadIdx) {
+        int chunk = takeFront(threadIdx);
+        if (chunk >= 0) {
+            ++taken[threadIdx * STRIDE];
+            return pack(threadIdx, chunk);
+        }
+        for (int i = 1; i < numThreads; ++i) {
+            int victim = (threadIdx + i) % numThreads;
+            chunk = takeBack(victim);
+            if (chunk >= 0) {
+                ++taken[threadIdx * STRIDE];
+                ++stolen[threadIdx * STRIDE];
+                return pack(victim, chunk);
+            }
+        }
+        return -1;
+    }
+
+    public static int owner(long chunk) {
+        return (int) (chunk >>> 32);
+    }
+
+    /* First point of the chunk relative to the owner's range */
+    public int start(long chunk) {
+        return ((int) chunk) * chunkPoints;
+    }
+
+    public int count(long chunk, int pointsForOwner) {
+        return Math.min(chunkPoints, pointsForOwner - start(chunk));
+    }
+
+    public long taken(int threadIdx) {
+        return taken[threadIdx * STRIDE];
+    }
+
+    public long stolen(int threadIdx) {
+        return stolen[threadIdx * STRIDE];
+    }
+
+    private int takeFront(int owner) {
+        int idx = owner * STRIDE;
+        while (true) {
+            long s = state.get(idx);
+            int head = (int) (s >>> 32);
+            int tail = (int) s;
+            if (head >= tail) return -1;
+            if (state.compareAndSet(idx, s, pack(head + 1, tail))) return head;
+        }
+    }
+
+    private int takeBack(int owner) {
+        int idx = owner * STRIDE;
+        while (true) {
+            long s = state.get(idx);
+            int head = (int) (s >>> 32);
+            int tail = (int) s;
+            if (head >= tail) return -1;
+            if (state.compareAndSet(idx, s, pack(head, tail - 1))) return tail - 1;
+        }
+    }
+
+    private static long pack(int high, int low) {
+        return (((long) high) << 32) | (low & 0xffffffffL);
+    }
+}
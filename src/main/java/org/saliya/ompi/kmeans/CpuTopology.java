@@ -0,0 +1,197 @@
+package org.saliya.ompi.kmeans;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * Hardware topology of the local node as exposed by Linux under
+ * <code>/sys/devices/system/cpu</code> and <code>/sys/devices/system/node</code>
+ */
+public class CpuTopology {
+    public static final String CPU_DIR = "/sys/devices/system/cpu";
+    public static final String NODE_DIR = "/sys/devices/system/node";
+    public static final String PROC_STATUS = "/proc/self/status";
+
+    private static final Pattern NODE_NAME = Pattern.compile("node\\d+");
+
+    // Indexed by logical cpu id, -1 for cpus that are not online
+    private final int[] socketOfCpu;
+    private final int[] coreOfCpu;
+    private final int[] numaOfCpu;
+
+    public final BitSet onlineCpus;
+    public final int socketCount;
+    public final int numaCount;
+    public final List<Core> cores;
+
+    /**
+     * A physical core and the hardware threads (logical cpus) it hosts
+     */
+    public static class Core {
+        public final int socket;
+        public final int numa;
+        public final int coreId;
+        public final int[] cpus;
+
+        Core(int socket, int numa, int coreId, int[] cpus) {
+            this.socket = socket;
+            this.numa = numa;
+            this.coreId = coreId;
+            this.cpus = cpus;
+        }
+    }
+
+    private CpuTopology(BitSet onlineCpus, int[] socketOfCpu, int[] coreOfCpu, int[] numaOfCpu) {
+        this.onlineCpus = onlineCpus;
+        this.socketOfCpu = socketOfCpu;
+        this.coreOfCpu = coreOfCpu;
+        this.numaOfCpu = numaOfCpu;
+
+        // Group hardware threads by (socket, core id). Core ids are only unique within a socket.
+        TreeMap<Long, List<Integer>> threadsOfCore = new TreeMap<>();
+        for (int cpu = onlineCpus.nextSetBit(0); cpu >= 0; cpu = onlineCpus.nextSetBit(cpu + 1)) {
+            long key = (((long) socketOfCpu[cpu]) << 32) | (coreOfCpu[cpu] & 0xffffffffL);
+            threadsOfCore.computeIfAbsent(key, k -> new ArrayList<>()).add(cpu);
+        }
+        List<Core> cores = new ArrayList<>(threadsOfCore.size());
+        for (List<Integer> threads : threadsOfCore.values()) {
+            int first = threads.get(0);
+            cores.add(new Core(socketOfCpu[first], numaOfCpu[first], coreOfCpu[first],
+                    threads.stream().mapToInt(Integer::intValue).toArray()));
+        }
+        // Socket, then NUMA node (sub-NUMA clustering splits a socket), then core
+        cores.sort(Comparator.<Core>comparingInt(c -> c.socket).thenComparingInt(c -> c.numa).thenComparingInt(
+                c -> c.coreId));
+        this.cores = cores;
+        this.socketCount = (int) Arrays.stream(socketOfCpu).filter(s -> s >= 0).distinct().count();
+        this.numaCount = (int) Arrays.stream(numaOfCpu).filter(s -> s >= 0).distinct().count();
+    }
+
+    public static CpuTopology read() throws IOException {
+        return read(CPU_DIR, NODE_DIR);
+    }
+
+    public static CpuTopology read(String cpuDir, String nodeDir) throws IOException {
+        BitSet online = parseCpuList(readLine(Paths.get(cpuDir, "online")));
+        if (online.isEmpty()) {
+            throw new IOException("No online cpus listed in " + cpuDir);
+        }
+        int length = online.length();
+        int[] socketOfCpu = new int[length];
+        int[] coreOfCpu = new int[length];
+        int[] numaOfCpu = new int[length];
+        Arrays.fill(socketOfCpu, -1);
+        Arrays.fill(coreOfCpu, -1);
+        Arrays.fill(numaOfCpu, -1);
+
+        for (int cpu = online.nextSetBit(0); cpu >= 0; cpu = online.nextSetBit(cpu + 1)) {
+            Path topology = Paths.get(cpuDir, "cpu" + cpu, "topology");
+            socketOfCpu[cpu] = Integer.parseInt(readLine(topology.resolve("physical_package_id")));
+            coreOfCpu[cpu] = Integer.parseInt(readLine(topology.resolve("core_id")));
+            // Assume a single NUMA domain per socket unless the node directory says otherwise
+            numaOfCpu[cpu] = socketOfCpu[cpu];
+        }
+
+        Path nodes = Paths.get(nodeDir);
+        if (Files.isDirectory(nodes)) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(nodes)) {
+                for (Path node : stream) {
+                    String name = node.getFileName().toString();
+                    if (!NODE_NAME.matcher(name).matches()) continue;
+                    int numa = Integer.parseInt(name.substring(4));
+                    BitSet cpus = parseCpuList(readLine(node.resolve("cpulist")));
+                    for (int cpu = cpus.nextSetBit(0); cpu >= 0 && cpu < length; cpu = cpus.nextSetBit(cpu + 1)) {
+                        numaOfCpu[cpu] = numa;
+                    }
+                }
+            }
+        }
+        return new CpuTopology(online, socketOfCpu, coreOfCpu, numaOfCpu);
+    }
+
+    /**
+     * Cpus this process is allowed to run on, i.e. the mask applied by the
+     * MPI launcher (or taskset). Has to be read before any thread is bound.
+     */
+    public static BitSet readProcessMask() throws IOException {
+        for (String line : Files.readAllLines(Paths.get(PROC_STATUS), StandardCharsets.UTF_8)) {
+            if (line.startsWith("Cpus_allowed_list:")) {
+                return parseCpuList(line.substring(line.indexOf(':') + 1));
+            }
+        }
+        throw new IOException("Cpus_allowed_list not found in " + PROC_STATUS);
+    }
+
+    /**
+     * Parse the kernel cpu list format, e.g. <code>0-5,12,24-29</code>
+     */
+    public static BitSet parseCpuList(String list) {
+        BitSet bitSet = new BitSet();
+        for (String range : list.trim().split(",")) {
+            range = range.trim();
+            if (range.isEmpty()) continue;
+            int dash = range.indexOf('-');
+            if (dash < 0) {
+                bitSet.set(Integer.parseInt(range));
+            } else {
+                bitSet.set(Integer.parseInt(range.substring(0, dash)), Integer.parseInt(range.substring(dash + 1)) + 1);
+            }
+        }
+        return bitSet;
+    }
+
+    /**
+     * Size in bytes of the data (or unified) cache of the given level seen by
+     * cpu 0, or -1 if it is not exposed
+     */
+    public static long readCacheSize(int level) {
+        Path cache = Paths.get(CPU_DIR, "cpu0", "cache");
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(cache, "index*")) {
+            for (Path index : stream) {
+                if (Integer.parseInt(readLine(index.resolve("level"))) != level ||
+                        "Instruction".equals(readLine(index.resolve("type")))) continue;
+                String size = readLine(index.resolve("size"));
+                char unit = Character.toUpperCase(size.charAt(size.length() - 1));
+                if (Character.isDigit(unit)) return Long.parseLong(size);
+                long value = Long.parseLong(size.substring(0, size.length() - 1));
+                return unit == 'K' ? value << 10 : unit == 'M' ? value << 20 : unit == 'G' ? value << 30 : -1;
+            }
+        } catch (IOException | RuntimeException e) {
+            return -1;
+        }
+        return -1;
+    }
+
+    public int socketOf(int cpu) {
+        return cpu < socketOfCpu.length ? socketOfCpu[cpu] : -1;
+    }
+
+    public int numaOf(int cpu) {
+        return cpu < numaOfCpu.length ? numaOfCpu[cpu] : -1;
+    }
+
+    public int hardwareThreadCount() {
+        return onlineCpus.cardinality();
+    }
+
+    @Override
+    public String toString() {
+        return socketCount + " socket(s), " + numaCount + " NUMA node(s), " + cores.size() + " core(s), " +
+                hardwareThreadCount() + " hardware thread(s)";
+    }
+
+    private static String readLine(Path path) throws IOException {
+        return new String(Files.readAllBytes(path), StandardCharsets.UTF_8).trim();
+    }
+}
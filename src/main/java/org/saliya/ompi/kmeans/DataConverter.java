@@ -25,7 +25,7 @@ public class DataConverter {
         programOptions.addOption("d", true, "Dimensionality");
         programOptions.addOption("b", true, "Is big-endian?");
         programOptions.addOption("o", true, "Output directory");
-        programOptions.addOption("t", true, "Type [tb | bb | bt | bti]");
+        programOptions.addOption("t", true, "Type [tb | bb | bt | bti | bs | ts]");
     }
 
     public static void main(String[] args) throws IOException {
@@ -46,7 +46,8 @@ public class DataConverter {
         }
 
         String file = cmd.getOptionValue("i");
-        int n = Integer.parseInt(cmd.getOptionValue("n"));
+        // Text inputs are counted
+        int n = cmd.hasOption("n") ? Integer.parseInt(cmd.getOptionValue("n")) : 0;
         int d = parseInt(cmd.getOptionValue("d"));
         boolean isBigEndian = Boolean.parseBoolean(cmd.getOptionValue("b"));
         String outputDir = cmd.getOptionValue("o");
@@ -66,8 +67,12 @@ public class DataConverter {
             case "bt":
                 convertBinaryToText(file, n, d, isBigEndian, outputDir, false);
                 break;
+            case "bs":
+            case "ts":
+                convertToSparse(file, type, n, d, isBigEndian, outputDir);
+                break;
             default:
-                throw new RuntimeException("Unsupported type " + type + " Has to be either tb or bb or bt");
+                throw new RuntimeException("Unsupported type " + type + " Has to be either tb or bb or bt or bs or ts");
         }
     }
 
@@ -148,4 +153,83 @@ public class DataConverter {
             }
         }
     }
+
+    private interface NonzeroVisitor {
+        void visit(int row, int column, double value) throws IOException;
+    }
+
+    /**
+     * Writes the sparse points file read by SparsePoints, from dense binary
+     * points (bs) or svmlight text with one based columns (ts), in three
+     * passes so nothing but the row offsets is held in memory
+     */
+    private static void convertToSparse(String file, String type, int n, int d, boolean isBigEndian, String outputDir)
+            throws IOException {
+        String name = com.google.common.io.Files.getNameWithoutExtension(file);
+        Path outFile = Paths.get(outputDir, name + "_csr" + (isBigEndian ? "_BE" : "_LE") + ".bin");
+        boolean text = "ts".equals(type);
+        if (text) {
+            try (BufferedReader reader = Files.newBufferedReader(Paths.get(file))) {
+                n = (int) reader.lines().count();
+            }
+        }
+        long[] offsets = new long[n + 1];
+        forEachNonzero(file, text, n, d, isBigEndian, (row, column, value) -> ++offsets[row + 1]);
+        for (int i = 0; i < n; ++i) {
+            offsets[i + 1] += offsets[i];
+        }
+        try (BufferedOutputStream bs = new BufferedOutputStream(
+                Files.newOutputStream(outFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING))) {
+            DataOutput outStream = isBigEndian ? new DataOutputStream(bs) : new LittleEndianDataOutputStream(bs);
+            for (long offset : offsets) {
+                outStream.writeLong(offset);
+            }
+            forEachNonzero(file, text, n, d, isBigEndian, (row, column, value) -> outStream.writeInt(column));
+            forEachNonzero(file, text, n, d, isBigEndian, (row, column, value) -> outStream.writeDouble(value));
+        }
+        System.out.println("Wrote " + n + " rows with " + offsets[n] + " nonzeros (" +
+                100.0 * offsets[n] / ((double) n * d) + "% dense) to " + outFile);
+    }
+
+    private static void forEachNonzero(String file, boolean text, int n, int d, boolean isBigEndian,
+                                       NonzeroVisitor visitor) throws IOException {
+        if (!text) {
+            try (BufferedInputStream bs = new BufferedInputStream(
+                    Files.newInputStream(Paths.get(file), StandardOpenOption.READ))) {
+                DataInput inStream = isBigEndian ? new DataInputStream(bs) : new LittleEndianDataInputStream(bs);
+                for (int i = 0; i < n; ++i) {
+                    for (int j = 0; j < d; ++j) {
+                        double value = inStream.readDouble();
+                        if (value != 0.0) {
+                            visitor.visit(i, j, value);
+                        }
+                    }
+                }
+            }
+            return;
+        }
+        Pattern pat = Pattern.compile("\\s+");
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(file))) {
+            String line;
+            for (int i = 0; (line = reader.readLine()) != null && i < n; ++i) {
+                int comment = line.indexOf('#');
+                if (comment >= 0) {
+                    line = line.substring(0, comment);
+                }
+                // The label and qid are skipped
+                for (String token : pat.split(line.trim())) {
+                    int colon = token.indexOf(':');
+                    if (colon < 0 || token.startsWith("qid:")) continue;
+                    int column = parseInt(token.substring(0, colon)) - 1;
+                    double value = Double.parseDouble(token.substring(colon + 1));
+                    if (column < 0 || column >= d) {
+                        throw new IOException("Column " + (column + 1) + " out of range at line " + (i + 1));
+                    }
+                    if (value != 0.0) {
+                        visitor.visit(i, column, value);
+                    }
+                }
+            }
+        }
+    }
 }
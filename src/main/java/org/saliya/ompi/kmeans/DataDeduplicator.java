@@ -0,0 +1,171 @@
+package org.saliya.ompi.kmeans;
+
+import com.google.common.base.Optional;
+import com.google.common.io.LittleEndianDataOutputStream;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Collapses exact duplicate rows of a binary points file into single rows
+ * weighted by their number of copies, to cluster with Program -w. Writes
+ * <ul>
+ *     <li>name_dedup.bin, the distinct rows in order of first appearance</li>
+ *     <li>name_dedup_weights.bin, the number of copies of each as a double</li>
+ *     <li>name_dedup_map.bin, the distinct row of every input row as an int,
+ *     to expand the cluster assignments back to the input rows</li>
+ * </ul>
+ * all in the input's byte order. Rows are equal when their bits are, and are
+ * found with an open addressing table over 64 bit row hashes, so memory is a
+ * few ints per input row whatever the dimension.
+ */
+public class DataDeduplicator {
+    // Largest power of two an int[] can hold, the table needs at least one empty slot
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    private static Options programOptions = new Options();
+
+    static {
+        programOptions.addOption("i", true, "Input file");
+        programOptions.addOption("n", true, "Number of points");
+        programOptions.addOption("d", true, "Dimensionality");
+        programOptions.addOption("b", true, "Is big-endian?");
+        programOptions.addOption("o", true, "Output directory");
+    }
+
+    public static void main(String[] args) throws IOException {
+        Optional<CommandLine> parserResult = Utils
+            .parseCommandLineArguments(args, programOptions);
+        if (!parserResult.isPresent()) {
+            System.out.println(Utils.ERR_PROGRAM_ARGUMENTS_PARSING_FAILED);
+            new HelpFormatter().printHelp(Utils.PROGRAM_NAME, programOptions);
+            return;
+        }
+
+        CommandLine cmd = parserResult.get();
+        if (!(cmd.hasOption("i") && cmd.hasOption("n") && cmd.hasOption("d") &&
+              cmd.hasOption("o") && cmd.hasOption("b"))) {
+            System.out.println(Utils.ERR_INVALID_PROGRAM_ARGUMENTS);
+            new HelpFormatter().printHelp(Utils.PROGRAM_NAME, programOptions);
+            return;
+        }
+
+        String file = cmd.getOptionValue("i");
+        int n = Integer.parseInt(cmd.getOptionValue("n"));
+        int d = Integer.parseInt(cmd.getOptionValue("d"));
+        if (n >= MAX_CAPACITY) {
+            System.out.println(Utils.ERR_INVALID_PROGRAM_ARGUMENTS + " -n needs fewer than " + MAX_CAPACITY +
+                    " rows");
+            new HelpFormatter().printHelp(Utils.PROGRAM_NAME, programOptions);
+            return;
+        }
+        boolean isBigEndian = Boolean.parseBoolean(cmd.getOptionValue("b"));
+        String outputDir = cmd.getOptionValue("o");
+
+        deduplicate(file, n, d, isBigEndian, outputDir);
+    }
+
+    private static void deduplicate(String file, int n, int d, boolean isBigEndian, String outputDir) throws IOException {
+        long t = System.nanoTime();
+        PointReader reader = PointReader.readRowRange(file, 0, n, d, isBigEndian);
+        // Slots hold distinct row + 1, at most half full below 2^29 rows, fuller above
+        int capacity = (int) Math.min(MAX_CAPACITY, Long.highestOneBit(Math.max(2, n) * 2L - 1) << 1);
+        int[] slots = new int[capacity];
+        // Of each distinct row
+        int[] firstRows = new int[n];
+        long[] hashes = new long[n];
+        int[] copies = new int[n];
+        int[] map = new int[n];
+        int distinct = 0;
+
+        double[] row = new double[d];
+        double[] other = new double[d];
+        for (int i = 0; i < n; ++i) {
+            reader.getPoint(i, row, d, 0);
+            long hash = hash(row);
+            int slot = (int) (hash ^ (hash >>> 32)) & (capacity - 1);
+            while (true) {
+                int u = slots[slot] - 1;
+                if (u < 0) {
+                    u = distinct++;
+                    slots[slot] = u + 1;
+                    firstRows[u] = i;
+                    hashes[u] = hash;
+                    copies[u] = 1;
+                    map[i] = u;
+                    break;
+                }
+                if (hashes[u] == hash) {
+                    reader.getPoint(firstRows[u], other, d, 0);
+                    if (sameBits(row, other)) {
+                        ++copies[u];
+                        map[i] = u;
+                        break;
+                    }
+                }
+                slot = (slot + 1) & (capacity - 1);
+            }
+        }
+
+        String name = com.google.common.io.Files.getNameWithoutExtension(file);
+        try (DataOutputCloser points = open(Paths.get(outputDir, name + "_dedup.bin"), isBigEndian);
+             DataOutputCloser weights = open(Paths.get(outputDir, name + "_dedup_weights.bin"), isBigEndian);
+             DataOutputCloser rows = open(Paths.get(outputDir, name + "_dedup_map.bin"), isBigEndian)) {
+            for (int u = 0; u < distinct; ++u) {
+                reader.getPoint(firstRows[u], row, d, 0);
+                for (int j = 0; j < d; ++j) {
+                    points.out.writeDouble(row[j]);
+                }
+                weights.out.writeDouble(copies[u]);
+            }
+            for (int i = 0; i < n; ++i) {
+                rows.out.writeInt(map[i]);
+            }
+        }
+        System.out.println("Collapsed " + n + " rows into " + distinct + " distinct weighted rows (" +
+                (double) n / distinct + " copies on average) in " + (System.nanoTime() - t) * 1e-6 + " ms");
+    }
+
+    private static long hash(double[] row) {
+        long hash = 0xcbf29ce484222325L;
+        for (double x : row) {
+            hash = (hash ^ Double.doubleToRawLongBits(x)) * 0x100000001b3L;
+            hash ^= hash >>> 29;
+        }
+        return hash;
+    }
+
+    private static boolean sameBits(double[] a, double[] b) {
+        for (int j = 0; j < a.length; ++j) {
+            if (Double.doubleToRawLongBits(a[j]) != Double.doubleToRawLongBits(b[j])) return false;
+        }
+        return true;
+    }
+
+    private static DataOutputCloser open(Path file, boolean isBigEndian) throws IOException {
+        return new DataOutputCloser(new BufferedOutputStream(Files.newOutputStream(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)), isBigEndian);
+    }
+
+    /* A DataOutput in either byte order that closes its stream */
+    private static class DataOutputCloser implements Closeable {
+        final DataOutput out;
+        private final OutputStream stream;
+
+        DataOutputCloser(OutputStream stream, boolean isBigEndian) {
+            this.stream = stream;
+            out = isBigEndian ? new DataOutputStream(stream) : new LittleEndianDataOutputStream(stream);
+        }
+
+        @Override
+        public void close() throws IOException {
+            stream.close();
+        }
+    }
+}
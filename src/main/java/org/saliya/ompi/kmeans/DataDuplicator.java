@@ -73,7 +73,7 @@ public class DataDuplicator {
                     tmp[j] = inStream.readDouble();
                 }
                 for (int k = 0; k < x; ++k) {
-                    for (int j = 0; j < d; ++d) {
+                    for (int j = 0; j < d; ++j) {
                         outStream.writeDouble(tmp[j]);
                     }
                 }
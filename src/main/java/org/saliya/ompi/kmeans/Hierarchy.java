@@ -0,0 +1,258 @@
+package org.saliya.ompi.kmeans;
+
+import mpi.MPIException;
+import org.saliya.ompi.kmeans.comm.Communicator;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Two level partition of the centers for very large k. Fine centers are
+ * grouped under their nearest coarse center, and a point only searches the
+ * fine centers of the groups of its nearest coarse centers (probes). Coarse
+ * centers without any fine center are left out, so every probe has
+ * candidates.
+ *
+ * Points are looked up independently of each other, so any range of points
+ * can be assigned by any thread or rank, as with the flat kernels.
+ *
+ * {@link #train} runs the two levels: coarse centers first, over all points,
+ * then the fine centers searched through the groups. Flat Lloyd iterations
+ * may refine the result afterwards.
+ */
+public class Hierarchy {
+    private final int dimension;
+    private final int numGroups;
+    private final int probes;
+    // Coarse centers of the non empty groups
+    private final double[] coarseCenters;
+    // Fine centers of group g are groupCenters[groupStart[g] .. groupStart[g+1])
+    private final int[] groupStart;
+    private final int[] groupCenters;
+
+    /**
+     * @param probes number of nearest coarse centers whose fine centers a point searches
+     */
+    public Hierarchy(double[] coarseCenters, int numCoarse, double[] fineCenters, int numFine, int dimension,
+                     int probes) {
+        this.dimension = dimension;
+        int[] nearestCoarse = IntStream.range(0, numFine).parallel().map(
+                c -> nearest(fineCenters, c * dimension, coarseCenters, numCoarse, dimension)).toArray();
+        int[] sizes = new int[numCoarse];
+        int grouped = 0;
+        for (int c = 0; c < numFine; ++c) {
+            // None for a center that lost all its points, it can't be nearest to any point either
+            if (nearestCoarse[c] < 0) continue;
+            ++sizes[nearestCoarse[c]];
+            ++grouped;
+        }
+        int[] group = new int[numCoarse];
+        int groups = 0;
+        for (int g = 0; g < numCoarse; ++g) {
+            group[g] = sizes[g] > 0 ? groups++ : -1;
+        }
+        numGroups = groups;
+        this.probes = Math.min(probes, numGroups);
+
+        this.coarseCenters = new double[numGroups * dimension];
+        groupStart = new int[numGroups + 1];
+        for (int g = 0; g < numCoarse; ++g) {
+            if (group[g] < 0) continue;
+            System.arraycopy(coarseCenters, g * dimension, this.coarseCenters, group[g] * dimension, dimension);
+            groupStart[group[g] + 1] = sizes[g];
+        }
+        for (int g = 0; g < numGroups; ++g) {
+            groupStart[g + 1] += groupStart[g];
+        }
+        groupCenters = new int[grouped];
+        int[] next = new int[numGroups];
+        // Fine centers stay in increasing order within a group
+        for (int c = 0; c < numFine; ++c) {
+            if (nearestCoarse[c] < 0) continue;
+            int g = group[nearestCoarse[c]];
+            groupCenters[groupStart[g] + next[g]++] = c;
+        }
+    }
+
+    /**
+     * Collective call. Runs K-Means with numCoarse of the centers spread out
+     * over them, then with all of them searched through the groups of the
+     * coarse centers. The fine centers are grouped again before every
+     * iteration, as they move. Updates centers in place and leaves lloyd
+     * without a hierarchy.
+     */
+    public static void train(Lloyd lloyd, double[] centers, int numCenters, int dimension, int numCoarse, int probes,
+                             double errorThreshold, int maxIterations, int numThreads) throws MPIException {
+        long start = System.nanoTime();
+        double[] coarseCenters = spreadOut(centers, numCenters, dimension, numCoarse);
+        lloyd.reset();
+        boolean[] converged = new boolean[1];
+        int itrCount = iterate(lloyd, coarseCenters, numCoarse, errorThreshold, maxIterations, numThreads, converged);
+        print("    Level 1: " + numCoarse + " coarse centers, " + itrCount + " iterations in " + wallMs(start) +
+                " ms, " + convergence(converged[0], maxIterations));
+
+        start = System.nanoTime();
+        Hierarchy hierarchy = new Hierarchy(coarseCenters, numCoarse, centers, numCenters, dimension, probes);
+        lloyd.setHierarchy(hierarchy);
+        lloyd.reset();
+        IterationMetrics metrics = new IterationMetrics(maxIterations, numThreads);
+        itrCount = 0;
+        converged[0] = false;
+        while (!converged[0] && itrCount < maxIterations) {
+            if (itrCount > 0) {
+                // Groups of where the fine centers are now, not where they started
+                hierarchy = new Hierarchy(coarseCenters, numCoarse, centers, numCenters, dimension, probes);
+                lloyd.setHierarchy(hierarchy);
+            }
+            converged[0] = !(lloyd.iterate(centers, numCenters, itrCount, metrics) > errorThreshold);
+            ++itrCount;
+        }
+        lloyd.setHierarchy(null);
+        print("    Level 2: " + numCenters + " fine centers in " + hierarchy.getNumGroups() + " groups (largest " +
+                hierarchy.getLargestGroup() + "), " + hierarchy.probes + " groups searched per point, " + itrCount +
+                " iterations in " + wallMs(start) + " ms, " + convergence(converged[0], maxIterations));
+    }
+
+    /**
+     * Farthest first traversal of the centers, starting from the first one.
+     * Same on every rank, as the centers are.
+     *
+     * @return count of the centers, each the farthest from those picked before it
+     */
+    static double[] spreadOut(double[] centers, int numCenters, int dimension, int count) {
+        double[] picked = new double[count * dimension];
+        double[] dists = new double[numCenters];
+        Arrays.fill(dists, Double.MAX_VALUE);
+        int next = 0;
+        for (int i = 0; i < count; ++i) {
+            System.arraycopy(centers, next * dimension, picked, i * dimension, dimension);
+            int last = next;
+            double dMax = -1.0;
+            for (int c = 0; c < numCenters; ++c) {
+                dists[c] = Math.min(dists[c], Program.getEuclideanDistance(centers, centers, dimension,
+                        c * dimension, last * dimension));
+                if (dists[c] > dMax) {
+                    dMax = dists[c];
+                    next = c;
+                }
+            }
+        }
+        return picked;
+    }
+
+    /* Iterations run, with converged[0] set if the centers moved no more than errorThreshold at the end */
+    private static int iterate(Lloyd lloyd, double[] centers, int numCenters, double errorThreshold,
+                               int maxIterations, int numThreads, boolean[] converged) throws MPIException {
+        IterationMetrics metrics = new IterationMetrics(maxIterations, numThreads);
+        int itrCount = 0;
+        converged[0] = false;
+        while (!converged[0] && itrCount < maxIterations) {
+            converged[0] = !(lloyd.iterate(centers, numCenters, itrCount, metrics) > errorThreshold);
+            ++itrCount;
+        }
+        return itrCount;
+    }
+
+    private static String convergence(boolean converged, int maxIterations) {
+        return converged ? "converged" : "stopped at the max iteration count " + maxIterations;
+    }
+
+    private static double wallMs(long start) throws MPIException {
+        double[] ms = new double[]{(System.nanoTime() - start) * 1e-6};
+        if (ParallelOps.worldProcsCount > 1) {
+            ParallelOps.worldProcsComm.allReduce(ms, 1, Communicator.Op.MAX);
+        }
+        return ms[0];
+    }
+
+    private static void print(String msg) {
+        if (ParallelOps.worldProcRank == 0) {
+            System.out.println(msg);
+        }
+    }
+
+    public int getNumGroups() {
+        return numGroups;
+    }
+
+    public int getLargestGroup() {
+        int largest = 0;
+        for (int g = 0; g < numGroups; ++g) {
+            largest = Math.max(largest, groupStart[g + 1] - groupStart[g]);
+        }
+        return largest;
+    }
+
+    /**
+     * Same contract as the range kernel Program.findNearesetCenters, with
+     * each point searching the fine centers under its probes only
+     *
+     * @return number of points whose cluster assignment changed
+     */
+    public int assign(double[] points, int pointsOffset, int count, double[] centers, double[] centerSumsAndCounts,
+                      int sumsOffset, int[] clusterAssignments, int assignmentsOffset) {
+        int[] probeGroups = new int[probes];
+        double[] probeDists = new double[probes];
+        int moved = 0;
+        for (int i = 0; i < count; ++i) {
+            int pointOffset = pointsOffset + i * dimension;
+            nearestGroups(points, pointOffset, probeGroups, probeDists);
+
+            double dMin = Double.MAX_VALUE;
+            int dMinIdx = -1;
+            for (int p = 0; p < probes; ++p) {
+                int g = probeGroups[p];
+                for (int q = groupStart[g]; q < groupStart[g + 1]; ++q) {
+                    int c = groupCenters[q];
+                    double dist = Program.getEuclideanDistance(points, centers, dimension, pointOffset,
+                            c * dimension);
+                    // Lowest index wins ties, as with a plain scan
+                    if (dist < dMin || (dist == dMin && c < dMinIdx)) {
+                        dMin = dist;
+                        dMinIdx = c;
+                    }
+                }
+            }
+
+            int centerOffset = sumsOffset + dMinIdx * (dimension + 1);
+            ++centerSumsAndCounts[centerOffset + dimension];
+            Program.accumulate(points, centerSumsAndCounts, pointOffset, centerOffset, dimension);
+            int idx = assignmentsOffset + i;
+            if (clusterAssignments[idx] != dMinIdx) {
+                ++moved;
+            }
+            clusterAssignments[idx] = dMinIdx;
+        }
+        return moved;
+    }
+
+    /* The probes nearest groups, nearest first, by insertion into a short sorted list */
+    private void nearestGroups(double[] points, int pointOffset, int[] probeGroups, double[] probeDists) {
+        int found = 0;
+        for (int g = 0; g < numGroups; ++g) {
+            double dist = Program.getEuclideanDistance(points, coarseCenters, dimension, pointOffset, g * dimension);
+            if (found == probes && !(dist < probeDists[probes - 1])) continue;
+            int p = found < probes ? found++ : probes - 1;
+            while (p > 0 && dist < probeDists[p - 1]) {
+                probeDists[p] = probeDists[p - 1];
+                probeGroups[p] = probeGroups[p - 1];
+                --p;
+            }
+            probeDists[p] = dist;
+            probeGroups[p] = g;
+        }
+    }
+
+    private static int nearest(double[] points, int pointOffset, double[] centers, int numCenters, int dimension) {
+        double dMin = Double.MAX_VALUE;
+        int dMinIdx = -1;
+        for (int c = 0; c < numCenters; ++c) {
+            double dist = Program.getEuclideanDistance(points, centers, dimension, pointOffset, c * dimension);
+            if (dist < dMin) {
+                dMin = dist;
+                dMinIdx = c;
+            }
+        }
+        return dMinIdx;
+    }
+}
@@ -0,0 +1,307 @@
+package org.saliya.ompi.kmeans;
+
+import mpi.MPIException;
+import org.saliya.ompi.kmeans.comm.Communicator;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Per iteration timings and counters. Values are only recorded locally while
+ * iterating, and aggregated across ranks once at the end with one MIN, one MAX
+ * and one SUM reduction over packed arrays.
+ */
+public class IterationMetrics {
+    private static final String[] COLUMNS = new String[]{
+            "iteration", "computeMinMs", "computeMaxMs", "computeMeanMs", "threadImbalance", "rankImbalance",
+            "reductionMaxMs", "reductionMeanMs", "allReduceLocalMaxMs", "allReduceLocalMeanMs",
+            "allReduceInterNodeMaxMs", "allReduceInterNodeMeanMs", "pointsMoved", "centerShift", "rechecks"};
+
+    // Fields of the packed arrays, per iteration
+    private static final int MIN_COMPUTE = 0, MIN_RANK_TIME = 1, MIN_FIELDS = 2;
+    private static final int MAX_COMPUTE = 0, MAX_RANK_TIME = 1, MAX_THREAD_IMBALANCE = 2, MAX_REDUCTION = 3,
+            MAX_LOCAL = 4, MAX_INTER_NODE = 5, MAX_FIELDS = 6;
+    // Only in the slot of the totals
+    private static final int MAX_FIRST_ITERATION = MAX_THREAD_IMBALANCE;
+    private static final int SUM_COMPUTE = 0, SUM_REDUCTION = 1, SUM_LOCAL = 2, SUM_INTER_NODE = 3,
+            SUM_MOVED = 4, SUM_RECHECKS = 5, SUM_FIELDS = 6;
+
+    private final int numThreads;
+    private int iterations = 0;
+    // Iterations before this were done by an earlier run, see startAt()
+    private int first = 0;
+
+    private final double[] threadComputeMs;
+    private final double[] threadReductionMs;
+    private final double[] allReduceLocalMs;
+    private final double[] allReduceInterNodeMs;
+    private final double[] movedPoints;
+    private final double[] centerShift;
+    private final double[] rechecks;
+
+    // Filled by aggregate()
+    private double[] min;
+    private double[] max;
+    private double[] sum;
+    private double overallMinThreadMs;
+    private double overallMaxThreadMs;
+    private double overallMinRankMs;
+    private double overallMaxRankMs;
+    private double firstIterationMs;
+    private int procs;
+
+    public IterationMetrics(int maxIterations, int numThreads) {
+        this.numThreads = numThreads;
+        threadComputeMs = new double[maxIterations * numThreads];
+        threadReductionMs = new double[maxIterations];
+        allReduceLocalMs = new double[maxIterations];
+        allReduceInterNodeMs = new double[maxIterations];
+        movedPoints = new double[maxIterations];
+        centerShift = new double[maxIterations];
+        rechecks = new double[maxIterations];
+    }
+
+    /* Iterations are zero based */
+
+    public void threadCompute(int itr, int threadIdx, double ms) {
+        threadComputeMs[itr * numThreads + threadIdx] = ms;
+    }
+
+    /* The slowest thread decides when a rank is done with an iteration */
+    public double slowestThreadMs(int itr) {
+        double max = 0.0;
+        for (int t = 0; t < numThreads; ++t) {
+            max = Math.max(max, threadComputeMs[itr * numThreads + t]);
+        }
+        return max;
+    }
+
+    public void threadReduction(int itr, double ms) {
+        threadReductionMs[itr] = ms;
+    }
+
+    public void allReduce(int itr, double localMs, double interNodeMs) {
+        allReduceLocalMs[itr] = localMs;
+        allReduceInterNodeMs[itr] = interNodeMs;
+    }
+
+    public void pointsMoved(int itr, long count) {
+        movedPoints[itr] = count;
+    }
+
+    /* Points the float engine re-checked in double, see MixedPrecision */
+    public void rechecks(int itr, long count) {
+        rechecks[itr] = count;
+    }
+
+    public void centerShift(int itr, double shift) {
+        centerShift[itr] = shift;
+    }
+
+    /**
+     * Resumed runs start at the iteration of the checkpoint
+     */
+    public void startAt(int itr) {
+        first = itr;
+        iterations = itr;
+    }
+
+    /**
+     * Time from start up to the end of the first iteration of this rank
+     */
+    public void timeToFirstIteration(double ms) {
+        firstIterationMs = ms;
+    }
+
+    public void endIteration(int itr) {
+        iterations = itr + 1;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * Collective call over the world communicator. Results are valid on rank 0.
+     */
+    public void aggregate() throws MPIException {
+        procs = ParallelOps.worldProcsCount;
+        // One extra slot at the end for the totals over all iterations
+        min = new double[(iterations + 1) * MIN_FIELDS];
+        max = new double[(iterations + 1) * MAX_FIELDS];
+        sum = new double[iterations * SUM_FIELDS];
+
+        double[] threadTotals = new double[numThreads];
+        double rankTotal = 0.0;
+        for (int i = first; i < iterations; ++i) {
+            double tMin = Double.MAX_VALUE, tMax = 0.0, tSum = 0.0;
+            for (int t = 0; t < numThreads; ++t) {
+                double ms = threadComputeMs[i * numThreads + t];
+                tMin = Math.min(tMin, ms);
+                tMax = Math.max(tMax, ms);
+                tSum += ms;
+                threadTotals[t] += ms;
+            }
+            // The slowest thread decides when a rank is done with an iteration
+            rankTotal += tMax;
+
+            min[i * MIN_FIELDS + MIN_COMPUTE] = tMin;
+            min[i * MIN_FIELDS + MIN_RANK_TIME] = tMax;
+            max[i * MAX_FIELDS + MAX_COMPUTE] = tMax;
+            max[i * MAX_FIELDS + MAX_RANK_TIME] = tMax;
+            max[i * MAX_FIELDS + MAX_THREAD_IMBALANCE] = ratio(tMax, tMin);
+            max[i * MAX_FIELDS + MAX_REDUCTION] = threadReductionMs[i];
+            max[i * MAX_FIELDS + MAX_LOCAL] = allReduceLocalMs[i];
+            max[i * MAX_FIELDS + MAX_INTER_NODE] = allReduceInterNodeMs[i];
+            sum[i * SUM_FIELDS + SUM_COMPUTE] = tSum;
+            sum[i * SUM_FIELDS + SUM_REDUCTION] = threadReductionMs[i];
+            sum[i * SUM_FIELDS + SUM_LOCAL] = allReduceLocalMs[i];
+            sum[i * SUM_FIELDS + SUM_INTER_NODE] = allReduceInterNodeMs[i];
+            sum[i * SUM_FIELDS + SUM_MOVED] = movedPoints[i];
+            sum[i * SUM_FIELDS + SUM_RECHECKS] = rechecks[i];
+        }
+        int last = iterations;
+        min[last * MIN_FIELDS + MIN_COMPUTE] = Arrays.stream(threadTotals).min().orElse(0.0);
+        min[last * MIN_FIELDS + MIN_RANK_TIME] = rankTotal;
+        max[last * MAX_FIELDS + MAX_COMPUTE] = Arrays.stream(threadTotals).max().orElse(0.0);
+        max[last * MAX_FIELDS + MAX_RANK_TIME] = rankTotal;
+        max[last * MAX_FIELDS + MAX_FIRST_ITERATION] = firstIterationMs;
+
+        if (procs > 1) {
+            ParallelOps.worldProcsComm.reduce(min, min.length, Communicator.Op.MIN, 0);
+            ParallelOps.worldProcsComm.reduce(max, max.length, Communicator.Op.MAX, 0);
+            ParallelOps.worldProcsComm.reduce(sum, sum.length, Communicator.Op.SUM, 0);
+        }
+        overallMinThreadMs = min[last * MIN_FIELDS + MIN_COMPUTE];
+        overallMinRankMs = min[last * MIN_FIELDS + MIN_RANK_TIME];
+        overallMaxThreadMs = max[last * MAX_FIELDS + MAX_COMPUTE];
+        overallMaxRankMs = max[last * MAX_FIELDS + MAX_RANK_TIME];
+        firstIterationMs = max[last * MAX_FIELDS + MAX_FIRST_ITERATION];
+    }
+
+    /* Slowest rank's, after aggregate() */
+    public double timeToFirstIterationMs() {
+        return firstIterationMs;
+    }
+
+    /* Max/min over all threads of all ranks, using compute times summed over iterations */
+    public double threadImbalance() {
+        return ratio(overallMaxThreadMs, overallMinThreadMs);
+    }
+
+    /* Max/min over ranks of the per rank critical path, i.e. slowest thread per iteration */
+    public double rankImbalance() {
+        return ratio(overallMaxRankMs, overallMinRankMs);
+    }
+
+    public double totalAllReduceMs(boolean interNode) {
+        double total = 0.0;
+        for (int i = first; i < iterations; ++i) {
+            total += sum[i * SUM_FIELDS + (interNode ? SUM_INTER_NODE : SUM_LOCAL)];
+        }
+        return total / procs;
+    }
+
+    public double totalRechecks() {
+        double total = 0.0;
+        for (int i = first; i < iterations; ++i) {
+            total += sum[i * SUM_FIELDS + SUM_RECHECKS];
+        }
+        return total;
+    }
+
+    private double[] row(int i) {
+        int threads = procs * numThreads;
+        return new double[]{
+                i + 1,
+                min[i * MIN_FIELDS + MIN_COMPUTE],
+                max[i * MAX_FIELDS + MAX_COMPUTE],
+                sum[i * SUM_FIELDS + SUM_COMPUTE] / threads,
+                max[i * MAX_FIELDS + MAX_THREAD_IMBALANCE],
+                ratio(max[i * MAX_FIELDS + MAX_RANK_TIME], min[i * MIN_FIELDS + MIN_RANK_TIME]),
+                max[i * MAX_FIELDS + MAX_REDUCTION],
+                sum[i * SUM_FIELDS + SUM_REDUCTION] / procs,
+                max[i * MAX_FIELDS + MAX_LOCAL],
+                sum[i * SUM_FIELDS + SUM_LOCAL] / procs,
+                max[i * MAX_FIELDS + MAX_INTER_NODE],
+                sum[i * SUM_FIELDS + SUM_INTER_NODE] / procs,
+                sum[i * SUM_FIELDS + SUM_MOVED],
+                centerShift[i],
+                sum[i * SUM_FIELDS + SUM_RECHECKS]};
+    }
+
+    /**
+     * Writes CSV if the file name ends with .csv and JSON otherwise.
+     * Call on rank 0 after aggregate().
+     *
+     * @param engine assignment engine the iterations ran with
+     */
+    public void write(String file, int n, int d, int k, String engine) throws IOException {
+        try (PrintWriter writer = new PrintWriter(
+                Files.newBufferedWriter(Paths.get(file), Charset.defaultCharset(), StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))) {
+            if (file.toLowerCase().endsWith(".csv")) {
+                writeCsv(writer, engine);
+            } else {
+                writeJson(writer, n, d, k, engine);
+            }
+        }
+    }
+
+    private void writeCsv(PrintWriter writer, String engine) {
+        writer.println(String.join(",", COLUMNS) + ",engine");
+        for (int i = first; i < iterations; ++i) {
+            double[] row = row(i);
+            StringBuilder sb = new StringBuilder();
+            for (int c = 0; c < row.length; ++c) {
+                if (c > 0) sb.append(',');
+                sb.append(format(c, row[c]));
+            }
+            sb.append(',').append(engine);
+            writer.println(sb);
+        }
+    }
+
+    private void writeJson(PrintWriter writer, int n, int d, int k, String engine) {
+        writer.println("{");
+        writer.println("  \"n\": " + n + ", \"d\": " + d + ", \"k\": " + k + ", \"engine\": \"" + engine +
+                "\", \"procs\": " + procs + ", \"threads\": " + numThreads + ", \"iterations\": " + iterations +
+                ", \"firstIteration\": " + (first + 1) + ",");
+        writer.println("  \"summary\": {\"threadImbalance\": " + json(threadImbalance()) + ", \"rankImbalance\": " +
+                json(rankImbalance()) + ", \"computeMinMs\": " + json(overallMinThreadMs) + ", \"computeMaxMs\": " +
+                json(overallMaxThreadMs) + ", \"allReduceLocalMeanMs\": " + json(totalAllReduceMs(false)) +
+                ", \"allReduceInterNodeMeanMs\": " + json(totalAllReduceMs(true)) +
+                ", \"timeToFirstIterationMs\": " + json(firstIterationMs) + "},");
+        writer.println("  \"perIteration\": [");
+        for (int i = first; i < iterations; ++i) {
+            double[] row = row(i);
+            StringBuilder sb = new StringBuilder("    {");
+            for (int c = 0; c < row.length; ++c) {
+                if (c > 0) sb.append(", ");
+                sb.append('"').append(COLUMNS[c]).append("\": ").append(format(c, row[c]));
+            }
+            sb.append(i < iterations - 1 ? "}," : "}");
+            writer.println(sb);
+        }
+        writer.println("  ]");
+        writer.println("}");
+    }
+
+    private static String format(int column, double value) {
+        // iteration, pointsMoved and rechecks are counts
+        return (column == 0 || column == 12 || column == 14) ? Long.toString((long) value) : json(value);
+    }
+
+    private static String json(double value) {
+        return Double.isFinite(value) ? Double.toString(value) : "null";
+    }
+
+    private static double ratio(double max, double min) {
+        return min > 0.0 ? max / min : Double.NaN;
+    }
+}
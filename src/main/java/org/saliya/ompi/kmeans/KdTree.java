@@ -0,0 +1,275 @@
+package org.saliya.ompi.kmeans;
+
+/**
+ * Kd-tree over a contiguous range of points for the filtering algorithm of
+ * Kanungo et al. (An Efficient k-Means Clustering Algorithm: Analysis and
+ * Implementation, 2002).
+ *
+ * Every node keeps the bounding box, the sum and the count of its points.
+ * Candidate centers are pushed down from the root, dropping those that are
+ * further than the center closest to the cell's midpoint from every point of
+ * the cell. Once a single candidate is left the whole cell goes to it, adding
+ * the precomputed cell sum in one step. Leaves compare their points with the
+ * remaining candidates only.
+ *
+ * Pruning keeps a small margin, so labels are the same as those of
+ * {@link Program#findCenterWithMinDistance}. Only the order in which
+ * coordinates are summed differs.
+ */
+public class KdTree {
+    private static final int LEAF_SIZE = 8;
+    // Relative slack on pruning so rounding in the point distances can't flip a near tie
+    private static final double MARGIN = 1e-9;
+
+    private final int dimension;
+    private final double[] points;
+    // Offset of the first point of the range within points
+    private final int pointsOffset;
+
+    // Indices of the points within the range, ordered so every node covers a contiguous part
+    private final int[] perm;
+
+    private int nodeCount;
+    private int[] lo;
+    private int[] hi;
+    private int[] left;
+    private int[] right;
+    private double[] boxMin;
+    private double[] boxMax;
+    private double[] sums;
+    private int maxDepth;
+
+    public KdTree(double[] points, int pointsOffset, int count, int dimension) {
+        this.points = points;
+        this.pointsOffset = pointsOffset;
+        this.dimension = dimension;
+        perm = new int[count];
+        for (int i = 0; i < count; ++i) {
+            perm[i] = i;
+        }
+        // Median splits of nodes just over LEAF_SIZE leave leaves of at least half of it
+        int capacity = 2 * (count / (LEAF_SIZE / 2) + 1);
+        lo = new int[capacity];
+        hi = new int[capacity];
+        left = new int[capacity];
+        right = new int[capacity];
+        boxMin = new double[capacity * dimension];
+        boxMax = new double[capacity * dimension];
+        sums = new double[capacity * dimension];
+        if (count > 0) {
+            build(0, count, 1);
+        }
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Per thread scratch for {@link #assign}, one candidate list per tree level
+     */
+    public static int[][] newCandidates(int maxDepth) {
+        return new int[maxDepth + 1][];
+    }
+
+    /**
+     * Assigns the points of the tree and adds them to the centers' sums and counts.
+     *
+     * @param centerSumsAndCounts layout as in Program, sums of center c start at sumsOffset + c*(dimension+1)
+     * @param clusterAssignments  label of point i of the range goes to assignmentsOffset + i
+     * @return number of points whose cluster assignment changed
+     */
+    public int assign(double[] centers, int numCenters, double[] centerSumsAndCounts, int sumsOffset,
+                      int[] clusterAssignments, int assignmentsOffset, int[][] candidates) {
+        if (perm.length == 0) return 0;
+        int[] all = candidates(candidates, 0, numCenters);
+        for (int c = 0; c < numCenters; ++c) {
+            all[c] = c;
+        }
+        return filter(0, 0, numCenters, centers, centerSumsAndCounts, sumsOffset, clusterAssignments,
+                assignmentsOffset, candidates);
+    }
+
+    private int filter(int node, int level, int candidateCount, double[] centers, double[] centerSumsAndCounts,
+                       int sumsOffset, int[] clusterAssignments, int assignmentsOffset, int[][] candidates) {
+        int[] cand = candidates[level];
+        if (left[node] < 0) {
+            return assignLeaf(node, cand, candidateCount, centers, centerSumsAndCounts, sumsOffset,
+                    clusterAssignments, assignmentsOffset);
+        }
+
+        // Candidate closest to the midpoint of the cell
+        int box = node * dimension;
+        int closest = cand[0];
+        double closestDist = Double.MAX_VALUE;
+        for (int i = 0; i < candidateCount; ++i) {
+            int c = cand[i];
+            double dist = 0.0;
+            for (int j = 0; j < dimension; ++j) {
+                double diff = (boxMin[box + j] + boxMax[box + j]) * 0.5 - centers[c * dimension + j];
+                dist += diff * diff;
+            }
+            if (dist < closestDist) {
+                closestDist = dist;
+                closest = c;
+            }
+        }
+
+        // Keeps the candidates in increasing order, as the leaves rely on it for ties
+        int[] next = candidates(candidates, level + 1, candidateCount);
+        int nextCount = 0;
+        for (int i = 0; i < candidateCount; ++i) {
+            int c = cand[i];
+            if (c == closest || !isFarther(c, closest, box, centers)) {
+                next[nextCount++] = c;
+            }
+        }
+
+        if (nextCount == 1) {
+            // Whole cell goes to the one center left
+            int centerOffset = sumsOffset + closest * (dimension + 1);
+            for (int j = 0; j < dimension; ++j) {
+                centerSumsAndCounts[centerOffset + j] += sums[node * dimension + j];
+            }
+            centerSumsAndCounts[centerOffset + dimension] += hi[node] - lo[node];
+            int moved = 0;
+            for (int p = lo[node]; p < hi[node]; ++p) {
+                int idx = assignmentsOffset + perm[p];
+                if (clusterAssignments[idx] != closest) {
+                    ++moved;
+                }
+                clusterAssignments[idx] = closest;
+            }
+            return moved;
+        }
+        return filter(left[node], level + 1, nextCount, centers, centerSumsAndCounts, sumsOffset,
+                clusterAssignments, assignmentsOffset, candidates) +
+                filter(right[node], level + 1, nextCount, centers, centerSumsAndCounts, sumsOffset,
+                        clusterAssignments, assignmentsOffset, candidates);
+    }
+
+    /**
+     * True if center z is further than center best from every point of the
+     * cell. The squared distance difference is linear in the point, so it's
+     * enough to check the corner of the box furthest in the direction of z.
+     */
+    private boolean isFarther(int z, int best, int box, double[] centers) {
+        double distZ = 0.0, distBest = 0.0, diagonal = 0.0;
+        for (int j = 0; j < dimension; ++j) {
+            double zj = centers[z * dimension + j];
+            double bj = centers[best * dimension + j];
+            double v = zj > bj ? boxMax[box + j] : boxMin[box + j];
+            distZ += (v - zj) * (v - zj);
+            distBest += (v - bj) * (v - bj);
+            double extent = boxMax[box + j] - boxMin[box + j];
+            diagonal += extent * extent;
+        }
+        return distZ - distBest > MARGIN * (distZ + distBest + diagonal);
+    }
+
+    private int assignLeaf(int node, int[] cand, int candidateCount, double[] centers, double[] centerSumsAndCounts,
+                           int sumsOffset, int[] clusterAssignments, int assignmentsOffset) {
+        int moved = 0;
+        for (int p = lo[node]; p < hi[node]; ++p) {
+            int pointOffset = pointsOffset + perm[p] * dimension;
+            double dMin = Double.MAX_VALUE;
+            int dMinIdx = -1;
+            for (int i = 0; i < candidateCount; ++i) {
+                int c = cand[i];
+                double dist = Program.getEuclideanDistance(points, centers, dimension, pointOffset, c * dimension);
+                if (dist < dMin) {
+                    dMin = dist;
+                    dMinIdx = c;
+                }
+            }
+            int centerOffset = sumsOffset + dMinIdx * (dimension + 1);
+            ++centerSumsAndCounts[centerOffset + dimension];
+            Program.accumulate(points, centerSumsAndCounts, pointOffset, centerOffset, dimension);
+            int idx = assignmentsOffset + perm[p];
+            if (clusterAssignments[idx] != dMinIdx) {
+                ++moved;
+            }
+            clusterAssignments[idx] = dMinIdx;
+        }
+        return moved;
+    }
+
+    private static int[] candidates(int[][] candidates, int level, int size) {
+        if (candidates[level] == null || candidates[level].length < size) {
+            candidates[level] = new int[size];
+        }
+        return candidates[level];
+    }
+
+    private int build(int from, int to, int depth) {
+        int node = nodeCount++;
+        maxDepth = Math.max(maxDepth, depth);
+        lo[node] = from;
+        hi[node] = to;
+        left[node] = -1;
+        right[node] = -1;
+
+        int box = node * dimension;
+        for (int j = 0; j < dimension; ++j) {
+            boxMin[box + j] = Double.MAX_VALUE;
+            boxMax[box + j] = -Double.MAX_VALUE;
+        }
+        for (int p = from; p < to; ++p) {
+            int pointOffset = pointsOffset + perm[p] * dimension;
+            for (int j = 0; j < dimension; ++j) {
+                double x = points[pointOffset + j];
+                if (x < boxMin[box + j]) boxMin[box + j] = x;
+                if (x > boxMax[box + j]) boxMax[box + j] = x;
+                sums[box + j] += x;
+            }
+        }
+        if (to - from <= LEAF_SIZE) return node;
+
+        // Split the widest side at the median
+        int split = 0;
+        for (int j = 1; j < dimension; ++j) {
+            if (boxMax[box + j] - boxMin[box + j] > boxMax[box + split] - boxMin[box + split]) {
+                split = j;
+            }
+        }
+        if (!(boxMax[box + split] > boxMin[box + split])) {
+            // All points are the same
+            return node;
+        }
+        int mid = (from + to) >>> 1;
+        select(from, to - 1, mid, split);
+        left[node] = build(from, mid, depth + 1);
+        right[node] = build(mid, to, depth + 1);
+        return node;
+    }
+
+    private double coordinate(int p, int j) {
+        return points[pointsOffset + perm[p] * dimension + j];
+    }
+
+    /* Quickselect on perm[from..to] so perm[k] holds the k-th point along dimension j */
+    private void select(int from, int to, int k, int j) {
+        while (to > from) {
+            double pivot = coordinate((from + to) >>> 1, j);
+            int i = from, r = to;
+            while (i <= r) {
+                while (coordinate(i, j) < pivot) ++i;
+                while (coordinate(r, j) > pivot) --r;
+                if (i <= r) {
+                    int tmp = perm[i];
+                    perm[i] = perm[r];
+                    perm[r] = tmp;
+                    ++i;
+                    --r;
+                }
+            }
+            if (k <= r) {
+                to = r;
+            } else if (k >= i) {
+                from = i;
+            } else {
+                return;
+            }
+        }
+    }
+}
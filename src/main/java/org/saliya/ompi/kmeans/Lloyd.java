@@ -0,0 +1,864 @@
+package org.saliya.ompi.kmeans;
+
+import mpi.MPIException;
+import net.openhft.affinity.Affinity;
+import org.saliya.ompi.kmeans.comm.Communicator;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.stream.LongStream;
+
+import static edu.rice.hj.Module0.launchHabaneroApp;
+import static edu.rice.hj.Module1.forallChunked;
+
+/**
+ * One Lloyd iteration over the points of this rank: assign the points to
+ * their nearest centers with all threads, sum over threads and ranks, and
+ * move the centers. Accumulators are sized for up to maxCenters, so the same
+ * instance can run any k up to that over the loaded points.
+ *
+ * Points are assigned by comparing each with every center, by filtering with
+ * kd-trees ({@link KdTree}) over each thread's range, one tree per chunk with
+ * dynamic scheduling, by abandoning centers early on partial distances
+ * ({@link PartialDistance}), or with float distances re-checked in double
+ * where they are too close to call ({@link MixedPrecision}), or approximately
+ * by product quantized centers for very large k ({@link ProductQuantizer}),
+ * the only engine whose labels may differ from brute force, or by ruling
+ * out centers on distances in a random projection ({@link RandomProjection}).
+ * Trees, float copies and projections depend on the points only, and are
+ * built by the threads owning them before the first iteration that needs them.
+ * With a {@link Hierarchy} set, points search only part of the centers instead.
+ * With a {@link PointStream} set, points aren't kept in memory and each thread
+ * assigns its slice of every window of the stream in turn instead. With
+ * {@link SparsePoints} set, threads assign their ranges of those rows instead.
+ * With weights set, a point counts as many times as its weight towards its
+ * center, see {@link DataDeduplicator}. Other {@link Metric}s than euclidean
+ * assign with their own brute force kernels.
+ */
+public class Lloyd {
+    public static final String ENGINE_AUTO = "auto";
+    public static final String ENGINE_BRUTE = "brute";
+    public static final String ENGINE_KDTREE = "kdtree";
+    public static final String ENGINE_PARTIAL = "partial";
+    // Never picked by auto, it pays off once the double kernels are bound by memory bandwidth
+    public static final String ENGINE_FLOAT = "float";
+    // Approximate, never picked by auto either
+    public static final String ENGINE_PQ = "pq";
+    public static final int PQ_DEFAULT_RERANK = 16;
+    public static final String ENGINE_PROJECTION = "projection";
+    // Filtering stops paying off past a handful of dimensions as cells overlap most centers
+    public static final int KDTREE_MAX_DIMENSION = 8;
+    // Below this a whole distance costs about as much as checking partial ones, see PartialDistanceBenchmark
+    public static final int PARTIAL_MIN_DIMENSION = 16;
+
+    private final int dimension;
+    private final int numThreads;
+    private final boolean bind;
+    private final BitSet[] threadBitSets;
+
+    // See Program.run(), points of thread t start at threadPointOffsets[t] within threadPoints[t]
+    final double[][] threadPoints;
+    final int[] threadPointOffsets;
+    // Both are replaced when points move between ranks
+    ChunkScheduler scheduler;
+    int[] clusterAssignments;
+
+    private final double[] centerSumsAndCountsForThread;
+    // Per thread accumulators for dynamic scheduling, allocated by the (pinned) workers
+    // themselves so they are first touched on the worker's NUMA node
+    private final double[][] threadSums;
+    private final int maxCenters;
+
+    private final long[] threadPointsMoved;
+    final double[] threadComputTimes;
+
+    private final String engine;
+    private final boolean kdTree;
+    // Centers in PartialDistance's layout, refreshed every iteration
+    private final double[] blockedCenters;
+    // Float copies of each thread's range and of the centers, see MixedPrecision
+    private MixedPrecision[] floatPoints;
+    private final float[] floatCenters;
+    private double maxCenterNorm;
+    private final float[][] threadDistances;
+    // Kahan compensation of each thread's sums, null unless enabled
+    private double[][] threadCompensations;
+    // Centers coded again every iteration, with the tables and candidates of each thread
+    private ProductQuantizer quantizer;
+    private final double[][] threadTables;
+    private final int[][] threadRerank;
+    private final double[][] threadRerankDistances;
+    double quantizeMs;
+    // Projections of each thread's range and of the centers, see RandomProjection
+    private RandomProjection projection;
+    private double[][] projectedPoints;
+    private final double[] projectedCenters;
+    // Full distances computed this iteration, padded as the rechecks
+    private final long[] threadShortlisted;
+    // Over all iterations so far, with the points assigned
+    long shortlisted;
+    long shortlistedPoints;
+    // Points re-checked in double this iteration, padded against false sharing
+    private final long[] threadRechecks;
+    private static final int RECHECKS_STRIDE = 8;
+    // Trees of thread t cover its range in chunks of treeChunkPoints, null until built
+    private KdTree[][] trees;
+    private int treeChunkPoints;
+    private final int[][][] threadCandidates;
+    double treeBuildMs;
+
+    // Rank local row of the point at each position, null while points are in file order, see PointOrder
+    private int[] order;
+
+    // Points search the fine centers under their nearest coarse centers only, null for a flat search
+    private Hierarchy hierarchy;
+
+    // Windows of points read on every iteration, null with points in memory
+    private PointStream stream;
+    private final double[] threadStreamMs;
+    // Rows of this rank when the points are sparse, null for dense points
+    private SparsePoints sparse;
+    private double[] centerNorms;
+    // Weight of each of this rank's rows, null when all count once
+    private double[] weights;
+    private Metric metric = Metric.EUCLIDEAN;
+    // Points in the form the metric needs, done once by the first iteration
+    private boolean pointsNormalized;
+    // Points still loading in the background, null once all are in, see PointLoader
+    private PointLoader loader;
+    // When the first iteration of this instance was done
+    long firstIterationEndNanos;
+
+    public Lloyd(int dimension, int maxCenters, int numThreads, boolean bind, BitSet[] threadBitSets,
+                 double[][] threadPoints, int[] threadPointOffsets, ChunkScheduler scheduler, String engine) {
+        this.dimension = dimension;
+        this.engine = engine;
+        kdTree = ENGINE_KDTREE.equals(engine);
+        blockedCenters = ENGINE_PARTIAL.equals(engine) ? new double[maxCenters * dimension] : null;
+        floatCenters = ENGINE_FLOAT.equals(engine) ? new float[maxCenters * dimension] : null;
+        threadDistances = new float[numThreads][];
+        // Subspaces of 8 dimensions unless set otherwise
+        quantizer = ENGINE_PQ.equals(engine) ? new ProductQuantizer(dimension, (dimension + 7) / 8,
+                PQ_DEFAULT_RERANK, maxCenters) : null;
+        projection = ENGINE_PROJECTION.equals(engine) ? new RandomProjection(dimension,
+                defaultProjected(dimension)) : null;
+        // Sized for a projection to any number of dimensions
+        projectedCenters = projection != null ? new double[maxCenters * dimension] : null;
+        threadShortlisted = new long[numThreads * RECHECKS_STRIDE];
+        threadTables = new double[numThreads][];
+        threadRerank = new int[numThreads][];
+        threadRerankDistances = new double[numThreads][];
+        threadRechecks = new long[numThreads * RECHECKS_STRIDE];
+        threadCandidates = new int[numThreads][][];
+        this.maxCenters = maxCenters;
+        this.numThreads = numThreads;
+        this.bind = bind;
+        this.threadBitSets = threadBitSets;
+        this.threadPoints = threadPoints;
+        this.threadPointOffsets = threadPointOffsets;
+        this.scheduler = scheduler;
+        centerSumsAndCountsForThread = new double[numThreads * maxCenters * (dimension + 1)];
+        threadSums = new double[numThreads][];
+        threadPointsMoved = new long[numThreads];
+        threadComputTimes = new double[numThreads];
+        threadStreamMs = new double[numThreads];
+        clusterAssignments = new int[ParallelOps.pointsForProc];
+        reset();
+    }
+
+    /**
+     * @return the engine to use for engine, which may be auto
+     */
+    public static String resolveEngine(String engine, int dimension) {
+        if (ENGINE_AUTO.equals(engine)) {
+            return dimension <= KDTREE_MAX_DIMENSION ? ENGINE_KDTREE :
+                    dimension >= PARTIAL_MIN_DIMENSION ? ENGINE_PARTIAL : ENGINE_BRUTE;
+        }
+        if (!(ENGINE_BRUTE.equals(engine) || ENGINE_KDTREE.equals(engine) || ENGINE_PARTIAL.equals(engine) ||
+                ENGINE_FLOAT.equals(engine) || ENGINE_PQ.equals(engine) || ENGINE_PROJECTION.equals(engine))) {
+            throw new IllegalArgumentException("Unknown assignment engine " + engine);
+        }
+        return engine;
+    }
+
+    public String getEngine() {
+        return engine;
+    }
+
+    /**
+     * Add sums with Kahan compensation, with the float engine only
+     */
+    public void setKahan(boolean kahan) {
+        threadCompensations = kahan && floatCenters != null ? new double[numThreads][] : null;
+    }
+
+    /**
+     * Subspaces and re-ranked centers of the pq engine, more of either is
+     * closer to exact and slower
+     */
+    public void setQuantization(int subspaces, int rerank) {
+        if (quantizer != null) {
+            quantizer = new ProductQuantizer(dimension, subspaces, rerank, maxCenters);
+            Arrays.fill(threadTables, null);
+            Arrays.fill(threadRerank, null);
+            Arrays.fill(threadRerankDistances, null);
+        }
+    }
+
+    public ProductQuantizer getQuantizer() {
+        return quantizer;
+    }
+
+    /* An eighth of the dimensions, but at least 8 */
+    public static int defaultProjected(int dimension) {
+        return Math.min(dimension, Math.max(8, dimension / 8));
+    }
+
+    /**
+     * Dimensions of the projection engine, more rule out more centers at a
+     * higher cost per center
+     */
+    public void setProjection(int projected) {
+        if (projection != null) {
+            projection = new RandomProjection(dimension, projected);
+            projectedPoints = null;
+        }
+    }
+
+    public RandomProjection getProjection() {
+        return projection;
+    }
+
+    /**
+     * Search only the centers under each point's nearest coarse centers from
+     * now on, or all of them again with null
+     */
+    public void setHierarchy(Hierarchy hierarchy) {
+        this.hierarchy = hierarchy;
+    }
+
+    /**
+     * Read points from the stream on every iteration, with static scheduling
+     * and the brute force, partial distance or pq engine only, as the others
+     * keep state built from the points
+     */
+    public void setStream(PointStream stream) {
+        if (ENGINE_KDTREE.equals(engine) || ENGINE_FLOAT.equals(engine) || ENGINE_PROJECTION.equals(engine)) {
+            throw new IllegalArgumentException("Engine " + engine + " needs the points in memory");
+        }
+        this.stream = stream;
+    }
+
+    /**
+     * Assign these rows instead of threadPoints, with the brute force engine
+     * only
+     */
+    public void setSparse(SparsePoints sparse) {
+        if (!ENGINE_BRUTE.equals(engine)) {
+            throw new IllegalArgumentException("Engine " + engine + " needs dense points");
+        }
+        this.sparse = sparse;
+        centerNorms = new double[maxCenters];
+    }
+
+    /**
+     * Weights of this rank's rows in file order, with the brute force and
+     * partial distance engines only
+     */
+    public void setWeights(double[] weights) {
+        if (!ENGINE_BRUTE.equals(engine) && !ENGINE_PARTIAL.equals(engine)) {
+            throw new IllegalArgumentException("Engine " + engine + " doesn't weight points");
+        }
+        this.weights = weights;
+    }
+
+    /**
+     * Cluster by another metric than euclidean, with the brute force engine
+     * only as the others prune by euclidean bounds
+     */
+    public void setMetric(Metric metric) {
+        if (metric != Metric.EUCLIDEAN && !ENGINE_BRUTE.equals(engine)) {
+            throw new IllegalArgumentException("Engine " + engine + " is euclidean only");
+        }
+        this.metric = metric;
+        pointsNormalized = false;
+    }
+
+    public Metric getMetric() {
+        return metric;
+    }
+
+    /**
+     * Start the next iteration on points as they come in, the loader fills
+     * the array shared by all of threadPoints
+     */
+    public void setLoader(PointLoader loader) {
+        this.loader = loader;
+    }
+
+    /* Engines and passes that need every point wait for the rest of the load */
+    private void awaitLoaded() {
+        if (loader != null) {
+            loader.awaitAll();
+            loader = null;
+        }
+    }
+
+    /**
+     * After points were reordered within the rank, see PointOrder
+     */
+    public void setOrder(int[] order) {
+        int[] assignments = getFileOrderAssignments();
+        this.order = order;
+        setFileOrderAssignments(assignments);
+        trees = null;
+        floatPoints = null;
+        projectedPoints = null;
+    }
+
+    /**
+     * After points moved between ranks, see ParallelOps.rebalance()
+     *
+     * @param clusterAssignments in file order
+     * @param order              of the reloaded points, null if in file order
+     */
+    public void relayout(int[] clusterAssignments, ChunkScheduler scheduler, int[] order) {
+        this.order = order;
+        setFileOrderAssignments(clusterAssignments);
+        this.scheduler = scheduler;
+        trees = null;
+        floatPoints = null;
+        projectedPoints = null;
+        pointsNormalized = false;
+    }
+
+    /**
+     * Assignments of this rank's points in file order, shared with the
+     * iterations unless points were reordered
+     */
+    public int[] getFileOrderAssignments() {
+        if (order == null) return clusterAssignments;
+        int[] assignments = new int[clusterAssignments.length];
+        for (int p = 0; p < order.length; ++p) {
+            assignments[order[p]] = clusterAssignments[p];
+        }
+        return assignments;
+    }
+
+    public int[] getOrder() {
+        return order;
+    }
+
+    public void setFileOrderAssignments(int[] assignments) {
+        if (order == null) {
+            clusterAssignments = assignments;
+            return;
+        }
+        clusterAssignments = new int[assignments.length];
+        for (int p = 0; p < order.length; ++p) {
+            clusterAssignments[p] = assignments[order[p]];
+        }
+    }
+
+    /**
+     * Forget assignments and times, before starting over with other centers
+     */
+    public void reset() {
+        // So that the first iteration counts every point as moved
+        Arrays.fill(clusterAssignments, -1);
+        Arrays.fill(threadComputTimes, 0.0);
+    }
+
+    /**
+     * Collective call. Updates centers in place.
+     *
+     * @param itr zero based iteration for the metrics
+     * @return the largest distance a center moved
+     */
+    public double iterate(double[] centers, int numCenters, int itr, IterationMetrics metrics) throws MPIException {
+        final int length = numCenters * (dimension + 1);
+        Arrays.fill(centerSumsAndCountsForThread, 0, numThreads * length, 0.0);
+
+        prepare(centers, numCenters);
+        Arrays.fill(threadRechecks, 0);
+        Arrays.fill(threadShortlisted, 0);
+        final int[] assignments = clusterAssignments;
+        final ChunkScheduler itrScheduler = stream == null ? scheduler : null;
+        if (stream != null) {
+            assignStreamed(centers, numCenters, itr, metrics, length, assignments);
+        } else if (itrScheduler != null) {
+            itrScheduler.reset();
+            launchHabaneroApp(() -> forallChunked(0, numThreads - 1, (threadIdx) -> {
+                Thread.currentThread().setName("HJ"+threadIdx);
+                if (bind) {
+                    Affinity.setAffinity(threadBitSets[threadIdx]);
+                }
+                if (threadSums[threadIdx] == null) {
+                    threadSums[threadIdx] = new double[maxCenters * (dimension + 1)];
+                } else {
+                    Arrays.fill(threadSums[threadIdx], 0, length, 0.0);
+                }
+
+                long t = System.nanoTime();
+                threadPointsMoved[threadIdx] = assign(threadIdx, centers, numCenters, threadSums[threadIdx], 0,
+                        assignments, itrScheduler);
+                double ms = (System.nanoTime() - t)*1e-6; //milliseconds
+                threadComputTimes[threadIdx] += ms;
+                metrics.threadCompute(itr, threadIdx, ms);
+            }));
+        } else if (numThreads > 1) {
+            launchHabaneroApp(() -> forallChunked(0, numThreads - 1, (threadIdx) -> {
+                Thread.currentThread().setName("HJ"+threadIdx);
+                if (bind) {
+                    Affinity.setAffinity(threadBitSets[threadIdx]);
+                }
+
+                long t = System.nanoTime();
+                threadPointsMoved[threadIdx] = assign(threadIdx, centers, numCenters, centerSumsAndCountsForThread,
+                        threadIdx * length, assignments, null);
+                double ms = (System.nanoTime() - t)*1e-6; //milliseconds
+                threadComputTimes[threadIdx] += ms;
+                metrics.threadCompute(itr, threadIdx, ms);
+            }));
+        } else {
+            long t = System.nanoTime();
+            threadPointsMoved[0] = assign(0, centers, numCenters, centerSumsAndCountsForThread, 0, assignments, null);
+            double ms = (System.nanoTime() - t)*1e-6;
+            threadComputTimes[0] += ms;
+            metrics.threadCompute(itr, 0, ms);
+        }
+        // Every row was waited for by now
+        loader = null;
+        metrics.pointsMoved(itr, LongStream.of(threadPointsMoved).sum());
+        if (floatCenters != null) {
+            metrics.rechecks(itr, LongStream.of(threadRechecks).sum());
+        }
+        if (projection != null && hierarchy == null) {
+            shortlisted += LongStream.of(threadShortlisted).sum();
+            shortlistedPoints += ParallelOps.pointsForProc;
+        }
+
+        if (itrScheduler != null) {
+            long t = System.nanoTime();
+            Program.sumOverThreads(threadSums, centerSumsAndCountsForThread, length);
+            metrics.threadReduction(itr, (System.nanoTime() - t) * 1e-6);
+        } else if (numThreads > 1) {
+            long t = System.nanoTime();
+            Program.sumOverThreads(centerSumsAndCountsForThread, numThreads, numCenters, dimension);
+            metrics.threadReduction(itr, (System.nanoTime() - t) * 1e-6);
+        }
+
+        if (ParallelOps.worldProcsCount > 1) {
+            // NOTE - change to mmap call
+            ParallelOps.allReduceSum(centerSumsAndCountsForThread, 0, length);
+            metrics.allReduce(itr, ParallelOps.lastAllReduceLocalMs, ParallelOps.lastAllReduceInterNodeMs);
+        }
+
+        double maxShift = 0.0;
+        for (int c = 0; c < numCenters; ++c) {
+            int sumOffset = c * (dimension + 1);
+            double count = centerSumsAndCountsForThread[sumOffset + dimension];
+            for (int j = 0; j < dimension; ++j) {
+                centerSumsAndCountsForThread[sumOffset + j] /= count;
+            }
+            metric.normalize(centerSumsAndCountsForThread, sumOffset, 1, dimension);
+            double dist = metric.distance(centerSumsAndCountsForThread, centers, dimension, sumOffset,
+                    c * dimension);
+            if (dist > maxShift) {
+                maxShift = dist;
+            }
+            System.arraycopy(centerSumsAndCountsForThread, sumOffset, centers, c * dimension, dimension);
+        }
+        metrics.centerShift(itr, maxShift);
+        metrics.endIteration(itr);
+        if (firstIterationEndNanos == 0) {
+            firstIterationEndNanos = System.nanoTime();
+        }
+        return maxShift;
+    }
+
+    /* Engine state that depends on the points or the centers */
+    private void prepare(double[] centers, int numCenters) {
+        if (hierarchy != null) return;
+        if (sparse != null) {
+            SparsePoints.squaredNorms(centers, numCenters, dimension, centerNorms);
+        }
+        if (metric != Metric.EUCLIDEAN) {
+            if (!pointsNormalized) {
+                awaitLoaded();
+                normalizePoints();
+            }
+            metric.normalize(centers, 0, numCenters, dimension);
+        }
+        if (kdTree || floatCenters != null || projection != null) {
+            awaitLoaded();
+        }
+        if (kdTree && trees == null) {
+            buildTrees();
+        }
+        if (blockedCenters != null) {
+            PartialDistance.toBlocked(centers, numCenters, dimension, blockedCenters);
+        }
+        if (quantizer != null) {
+            long t = System.nanoTime();
+            quantizer.quantize(centers, numCenters);
+            quantizeMs += (System.nanoTime() - t) * 1e-6;
+        }
+        if (projection != null) {
+            if (projectedPoints == null) {
+                buildProjectedPoints();
+            }
+            projection.project(centers, 0, numCenters, projectedCenters, 0);
+        }
+        if (floatCenters != null) {
+            if (floatPoints == null) {
+                buildFloatPoints();
+            }
+            maxCenterNorm = MixedPrecision.toFloat(centers, numCenters, dimension, floatCenters);
+        }
+    }
+
+    /**
+     * Points of the thread's own range, or chunks until none are left with dynamic scheduling
+     * @return number of points whose cluster assignment changed
+     */
+    private int assign(int threadIdx, double[] centers, int numCenters, double[] sums, int sumsOffset,
+                       int[] assignments, ChunkScheduler itrScheduler) {
+        if (threadCompensations != null) {
+            if (threadCompensations[threadIdx] == null) {
+                threadCompensations[threadIdx] = new double[maxCenters * (dimension + 1)];
+            } else {
+                Arrays.fill(threadCompensations[threadIdx], 0, numCenters * (dimension + 1), 0.0);
+            }
+        }
+        PointLoader itrLoader = loader;
+        if (itrScheduler == null && itrLoader == null) {
+            return assignRange(threadIdx, threadIdx, 0, ParallelOps.pointsForThread[threadIdx], centers, numCenters,
+                    sums, sumsOffset, assignments, engine);
+        }
+        int moved = 0;
+        if (itrScheduler == null) {
+            // Blocks in the order they are loaded, which sums the same as the whole range at once
+            int count = ParallelOps.pointsForThread[threadIdx];
+            for (int start = 0; start < count; start += itrLoader.getBlockRows()) {
+                int blockCount = Math.min(itrLoader.getBlockRows(), count - start);
+                itrLoader.await(threadIdx, start + blockCount);
+                moved += assignRange(threadIdx, threadIdx, start, blockCount, centers, numCenters, sums, sumsOffset,
+                        assignments, engine);
+            }
+            return moved;
+        }
+        long chunk;
+        while ((chunk = itrScheduler.next(threadIdx)) >= 0) {
+            int owner = ChunkScheduler.owner(chunk);
+            int start = itrScheduler.start(chunk);
+            int count = itrScheduler.count(chunk, ParallelOps.pointsForThread[owner]);
+            if (itrLoader != null) {
+                itrLoader.await(owner, start + count);
+            }
+            moved += assignRange(threadIdx, owner, start, count, centers, numCenters, sums, sumsOffset, assignments,
+                    engine);
+        }
+        return moved;
+    }
+
+    /*
+     * Threads add to their own sums window after window, in the same order as
+     * over their ranges in memory, so the sums come out the same
+     */
+    private void assignStreamed(double[] centers, int numCenters, int itr, IterationMetrics metrics, int length,
+                                int[] assignments) {
+        Arrays.fill(threadPointsMoved, 0);
+        Arrays.fill(threadStreamMs, 0.0);
+        for (int w = 0; w < stream.getWindows(); ++w) {
+            final int window = stream.take();
+            final double[] buffer = stream.buffer();
+            if (numThreads > 1) {
+                launchHabaneroApp(() -> forallChunked(0, numThreads - 1, (threadIdx) -> {
+                    Thread.currentThread().setName("HJ"+threadIdx);
+                    if (bind) {
+                        Affinity.setAffinity(threadBitSets[threadIdx]);
+                    }
+                    assignWindow(threadIdx, window, buffer, centers, numCenters, length, assignments);
+                }));
+            } else {
+                assignWindow(0, window, buffer, centers, numCenters, length, assignments);
+            }
+            stream.release();
+        }
+        for (int threadIdx = 0; threadIdx < numThreads; ++threadIdx) {
+            threadComputTimes[threadIdx] += threadStreamMs[threadIdx];
+            metrics.threadCompute(itr, threadIdx, threadStreamMs[threadIdx]);
+        }
+    }
+
+    private void assignWindow(int threadIdx, int window, double[] buffer, double[] centers, int numCenters,
+                              int length, int[] assignments) {
+        long t = System.nanoTime();
+        threadPointsMoved[threadIdx] += assignPoints(threadIdx, threadIdx, stream.sliceStart(window),
+                stream.sliceCount(window, threadIdx), buffer, stream.sliceOffset(threadIdx), centers, numCenters,
+                centerSumsAndCountsForThread, threadIdx * length, assignments, engine);
+        threadStreamMs[threadIdx] += (System.nanoTime() - t) * 1e-6;
+    }
+
+    /* Points [start, start + count) of the owner's range, on thread threadIdx */
+    private int assignRange(int threadIdx, int owner, int start, int count, double[] centers, int numCenters,
+                            double[] sums, int sumsOffset, int[] assignments, String rangeEngine) {
+        if (sparse != null) {
+            return sparse.findNearestCenters(ParallelOps.pointStartIdxForThread[owner] + start, count, centers,
+                    centerNorms, numCenters, sums, sumsOffset, assignments);
+        }
+        return assignPoints(threadIdx, owner, start, count, threadPoints[owner],
+                threadPointOffsets[owner] + start * dimension, centers, numCenters, sums, sumsOffset, assignments,
+                rangeEngine);
+    }
+
+    /* Same as assignRange, with the points of the range starting at pointsOffset within points */
+    private int assignPoints(int threadIdx, int owner, int start, int count, double[] points, int pointsOffset,
+                             double[] centers, int numCenters, double[] sums, int sumsOffset, int[] assignments,
+                             String rangeEngine) {
+        int assignmentsOffset = ParallelOps.pointStartIdxForThread[owner] + start;
+        if (hierarchy != null) {
+            return hierarchy.assign(points, pointsOffset, count, centers, sums, sumsOffset, assignments,
+                    assignmentsOffset);
+        }
+        switch (rangeEngine) {
+            case ENGINE_KDTREE:
+                // Ranges are whole chunks, and trees cover one chunk each
+                int moved = 0;
+                for (int s = start; s < start + count; s += treeChunkPoints) {
+                    moved += trees[owner][s / treeChunkPoints].assign(centers, numCenters, sums, sumsOffset,
+                            assignments, ParallelOps.pointStartIdxForThread[owner] + s, threadCandidates[threadIdx]);
+                }
+                return moved;
+            case ENGINE_FLOAT:
+                if (threadDistances[threadIdx] == null) {
+                    threadDistances[threadIdx] = new float[maxCenters];
+                }
+                return floatPoints[owner].assign(start, count, points, pointsOffset, centers, floatCenters,
+                        maxCenterNorm, numCenters, sums, sumsOffset,
+                        threadCompensations != null ? threadCompensations[threadIdx] : null, assignments,
+                        assignmentsOffset, threadDistances[threadIdx], threadRechecks, threadIdx * RECHECKS_STRIDE);
+            case ENGINE_PQ:
+                if (threadTables[threadIdx] == null) {
+                    threadTables[threadIdx] = quantizer.newTable();
+                    threadRerank[threadIdx] = quantizer.newCandidates();
+                    threadRerankDistances[threadIdx] = quantizer.newCandidateDistances();
+                }
+                return quantizer.findNearestCenters(points, pointsOffset, count, centers, numCenters, sums,
+                        sumsOffset, assignments, assignmentsOffset, threadTables[threadIdx], threadRerank[threadIdx],
+                        threadRerankDistances[threadIdx]);
+            case ENGINE_PROJECTION:
+                return projection.findNearestCenters(points, pointsOffset, projectedPoints[owner],
+                        start * projection.getProjected(), count, centers, projectedCenters, numCenters, sums,
+                        sumsOffset, assignments, assignmentsOffset, threadShortlisted, threadIdx * RECHECKS_STRIDE);
+            case ENGINE_PARTIAL:
+                return PartialDistance.findNearestCenters(dimension, points, pointsOffset, count, blockedCenters,
+                        numCenters, sums, sumsOffset, assignments, assignmentsOffset, weights);
+            default:
+                return metric.findNearestCenters(dimension, points, pointsOffset, count, centers, numCenters, sums,
+                        sumsOffset, assignments, assignmentsOffset, weights);
+        }
+    }
+
+    private void normalizePoints() {
+        if (numThreads > 1) {
+            launchHabaneroApp(() -> forallChunked(0, numThreads - 1, (threadIdx) -> {
+                if (bind) {
+                    Affinity.setAffinity(threadBitSets[threadIdx]);
+                }
+                metric.normalize(threadPoints[threadIdx], threadPointOffsets[threadIdx],
+                        ParallelOps.pointsForThread[threadIdx], dimension);
+            }));
+        } else {
+            metric.normalize(threadPoints[0], threadPointOffsets[0], ParallelOps.pointsForThread[0], dimension);
+        }
+        pointsNormalized = true;
+    }
+
+    private void buildTrees() {
+        long t = System.nanoTime();
+        trees = new KdTree[numThreads][];
+        // Chunks of the scheduler, or the whole range of a thread
+        treeChunkPoints = scheduler != null ? scheduler.chunkPoints :
+                Math.max(1, Arrays.stream(ParallelOps.pointsForThread).max().orElse(1));
+        if (numThreads > 1) {
+            launchHabaneroApp(() -> forallChunked(0, numThreads - 1, (threadIdx) -> {
+                if (bind) {
+                    Affinity.setAffinity(threadBitSets[threadIdx]);
+                }
+                buildTrees(threadIdx);
+            }));
+        } else {
+            buildTrees(0);
+        }
+        int maxDepth = 0;
+        for (KdTree[] own : trees) {
+            for (KdTree tree : own) {
+                maxDepth = Math.max(maxDepth, tree.getMaxDepth());
+            }
+        }
+        for (int i = 0; i < numThreads; ++i) {
+            threadCandidates[i] = KdTree.newCandidates(maxDepth);
+        }
+        treeBuildMs += (System.nanoTime() - t) * 1e-6;
+    }
+
+    private void buildFloatPoints() {
+        floatPoints = new MixedPrecision[numThreads];
+        if (numThreads > 1) {
+            launchHabaneroApp(() -> forallChunked(0, numThreads - 1, (threadIdx) -> {
+                if (bind) {
+                    Affinity.setAffinity(threadBitSets[threadIdx]);
+                }
+                floatPoints[threadIdx] = new MixedPrecision(threadPoints[threadIdx], threadPointOffsets[threadIdx],
+                        ParallelOps.pointsForThread[threadIdx], dimension);
+            }));
+        } else {
+            floatPoints[0] = new MixedPrecision(threadPoints[0], threadPointOffsets[0], ParallelOps.pointsForThread[0],
+                    dimension);
+        }
+    }
+
+    private void buildProjectedPoints() {
+        projectedPoints = new double[numThreads][];
+        if (numThreads > 1) {
+            launchHabaneroApp(() -> forallChunked(0, numThreads - 1, (threadIdx) -> {
+                if (bind) {
+                    Affinity.setAffinity(threadBitSets[threadIdx]);
+                }
+                buildProjectedPoints(threadIdx);
+            }));
+        } else {
+            buildProjectedPoints(0);
+        }
+    }
+
+    private void buildProjectedPoints(int threadIdx) {
+        int count = ParallelOps.pointsForThread[threadIdx];
+        double[] own = new double[count * projection.getProjected()];
+        projection.project(threadPoints[threadIdx], threadPointOffsets[threadIdx], count, own, 0);
+        projectedPoints[threadIdx] = own;
+    }
+
+    private void buildTrees(int threadIdx) {
+        int count = ParallelOps.pointsForThread[threadIdx];
+        int chunks = Math.max(1, (count + treeChunkPoints - 1) / treeChunkPoints);
+        KdTree[] own = new KdTree[chunks];
+        for (int c = 0; c < chunks; ++c) {
+            int start = c * treeChunkPoints;
+            own[c] = new KdTree(threadPoints[threadIdx], threadPointOffsets[threadIdx] + start * dimension,
+                    Math.min(treeChunkPoints, count - start), dimension);
+        }
+        trees[threadIdx] = own;
+    }
+
+    /**
+     * Collective call. Times one assignment of all points with every center
+     * compared and one with this engine, with the given centers and without
+     * changing any state.
+     *
+     * @return slowest thread of any rank in ms for brute force and this engine,
+     * and the number of points the two assigned to different centers
+     */
+    public double[] compareEngines(double[] centers, int numCenters) throws MPIException {
+        awaitLoaded();
+        prepare(centers, numCenters);
+        final double[] threadBrute = new double[numThreads];
+        final double[] threadEngine = new double[numThreads];
+        final double[] threadDiffering = new double[numThreads];
+        // Both start from the current assignments, as the next iteration would
+        final int[] scratchAssignments = clusterAssignments.clone();
+        final int length = numCenters * (dimension + 1);
+        if (numThreads > 1) {
+            launchHabaneroApp(() -> forallChunked(0, numThreads - 1, (threadIdx) -> {
+                if (bind) {
+                    Affinity.setAffinity(threadBitSets[threadIdx]);
+                }
+                compareEngines(threadIdx, centers, numCenters, new double[length], scratchAssignments, threadBrute,
+                        threadEngine, threadDiffering);
+            }));
+        } else {
+            compareEngines(0, centers, numCenters, new double[length], scratchAssignments, threadBrute, threadEngine,
+                    threadDiffering);
+        }
+        double[] ms = new double[]{Arrays.stream(threadBrute).max().orElse(0.0),
+                Arrays.stream(threadEngine).max().orElse(0.0)};
+        double[] differing = new double[]{Arrays.stream(threadDiffering).sum()};
+        if (ParallelOps.worldProcsCount > 1) {
+            ParallelOps.worldProcsComm.allReduce(ms, 2, Communicator.Op.MAX);
+            ParallelOps.worldProcsComm.allReduce(differing, 1, Communicator.Op.SUM);
+        }
+        return new double[]{ms[0], ms[1], differing[0]};
+    }
+
+    private void compareEngines(int threadIdx, double[] centers, int numCenters, double[] sums, int[] assignments,
+                                double[] threadBrute, double[] threadEngine, double[] threadDiffering) {
+        int count = ParallelOps.pointsForThread[threadIdx];
+        int start = ParallelOps.pointStartIdxForThread[threadIdx];
+        int[] previous = Arrays.copyOfRange(assignments, start, start + count);
+        long t = System.nanoTime();
+        assignRange(threadIdx, threadIdx, 0, count, centers, numCenters, sums, 0, assignments, engine);
+        threadEngine[threadIdx] = (System.nanoTime() - t) * 1e-6;
+        int[] engineAssignments = Arrays.copyOfRange(assignments, start, start + count);
+        System.arraycopy(previous, 0, assignments, start, count);
+        Arrays.fill(sums, 0.0);
+        t = System.nanoTime();
+        assignRange(threadIdx, threadIdx, 0, count, centers, numCenters, sums, 0, assignments, ENGINE_BRUTE);
+        threadBrute[threadIdx] = (System.nanoTime() - t) * 1e-6;
+        for (int i = 0; i < count; ++i) {
+            if (engineAssignments[i] != assignments[start + i]) {
+                ++threadDiffering[threadIdx];
+            }
+        }
+    }
+
+    /**
+     * Collective call. Sum of squared distances from every point to its nearest center,
+     * or of the distances by other metrics than euclidean.
+     */
+    public double inertia(double[] centers) throws MPIException {
+        awaitLoaded();
+        if (sparse != null) {
+            SparsePoints.squaredNorms(centers, centers.length / dimension, dimension, centerNorms);
+        }
+        if (metric != Metric.EUCLIDEAN) {
+            if (!pointsNormalized) {
+                normalizePoints();
+            }
+            metric.normalize(centers, 0, centers.length / dimension, dimension);
+        }
+        final double[] threadInertia = new double[numThreads];
+        if (numThreads > 1) {
+            launchHabaneroApp(() -> forallChunked(0, numThreads - 1, (threadIdx) -> {
+                if (bind) {
+                    Affinity.setAffinity(threadBitSets[threadIdx]);
+                }
+                threadInertia[threadIdx] = inertia(centers, threadIdx);
+            }));
+        } else {
+            threadInertia[0] = inertia(centers, 0);
+        }
+        double[] inertia = new double[]{Arrays.stream(threadInertia).sum()};
+        if (ParallelOps.worldProcsCount > 1) {
+            ParallelOps.worldProcsComm.allReduce(inertia, 1, Communicator.Op.SUM);
+        }
+        return inertia[0];
+    }
+
+    private double inertia(double[] centers, int threadIdx) {
+        if (sparse != null) {
+            return sparse.inertia(ParallelOps.pointStartIdxForThread[threadIdx], ParallelOps.pointsForThread[threadIdx],
+                    centers, centerNorms, centers.length / dimension);
+        }
+        double[] points = threadPoints[threadIdx];
+        double sum = 0.0;
+        for (int i = 0; i < ParallelOps.pointsForThread[threadIdx]; ++i) {
+            int pointOffset = threadPointOffsets[threadIdx] + i * dimension;
+            int c = metric.nearest(points, pointOffset, centers, centers.length / dimension, dimension);
+            double cost = metric.cost(points, centers, dimension, pointOffset, c * dimension);
+            sum += weights != null ? weights[ParallelOps.pointStartIdxForThread[threadIdx] + i] * cost : cost;
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,187 @@
+package org.saliya.ompi.kmeans;
+
+/**
+ * Distance the points are clustered by, picked once at startup. Each metric
+ * has its own range kernel, a copy of the brute force one with its distance
+ * inlined, so there is one virtual call per range of points and none per
+ * distance.
+ *
+ * <ul>
+ *     <li>euclidean, plain k-means with {@link Program#findNearesetCenters}</li>
+ *     <li>cosine, spherical k-means. Points and centers are normalized, so
+ *     the nearest center is the one with the largest dot product, and
+ *     centers are normalized again after every update</li>
+ * </ul>
+ *
+ * There is no manhattan metric. Its centers would be per dimension medians,
+ * and the update step only computes means from the summed points.
+ */
+public abstract class Metric {
+    public static final String METRIC_EUCLIDEAN = "euclidean";
+    public static final String METRIC_COSINE = "cosine";
+
+    public static final Metric EUCLIDEAN = new Euclidean();
+    public static final Metric COSINE = new Cosine();
+
+    public static Metric of(String name) {
+        switch (name) {
+            case METRIC_EUCLIDEAN:
+                return EUCLIDEAN;
+            case METRIC_COSINE:
+                return COSINE;
+            default:
+                throw new IllegalArgumentException("Unknown metric " + name);
+        }
+    }
+
+    public abstract String getName();
+
+    /**
+     * Same contract as the range kernel Program.findNearesetCenters, with
+     * the point at assignment i counting weights[i] times, or once with
+     * null weights
+     *
+     * @return number of points whose cluster assignment changed
+     */
+    public abstract int findNearestCenters(int dimension, double[] points, int pointsOffset, int count,
+                                           double[] centers, int numCenters, double[] centerSumsAndCounts,
+                                           int centerSumsOffset, int[] clusterAssignments, int assignmentsOffset,
+                                           double[] weights);
+
+    /* One at a time, for the passes outside the iterations */
+
+    public abstract double distance(double[] point1, double[] point2, int dimension, int point1Offset,
+                                    int point2Offset);
+
+    public abstract int nearest(double[] points, int pointOffset, double[] centers, int numCenters, int dimension);
+
+    /* What inertia sums, the distance unless the metric says otherwise */
+    public double cost(double[] points, double[] centers, int dimension, int pointOffset, int centerOffset) {
+        return distance(points, centers, dimension, pointOffset, centerOffset);
+    }
+
+    /**
+     * Puts count vectors into the form the kernel expects, in place. Points
+     * once before the first iteration, and centers before every iteration.
+     */
+    public void normalize(double[] vectors, int offset, int count, int dimension) {
+    }
+
+    /* The weighted or unweighted count and sum of a point */
+    static void add(double[] points, int pointOffset, double[] centerSumsAndCounts, int centerOffset, int dimension,
+                    double[] weights, int weightIdx) {
+        if (weights == null) {
+            ++centerSumsAndCounts[centerOffset + dimension];
+            Program.accumulate(points, centerSumsAndCounts, pointOffset, centerOffset, dimension);
+        } else {
+            centerSumsAndCounts[centerOffset + dimension] += weights[weightIdx];
+            Program.accumulate(points, centerSumsAndCounts, pointOffset, centerOffset, dimension, weights[weightIdx]);
+        }
+    }
+
+    private static final class Euclidean extends Metric {
+        @Override
+        public String getName() {
+            return METRIC_EUCLIDEAN;
+        }
+
+        @Override
+        public int findNearestCenters(int dimension, double[] points, int pointsOffset, int count, double[] centers,
+                                      int numCenters, double[] centerSumsAndCounts, int centerSumsOffset,
+                                      int[] clusterAssignments, int assignmentsOffset, double[] weights) {
+            if (weights != null) {
+                return Program.findNearesetCenters(dimension, points, pointsOffset, count, centers,
+                        centerSumsAndCounts, centerSumsOffset, clusterAssignments, assignmentsOffset, weights);
+            }
+            return Program.findNearesetCenters(dimension, points, pointsOffset, count, centers, centerSumsAndCounts,
+                    centerSumsOffset, clusterAssignments, assignmentsOffset);
+        }
+
+        @Override
+        public double distance(double[] point1, double[] point2, int dimension, int point1Offset, int point2Offset) {
+            return Program.getEuclideanDistance(point1, point2, dimension, point1Offset, point2Offset);
+        }
+
+        @Override
+        public int nearest(double[] points, int pointOffset, double[] centers, int numCenters, int dimension) {
+            return Program.findCenterWithMinDistance(points, centers, dimension, pointOffset);
+        }
+
+        @Override
+        public double cost(double[] points, double[] centers, int dimension, int pointOffset, int centerOffset) {
+            double dist = distance(points, centers, dimension, pointOffset, centerOffset);
+            return dist * dist;
+        }
+    }
+
+    private static final class Cosine extends Metric {
+        @Override
+        public String getName() {
+            return METRIC_COSINE;
+        }
+
+        @Override
+        public int findNearestCenters(int dimension, double[] points, int pointsOffset, int count, double[] centers,
+                                      int numCenters, double[] centerSumsAndCounts, int centerSumsOffset,
+                                      int[] clusterAssignments, int assignmentsOffset, double[] weights) {
+            int moved = 0;
+            for (int i = 0; i < count; ++i) {
+                int pointOffset = pointsOffset + i * dimension;
+                int best = nearest(points, pointOffset, centers, numCenters, dimension);
+                add(points, pointOffset, centerSumsAndCounts, centerSumsOffset + best * (dimension + 1), dimension,
+                        weights, assignmentsOffset + i);
+                if (clusterAssignments[assignmentsOffset + i] != best) {
+                    ++moved;
+                }
+                clusterAssignments[assignmentsOffset + i] = best;
+            }
+            return moved;
+        }
+
+        /* Largest dot product, the lowest index wins ties */
+        @Override
+        public int nearest(double[] points, int pointOffset, double[] centers, int numCenters, int dimension) {
+            double dMax = -Double.MAX_VALUE;
+            int best = 0;
+            for (int c = 0; c < numCenters; ++c) {
+                int centerOffset = c * dimension;
+                double dot = 0.0;
+                for (int j = 0; j < dimension; ++j) {
+                    dot += points[pointOffset + j] * centers[centerOffset + j];
+                }
+                if (dot > dMax) {
+                    dMax = dot;
+                    best = c;
+                }
+            }
+            return best;
+        }
+
+        /* 1 - cos, of normalized vectors */
+        @Override
+        public double distance(double[] point1, double[] point2, int dimension, int point1Offset, int point2Offset) {
+            double dot = 0.0;
+            for (int j = 0; j < dimension; ++j) {
+                dot += point1[point1Offset + j] * point2[point2Offset + j];
+            }
+            return Math.max(0.0, 1 - dot);
+        }
+
+        /* Zero vectors stay zero, and are equally far from every center */
+        @Override
+        public void normalize(double[] vectors, int offset, int count, int dimension) {
+            for (int i = 0; i < count; ++i) {
+                int vectorOffset = offset + i * dimension;
+                double sq = 0.0;
+                for (int j = 0; j < dimension; ++j) {
+                    sq += vectors[vectorOffset + j] * vectors[vectorOffset + j];
+                }
+                if (sq == 0.0) continue;
+                double scale = 1 / Math.sqrt(sq);
+                for (int j = 0; j < dimension; ++j) {
+                    vectors[vectorOffset + j] *= scale;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package org.saliya.ompi.kmeans;
+
+/**
+ * Float copy of a range of points for assignments that compute distances in
+ * single precision, reading half the bytes of the double kernels. The float
+ * distance of every center is off by at most a bound that grows with the
+ * dimension and the norms of the point and the centers. Centers whose float
+ * distance can't beat the float nearest within that bound are out. When more
+ * than one center is left, the point is re-checked with double distances to
+ * the remaining centers against the original data, so labels are the same
+ * as the brute force kernel's.
+ *
+ * Sums are added from the double points, optionally with Kahan compensation.
+ */
+public class MixedPrecision {
+    // Unit roundoff of float
+    private static final double FLOAT_EPS = 0x1.0p-24;
+
+    private final int dimension;
+    private final float[] points;
+    private final double[] norms;
+
+    public MixedPrecision(double[] points, int pointsOffset, int count, int dimension) {
+        this.dimension = dimension;
+        this.points = new float[count * dimension];
+        norms = new double[count];
+        for (int i = 0; i < count; ++i) {
+            double sq = 0.0;
+            for (int j = 0; j < dimension; ++j) {
+                double x = points[pointsOffset + i * dimension + j];
+                this.points[i * dimension + j] = (float) x;
+                sq += x * x;
+            }
+            norms[i] = Math.sqrt(sq);
+        }
+    }
+
+    /**
+     * Copies centers to floats
+     *
+     * @return largest norm of the centers, which bounds the rounding of any float distance
+     */
+    public static double toFloat(double[] centers, int numCenters, int dimension, float[] floatCenters) {
+        double maxNorm = 0.0;
+        for (int c = 0; c < numCenters; ++c) {
+            double sq = 0.0;
+            for (int j = 0; j < dimension; ++j) {
+                double x = centers[c * dimension + j];
+                floatCenters[c * dimension + j] = (float) x;
+                sq += x * x;
+            }
+            maxNorm = Math.max(maxNorm, Math.sqrt(sq));
+        }
+        return maxNorm;
+    }
+
+    /**
+     * Same contract as the range kernel Program.findNearesetCenters for
+     * points [from, from + count) of this copy, whose double originals start
+     * at pointsOffset
+     *
+     * @param compensation Kahan compensation laid out as the sums starting at sumsOffset, or null
+     * @param distances    scratch of at least numCenters
+     * @param rechecks     rechecks[rechecksIdx] counts the points re-checked in double
+     * @return number of points whose cluster assignment changed
+     */
+    public int assign(int from, int count, double[] doublePoints, int pointsOffset, double[] centers,
+                      float[] floatCenters, double maxCenterNorm, int numCenters, double[] centerSumsAndCounts,
+                      int sumsOffset, double[] compensation, int[] clusterAssignments, int assignmentsOffset,
+                      float[] distances, long[] rechecks, int rechecksIdx) {
+        // Relative rounding of the float sums of squares, and absolute from rounding the inputs
+        double relative = (dimension + 8) * FLOAT_EPS;
+        int moved = 0;
+        for (int i = 0; i < count; ++i) {
+            int floatOffset = (from + i) * dimension;
+            float fMin = Float.MAX_VALUE;
+            int fBest = 0;
+            for (int c = 0; c < numCenters; ++c) {
+                int centerOffset = c * dimension;
+                float sum = 0.0f;
+                for (int j = 0; j < dimension; ++j) {
+                    float diff = points[floatOffset + j] - floatCenters[centerOffset + j];
+                    sum += diff * diff;
+                }
+                distances[c] = sum;
+                if (sum < fMin) {
+                    fMin = sum;
+                    fBest = c;
+                }
+            }
+
+            double absolute = 4 * FLOAT_EPS * (norms[from + i] + maxCenterNorm);
+            double upper = (Math.sqrt(fMin) * (1 + relative) + 2 * absolute) / (1 - relative);
+            double limit = upper * upper;
+            int candidates = 0;
+            for (int c = 0; c < numCenters && candidates < 2; ++c) {
+                if (distances[c] <= limit) ++candidates;
+            }
+
+            int pointOffset = pointsOffset + i * dimension;
+            int best = fBest;
+            if (candidates > 1) {
+                ++rechecks[rechecksIdx];
+                double dMin = Double.MAX_VALUE;
+                for (int c = 0; c < numCenters; ++c) {
+                    if (!(distances[c] <= limit)) continue;
+                    double dist = Program.getEuclideanDistance(doublePoints, centers, dimension, pointOffset,
+                            c * dimension);
+                    if (dist < dMin) {
+                        dMin = dist;
+                        best = c;
+                    }
+                }
+            }
+
+            int centerOffset = sumsOffset + best * (dimension + 1);
+            ++centerSumsAndCounts[centerOffset + dimension];
+            if (compensation == null) {
+                Program.accumulate(doublePoints, centerSumsAndCounts, pointOffset, centerOffset, dimension);
+            } else {
+                int compensationOffset = centerOffset - sumsOffset;
+                for (int j = 0; j < dimension; ++j) {
+                    double y = doublePoints[pointOffset + j] - compensation[compensationOffset + j];
+                    double t = centerSumsAndCounts[centerOffset + j] + y;
+                    compensation[compensationOffset + j] = (t - centerSumsAndCounts[centerOffset + j]) - y;
+                    centerSumsAndCounts[centerOffset + j] = t;
+                }
+            }
+            int idx = assignmentsOffset + i;
+            if (clusterAssignments[idx] != best) {
+                ++moved;
+            }
+            clusterAssignments[idx] = best;
+        }
+        return moved;
+    }
+}
@@ -1,25 +1,24 @@
 package org.saliya.ompi.kmeans;
 
 
-import mpi.Intracomm;
 import mpi.MPI;
 import mpi.MPIException;
 import net.openhft.lang.io.ByteBufferBytes;
 import net.openhft.lang.io.Bytes;
 import org.jetbrains.annotations.NotNull;
+import org.saliya.ompi.kmeans.comm.Communicator;
+import org.saliya.ompi.kmeans.comm.MpiCommunicator;
 import sun.misc.Unsafe;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.lang.reflect.Field;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
-import java.nio.IntBuffer;
-import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.UUID;
@@ -49,13 +48,21 @@ public class ParallelOps {
 
     public static int nodeId;
 
-    public static Intracomm worldProcsComm;
+    public static Communicator worldProcsComm;
     public static int worldProcRank;
     public static int worldProcsCount;
     public static int worldProcsPerNode;
     public static int worldProcRankLocalToNode;
-
-    public static Intracomm mmapProcComm;
+    // Position of this rank among the ranks sharing its node, and how many
+    // of them there are. Unlike worldProcRankLocalToNode this does not
+    // assume continuous ranks within a node.
+    public static int worldProcOrdinalLocalToNode;
+    // Ranks of this node, whatever their numbering
+    public static Communicator nodeProcComm;
+    private static int nodeLeadWorldRank;
+    public static int worldProcsCountLocalToNode;
+
+    public static Communicator mmapProcComm;
     // Number of memory mapped groups per process
     public static int mmapsPerNode;
     public static String mmapDir;
@@ -71,13 +78,10 @@ public class ParallelOps {
 
     // mmap leaders form one communicating group and the others (followers)
     // belong to another communicating group.
-    public static Intracomm cgProcComm;
+    public static Communicator cgProcComm;
     public static int cgProcRank;
     public static int cgProcsCount;
 
-    public static String mmapCollectiveFileName;
-    public static String mmapLockFileNameOne;
-    public static String mmapEntryLockFileName;
     public static Bytes mmapLockOne;
     public static Bytes mmapEntryLock;
     public static Bytes mmapCollectiveBytes;
@@ -88,7 +92,23 @@ public class ParallelOps {
     public static ByteBuffer mmapWriteByteBuffer;
     public static ByteBuffer mmapReadByteBuffer;
 
-    private static IntBuffer intBuffer;
+    // Back the mmap regions with huge pages, see SharedSegment
+    public static boolean mmapHugePages = false;
+    private static SharedSegment mmapSegment;
+    private static String mmapSegmentId;
+    private static int mmapSegments = 0;
+    // Times the groups were set up, and which of those the segment belongs to
+    private static int mmapGroupings = 0;
+    private static int mmapSegmentGroups = -1;
+    private static final int COLLECTIVE = 0;
+    private static final int LOCK_ONE = 1;
+    private static final int ENTRY_LOCK = 2;
+    private static final int WRITE = 3;
+    private static final int READ = 4;
+    private static final int REGIONS = 5;
+
+    // Ranks are thread groups of one JVM, see setupLocalParallelism
+    public static boolean isLocal = false;
 
     private static int FLAG = 0;
     private static int COUNT = Long.BYTES;
@@ -100,23 +120,51 @@ public class ParallelOps {
     public static int numThreads = 1;
 
     public static int pointsForProc;
+    // Points of every rank, uneven after rebalance()
+    private static int[] pointsForProcs;
+    private static int totalPoints;
+    public static final double REBALANCE_TOLERANCE = 0.05;
+    // Fraction of the way to the measured balance moved at once, so noisy timings don't oscillate
+    public static final double REBALANCE_DAMPING = 0.5;
     public static int pointStartIdxForProc;
     public static int [] pointsForThread;
     public static int [] pointStartIdxForThread;
     public static int pointDimension;
 
+    // Split of the last allReduceSum call. Inter-node is the time spent in the
+    // MPI call among mmap leads (or waiting for the lead to finish it), node
+    // local is everything else, i.e. copying through and reducing over the mmap.
+    public static double lastAllReduceLocalMs;
+    public static double lastAllReduceInterNodeMs;
+
     public static void setupParallelism(String[] args, int mmapsPerNode, String mmapDir) throws MPIException, IOException {
         MPI.Init(args);
         machineName = MPI.getProcessorName();
         ParallelOps.mmapsPerNode = mmapsPerNode;
         ParallelOps.mmapDir = mmapDir;
 
-        intBuffer = MPI.newIntBuffer(1);
-
-        worldProcsComm = MPI.COMM_WORLD; //initializing MPI world communicator
+        worldProcsComm = new MpiCommunicator(MPI.COMM_WORLD); //initializing MPI world communicator
         worldProcRank = worldProcsComm.getRank();
         worldProcsCount = worldProcsComm.getSize();
+        setupMmapGroups();
+        nodeProcComm = worldProcsComm.split(nodeLeadWorldRank, worldProcRank);
+    }
 
+    /**
+     * Collective call. Splits the ranks of each node into mmapsPerNode memory
+     * mapped groups again, e.g. to compare group sizes, see {@link Tuner}.
+     * The maps of the new groups are made by the next setParallelDecomposition().
+     */
+    public static void regroup(int mmapsPerNode) throws MPIException {
+        if (isLocal) return;
+        // Replaced by the split of setupMmapGroups
+        mmapProcComm.free();
+        cgProcComm.free();
+        ParallelOps.mmapsPerNode = mmapsPerNode;
+        setupMmapGroups();
+    }
+
+    private static void setupMmapGroups() throws MPIException {
         /* Create communicating groups */
         worldProcsPerNode = worldProcsCount / nodeCount;
 
@@ -167,16 +215,118 @@ public class ParallelOps {
         cgProcComm = worldProcsComm.split(isMmapLead ? 0 : 1, worldProcRank);
         cgProcRank = cgProcComm.getRank();
         cgProcsCount = cgProcComm.getSize();
+        ++mmapGroupings;
+    }
+
+    /**
+     * Ranks of an in-process communicator share one node and one heap, so
+     * there are no memory mapped groups. Collectives go straight through the
+     * given communicator.
+     */
+    public static void setupLocalParallelism(Communicator comm) throws MPIException {
+        isLocal = true;
+        machineName = "localhost";
+        worldProcsComm = comm;
+        worldProcRank = worldProcsComm.getRank();
+        worldProcsCount = worldProcsComm.getSize();
+        worldProcsPerNode = worldProcsCount;
+        worldProcRankLocalToNode = worldProcRank;
+        worldProcOrdinalLocalToNode = worldProcRank;
+        worldProcsCountLocalToNode = worldProcsCount;
+        nodeId = 0;
+        nodeProcComm = worldProcsComm;
+
+        mmapsPerNode = 1;
+        mmapIdLocalToNode = 0;
+        mmapProcComm = worldProcsComm;
+        mmapProcRank = worldProcRank;
+        mmapProcsCount = worldProcsCount;
+        isMmapLead = worldProcRank == 0;
+        cgProcComm = worldProcsComm;
+        cgProcRank = worldProcRank;
+        cgProcsCount = worldProcsCount;
     }
 
     private static void decomposeDomain(int totalPoints) {
         int div = totalPoints / worldProcsCount;
         int rem = totalPoints % worldProcsCount;
-        ParallelOps.pointsForProc = worldProcRank < rem ? div + 1 : div;
-        pointStartIdxForProc = worldProcRank * div + (worldProcRank < rem ? worldProcRank : rem);
+        ParallelOps.totalPoints = totalPoints;
+        pointsForProcs = new int[worldProcsCount];
+        IntStream.range(0, worldProcsCount).forEach(i -> pointsForProcs[i] = i < rem ? div + 1 : div);
+        applyProcDecomposition();
+    }
+
+    private static void applyProcDecomposition() {
+        pointsForProc = pointsForProcs[worldProcRank];
+        pointStartIdxForProc = 0;
+        for (int i = 0; i < worldProcRank; ++i) {
+            pointStartIdxForProc += pointsForProcs[i];
+        }
         decomposeDomainAmongThreads();
     }
 
+    /**
+     * Collective call. Moves the point boundaries between ranks towards shares
+     * proportional to their measured throughput, i.e. points computed per ms
+     * of (critical path) compute time since the last call. Nothing is
+     * changed unless the predicted slowest rank is more than
+     * {@link #REBALANCE_TOLERANCE} behind the balanced time.
+     *
+     * @return true if the decomposition changed, in which case the caller has
+     * to move its points and assignments to the new range
+     */
+    public static boolean rebalance(double computeMs) throws MPIException {
+        double[] ms = new double[worldProcsCount];
+        ms[worldProcRank] = computeMs;
+        worldProcsComm.allReduce(ms, worldProcsCount, Communicator.Op.SUM);
+
+        double[] rates = new double[worldProcsCount];
+        double rateSum = 0.0, slowest = 0.0;
+        for (int i = 0; i < worldProcsCount; ++i) {
+            if (!(ms[i] > 0.0)) return false;
+            rates[i] = pointsForProcs[i] / ms[i];
+            rateSum += rates[i];
+            slowest = Math.max(slowest, ms[i]);
+        }
+        if (slowest <= (totalPoints / rateSum) * (1.0 + REBALANCE_TOLERANCE)) return false;
+
+        // Largest remainder, and at least one point per thread. Every rank computes
+        // the same counts from the same reduced times.
+        int[] counts = new int[worldProcsCount];
+        double[] remainders = new double[worldProcsCount];
+        int assigned = 0;
+        for (int i = 0; i < worldProcsCount; ++i) {
+            double target = totalPoints * rates[i] / rateSum;
+            double share = Math.max(numThreads, pointsForProcs[i] + REBALANCE_DAMPING * (target - pointsForProcs[i]));
+            counts[i] = (int) share;
+            remainders[i] = share - counts[i];
+            assigned += counts[i];
+        }
+        while (assigned < totalPoints) {
+            int pick = 0;
+            for (int i = 1; i < worldProcsCount; ++i) {
+                if (remainders[i] > remainders[pick]) pick = i;
+            }
+            ++counts[pick];
+            remainders[pick] = -1.0;
+            ++assigned;
+        }
+        while (assigned > totalPoints) {
+            // Only when the per thread minimum kicked in, take from the largest
+            int pick = 0;
+            for (int i = 1; i < worldProcsCount; ++i) {
+                if (counts[i] > counts[pick]) pick = i;
+            }
+            --counts[pick];
+            --assigned;
+        }
+        if (Arrays.equals(counts, pointsForProcs)) return false;
+
+        pointsForProcs = counts;
+        applyProcDecomposition();
+        return true;
+    }
+
     private static void decomposeDomainAmongThreads() {
         int div = pointsForProc / numThreads;
         int rem = pointsForProc % numThreads;
@@ -186,7 +336,14 @@ public class ParallelOps {
         });
     }
 
+    /**
+     * Points of every rank, following any rebalancing when numVec is the
+     * number of points being decomposed
+     */
     public static int[] getLengthsArray(int numVec) {
+        if (pointsForProcs != null && numVec == totalPoints) {
+            return pointsForProcs.clone();
+        }
         int div = numVec / worldProcsCount;
         int rem = numVec % worldProcsCount;
         int[] lengths = new int[worldProcsCount];
@@ -202,86 +359,74 @@ public class ParallelOps {
         ParallelOps.pointDimension = pointDimension;
         decomposeDomain(totalPoints);
 
+        if (isLocal) return;
 
         boolean status = new File(mmapDir).mkdirs();
 
-        byte[] bytes = null;
-        if (worldProcRank == 0){
-            UUID id = UUID.randomUUID();
-            bytes = id.toString().getBytes();
-            intBuffer.put(0, bytes.length);
+        // (pointDimension+1) to keep track of number of points per center
+        long collective = (long) numCenters * (pointDimension+1) * mmapProcsCount * Double.BYTES;
+        if (collective > Integer.MAX_VALUE) {
+            throw new IOException("Collective mmap region of " + numCenters + " centers of " + (pointDimension+1) +
+                    " doubles for " + mmapProcsCount + " ranks needs " + collective + " bytes, more than " +
+                    Integer.MAX_VALUE + ", use more mmaps per node");
         }
-
-        worldProcsComm.bcast(intBuffer, 1, MPI.INT, 0);
-        int length = intBuffer.get(0);
-        if (worldProcRank != 0) {
-            bytes = new byte[length];
-        }
-        worldProcsComm.bcast(bytes, bytes.length, MPI.BYTE, 0);
-        String uuid = new String(bytes);
-
-        /* Allocate memory maps for collective communications like AllReduce and Broadcast */
-        mmapCollectiveFileName = machineName + ".mmapId." + mmapIdLocalToNode + ".mmapCollective." + uuid + ".bin";
-        mmapLockFileNameOne = machineName + ".mmapId." + mmapIdLocalToNode + ".mmapLockOne." + uuid + ".bin";
-        mmapEntryLockFileName = machineName + ".mmapId." + mmapIdLocalToNode + ".mmapEntryLock." + uuid + ".bin";
-        try (FileChannel mmapCollectiveFc = FileChannel
-                .open(Paths.get(mmapDir, mmapCollectiveFileName),
-                        StandardOpenOption.CREATE, StandardOpenOption.READ,
-                        StandardOpenOption.WRITE)) {
-
-            // (pointDimension+1) to keep track of number of points per center
-            int extent = numCenters * (pointDimension+1) * mmapProcsCount * Double.BYTES;
-            mmapCollectiveBytes = ByteBufferBytes.wrap(mmapCollectiveFc.map(
-                    FileChannel.MapMode.READ_WRITE, 0L, extent));
-            mmapCollectiveByteBuffer = mmapCollectiveBytes.sliceAsByteBuffer(mmapCollectiveByteBuffer);
-
-            if (isMmapLead){
-                for (int i = 0; i < extent; ++i) {
-                    mmapCollectiveBytes.writeByte(i, 0);
-                }
+        int[] lengths = new int[REGIONS];
+        lengths[COLLECTIVE] = (int) collective;
+        lengths[LOCK_ONE] = 64;
+        lengths[ENTRY_LOCK] = 64;
+        lengths[WRITE] = 3 * Integer.BYTES;
+        lengths[READ] = 3 * worldProcsCount * Integer.BYTES;
+        if (mmapSegment != null && mmapSegmentGroups == mmapGroupings && mmapSegment.hasLengths(lengths)) {
+            // Same group and sizes, only reset what the last collectives left behind, once no one reads them
+            mmapProcComm.barrier();
+            if (isMmapLead) {
+                mmapSegment.zero(COLLECTIVE);
+                mmapSegment.zero(LOCK_ONE);
+                mmapSegment.zero(ENTRY_LOCK);
             }
+            mmapProcComm.barrier();
+        } else {
+            if (mmapSegmentId == null) {
+                byte[] bytes = null;
+                int[] length = new int[1];
+                if (worldProcRank == 0){
+                    UUID id = UUID.randomUUID();
+                    bytes = id.toString().getBytes();
+                    length[0] = bytes.length;
+                }
 
-            File lockFile = new File(mmapDir, mmapLockFileNameOne);
-            FileChannel fc = new RandomAccessFile(lockFile, "rw").getChannel();
-            mmapLockOne = ByteBufferBytes.wrap(fc.map(FileChannel.MapMode.READ_WRITE, 0, 64));
-            if (isMmapLead){
-                mmapLockOne.writeBoolean(FLAG, false);
-                mmapLockOne.writeLong(COUNT, 0);
+                worldProcsComm.bcast(length, 1, 0);
+                if (worldProcRank != 0) {
+                    bytes = new byte[length[0]];
+                }
+                worldProcsComm.bcast(bytes, bytes.length, 0);
+                mmapSegmentId = new String(bytes);
             }
 
-            lockFile = new File(mmapDir, mmapEntryLockFileName);
-            fc = new RandomAccessFile(lockFile, "rw").getChannel();
-            mmapEntryLock = ByteBufferBytes.wrap(fc.map(FileChannel.MapMode.READ_WRITE, 0, 64));
-            if (isMmapLead){
-                mmapEntryLock.writeBoolean(FLAG, false);
-                mmapEntryLock.writeLong(COUNT, 0);
-            }
+            /* One memory map per group for collective communications like AllReduce and Broadcast, and their locks */
+            String mmapFileName = machineName + ".mmapId." + mmapIdLocalToNode + ".mmapSegment." + mmapSegmentId +
+                    "." + mmapGroupings + "." + (++mmapSegments) + ".bin";
+            mmapSegment = SharedSegment.create(mmapProcComm, isMmapLead, Paths.get(mmapDir, mmapFileName), lengths,
+                    mmapHugePages);
+            mmapSegmentGroups = mmapGroupings;
         }
+        mmapCollectiveBytes = mmapSegment.getRegion(COLLECTIVE);
+        mmapCollectiveByteBuffer = mmapCollectiveBytes.sliceAsByteBuffer(mmapCollectiveByteBuffer);
+        mmapLockOne = mmapSegment.getRegion(LOCK_ONE);
+        mmapEntryLock = mmapSegment.getRegion(ENTRY_LOCK);
+        mmapWriteBytes = mmapSegment.getRegion(WRITE);
+        mmapReadBytes = mmapSegment.getRegion(READ);
+        mmapWriteByteBuffer = mmapWriteBytes.sliceAsByteBuffer(mmapWriteByteBuffer);
+        mmapReadByteBuffer = mmapReadBytes.sliceAsByteBuffer(mmapReadByteBuffer);
 
         cgProcCommRankOfMmapLeaderForRank = new HashMap<>(worldProcsCount);
-        String mmapWriteFileName = machineName + ".mmapId." + mmapIdLocalToNode + ".mmapWrite.bin";
-        String mmapReadFileName = machineName + ".mmapId." + mmapIdLocalToNode + ".mmapRead.bin";
-        try (FileChannel mmapWriteFc = FileChannel
-                .open(Paths.get(mmapDir, mmapWriteFileName),
-                        StandardOpenOption.CREATE, StandardOpenOption.READ,
-                        StandardOpenOption.WRITE);
-             FileChannel mmapReadFc = FileChannel
-                     .open(Paths.get(mmapDir, mmapReadFileName),
-                             StandardOpenOption.CREATE, StandardOpenOption.READ,
-                             StandardOpenOption.WRITE)) {
-
-            mmapWriteBytes = ByteBufferBytes.wrap(mmapWriteFc.map(FileChannel.MapMode.READ_WRITE, 0L, 3 * Integer.BYTES));
-            mmapReadBytes = ByteBufferBytes.wrap(
-                    mmapReadFc.map(FileChannel.MapMode.READ_WRITE, 0L, 3 * worldProcsCount * Integer.BYTES));
-            mmapWriteByteBuffer = mmapWriteBytes.sliceAsByteBuffer(mmapWriteByteBuffer);
-            mmapReadByteBuffer = mmapReadBytes.sliceAsByteBuffer(mmapReadByteBuffer);
-        }
-
         findCgProcCommRankOfMmapLeadForAllRanks();
     }
 
     public static void endParallelism() throws MPIException {
-        MPI.Finalize();
+        if (!isLocal) {
+            MPI.Finalize();
+        }
     }
 
     private static void findCgProcCommRankOfMmapLeadForAllRanks() throws MPIException {
@@ -294,7 +439,13 @@ public class ParallelOps {
         }
         worldProcsComm.barrier();
         if(isMmapLead){
-            cgProcComm.allGather(mmapWriteByteBuffer, 3, MPI.INT, mmapReadByteBuffer, 3, MPI.INT);
+            int[] send = new int[]{mmapWriteBytes.readInt(0), mmapWriteBytes.readInt(Integer.BYTES),
+                    mmapWriteBytes.readInt(2*Integer.BYTES)};
+            int[] recv = new int[3*cgProcsCount];
+            cgProcComm.allGather(send, 3, recv);
+            for (int i = 0; i < recv.length; ++i){
+                mmapReadBytes.writeInt(i*Integer.BYTES, recv[i]);
+            }
         }
         worldProcsComm.barrier();
         int cgr;
@@ -314,22 +465,20 @@ public class ParallelOps {
 
     private static int[] findQandR() throws MPIException {
         int q,r;
-        String str = worldProcRank+ "@" +machineName +'#';
-        intBuffer.put(0, str.length());
-        worldProcsComm.allReduce(intBuffer, 1, MPI.INT, MPI.MAX);
-        int maxLength = intBuffer.get(0);
-        CharBuffer buffer = MPI.newCharBuffer(maxLength*worldProcsCount);
-        buffer.position(maxLength*worldProcRank);
-        buffer.put(str);
-        for (int i = str.length(); i < maxLength; ++i){
-            buffer.put(i, '~');
+        byte[] str = (worldProcRank+ "@" +machineName +'#').getBytes(StandardCharsets.UTF_8);
+        int[] length = new int[]{str.length};
+        worldProcsComm.allReduce(length, 1, Communicator.Op.MAX);
+        int maxLength = length[0];
+        byte[] buffer = new byte[maxLength*worldProcsCount];
+        System.arraycopy(str, 0, buffer, maxLength*worldProcRank, str.length);
+        for (int i = str.length; i < maxLength; ++i){
+            buffer[maxLength*worldProcRank + i] = '~';
         }
 
-        worldProcsComm.allGather(buffer, maxLength, MPI.CHAR);
-        buffer.position(0);
+        worldProcsComm.allGather(buffer, maxLength);
         Pattern nodeSep = Pattern.compile("#~*");
         Pattern nameSep = Pattern.compile("@");
-        String[] nodeSplits = nodeSep.split(buffer.toString());
+        String[] nodeSplits = nodeSep.split(new String(buffer, StandardCharsets.UTF_8));
         HashMap<String, Integer> nodeToProcCount = new HashMap<>();
         HashMap<Integer, String> rankToNode = new HashMap<>();
         String node;
@@ -362,25 +511,79 @@ public class ParallelOps {
         }
         worldProcRankLocalToNode = worldProcRank - rankOffset;
         final int procCountOnMyNode = nodeToProcCount.get(myNode);
+        worldProcsCountLocalToNode = procCountOnMyNode;
+        worldProcOrdinalLocalToNode = 0;
+        for (int i = 0; i < worldProcRank; ++i){
+            if (myNode.equals(rankToNode.get(i))) ++worldProcOrdinalLocalToNode;
+        }
+        nodeLeadWorldRank = worldProcRank - worldProcOrdinalLocalToNode;
+        for (int i = 0; i < worldProcRank; ++i){
+            if (myNode.equals(rankToNode.get(i))) {
+                nodeLeadWorldRank = i;
+                break;
+            }
+        }
         q = procCountOnMyNode / mmapsPerNode;
         r = procCountOnMyNode % mmapsPerNode;
 
         return new int[]{q,r};
     }
 
+    /**
+     * Collective call over the ranks of the node. Of those with the same cpu
+     * mask as this rank, e.g. all unbound or all in one cgroup, returns this
+     * rank's position and how many there are.
+     */
+    public static int[] shareOfMask(BitSet mask) throws MPIException {
+        byte[] bytes = mask.toByteArray();
+        int[] length = new int[]{Math.max(1, bytes.length)};
+        nodeProcComm.allReduce(length, 1, Communicator.Op.MAX);
+        int rank = nodeProcComm.getRank();
+        int size = nodeProcComm.getSize();
+        byte[] masks = new byte[length[0] * size];
+        System.arraycopy(bytes, 0, masks, rank * length[0], bytes.length);
+        nodeProcComm.allGather(masks, length[0]);
+        int position = 0;
+        int count = 0;
+        for (int r = 0; r < size; ++r) {
+            if (!BitSet.valueOf(Arrays.copyOfRange(masks, r * length[0], (r + 1) * length[0])).equals(mask)) continue;
+            if (r < rank) ++position;
+            ++count;
+        }
+        return new int[]{position, count};
+    }
+
     public static long getDirectByteBufferAddressViaField(ByteBuffer buffer) throws NoSuchFieldException {
         long addressOffset = UNSAFE.objectFieldOffset(Buffer.class.getDeclaredField("address"));
         return UNSAFE.getLong(buffer, addressOffset);
     }
 
     public static void allReduceSum(double[] values, int offset, int length) throws MPIException {
+        long start = System.nanoTime();
+        long interNode = 0L;
+        if (isLocal) {
+            // Ranks share the heap, so no need to go through memory maps
+            if (offset == 0) {
+                worldProcsComm.allReduce(values, length, Communicator.Op.SUM);
+            } else {
+                double[] tmp = new double[length];
+                System.arraycopy(values, offset, tmp, 0, length);
+                worldProcsComm.allReduce(tmp, length, Communicator.Op.SUM);
+                System.arraycopy(tmp, 0, values, offset, length);
+            }
+            lastAllReduceLocalMs = (System.nanoTime() - start) * 1e-6;
+            lastAllReduceInterNodeMs = 0.0;
+            return;
+        }
         /* special case when #procs per memory map group is 1. Then there's no need to go through the hassle of
         *  making memory maps. Also, this should be done only when running in uniform settings*/
         if (!isHeterogeneous && mmapProcsCount == 1) {
             for (int i = 0; i < length; ++i) {
                 mmapCollectiveBytes.writeDouble(i * Double.BYTES, values[offset + i]);
             }
-            worldProcsComm.allReduce(mmapCollectiveByteBuffer, length, MPI.DOUBLE, MPI.SUM);
+            interNode = System.nanoTime();
+            worldProcsComm.allReduce(mmapCollectiveByteBuffer, length, Communicator.Op.SUM);
+            interNode = System.nanoTime() - interNode;
         } else {
 
             /* Safety logic to make sure all procs in the mmap has reached here. Otherwise, it's possible that
@@ -426,7 +629,9 @@ public class ParallelOps {
                 }
 
                 // Leaders participate in MPI AllReduce
-                cgProcComm.allReduce(mmapCollectiveByteBuffer, length, MPI.DOUBLE, MPI.SUM);
+                interNode = System.nanoTime();
+                cgProcComm.allReduce(mmapCollectiveByteBuffer, length, Communicator.Op.SUM);
+                interNode = System.nanoTime() - interNode;
                 if (mmapProcsCount > 1) {
                     mmapLockOne.writeInt(COUNT, 1); // order matters as no locks
                     mmapLockOne.writeBoolean(FLAG, true);
@@ -439,7 +644,9 @@ public class ParallelOps {
                     mmapLockOne.writeBoolean(FLAG, false);
                 }
             } else {
+                interNode = System.nanoTime();
                 busyWaitTillDataReady();
+                interNode = System.nanoTime() - interNode;
             }
         }
 
@@ -447,7 +654,8 @@ public class ParallelOps {
         for (int i = 0; i < length; ++i) {
             values[i] = ParallelOps.mmapCollectiveBytes.readDouble();
         }
-
+        lastAllReduceInterNodeMs = interNode * 1e-6;
+        lastAllReduceLocalMs = (System.nanoTime() - start - interNode) * 1e-6;
 
     }
 
@@ -0,0 +1,113 @@
+package org.saliya.ompi.kmeans;
+
+/**
+ * Nearest center search that abandons a center as soon as its partial
+ * squared distance, checked after every block of {@link #BLOCK} dimensions,
+ * exceeds the best so far. Each point tries its previous center first, which
+ * is usually still the nearest and makes the bound tight from the start.
+ *
+ * Centers are laid out by dimension blocks, [block][center][BLOCK], so the
+ * leading blocks of all centers, where most searches stop, are contiguous.
+ * Squares are summed in the same order as
+ * {@link Program#getEuclideanDistance}, and the bound keeps a small slack
+ * for centers whose rounded distances could still tie, so labels are the
+ * same as the brute force kernel's.
+ */
+public class PartialDistance {
+    public static final int BLOCK = 8;
+    // Squared distances this close may still round to the same distance
+    private static final double TIE_SLACK = 1e-12;
+
+    /**
+     * Copies centers into the blocked layout, blocked needs numCenters*dimension
+     */
+    public static void toBlocked(double[] centers, int numCenters, int dimension, double[] blocked) {
+        for (int b = 0; b < dimension; b += BLOCK) {
+            int width = Math.min(BLOCK, dimension - b);
+            // Blocks before b hold BLOCK dimensions of every center
+            int blockOffset = b * numCenters;
+            for (int c = 0; c < numCenters; ++c) {
+                System.arraycopy(centers, c * dimension + b, blocked, blockOffset + c * width, width);
+            }
+        }
+    }
+
+    /**
+     * Same contract as the range kernel Program.findNearesetCenters, with
+     * the centers in the blocked layout
+     *
+     * @return number of points whose cluster assignment changed
+     */
+    public static int findNearestCenters(int dimension, double[] points, int pointsOffset, int count,
+                                         double[] blockedCenters, int numCenters, double[] centerSumsAndCounts,
+                                         int centerSumsOffset, int[] clusterAssignments, int assignmentsOffset) {
+        return findNearestCenters(dimension, points, pointsOffset, count, blockedCenters, numCenters,
+                centerSumsAndCounts, centerSumsOffset, clusterAssignments, assignmentsOffset, null);
+    }
+
+    /**
+     * Same as above with weighted points, or unweighted ones with null weights
+     */
+    public static int findNearestCenters(int dimension, double[] points, int pointsOffset, int count,
+                                         double[] blockedCenters, int numCenters, double[] centerSumsAndCounts,
+                                         int centerSumsOffset, int[] clusterAssignments, int assignmentsOffset,
+                                         double[] weights) {
+        int moved = 0;
+        for (int i = 0; i < count; ++i) {
+            int pointOffset = pointsOffset + i * dimension;
+            int previous = clusterAssignments[assignmentsOffset + i];
+            int first = previous >= 0 && previous < numCenters ? previous : 0;
+            int best = first;
+            double dMin = Math.sqrt(squaredDistance(points, pointOffset, blockedCenters, first, numCenters,
+                    dimension, Double.MAX_VALUE));
+            if (Double.isNaN(dMin)) {
+                // Left over from an empty cluster, never the nearest
+                dMin = Double.MAX_VALUE;
+            }
+            double limit = dMin * dMin * (1 + TIE_SLACK);
+            for (int c = 0; c < numCenters; ++c) {
+                if (c == first) continue;
+                double sq = squaredDistance(points, pointOffset, blockedCenters, c, numCenters, dimension, limit);
+                if (sq > limit) continue;
+                double dist = Math.sqrt(sq);
+                // Lowest index wins ties, as with a plain scan
+                if (dist < dMin || (dist == dMin && c < best)) {
+                    dMin = dist;
+                    best = c;
+                    limit = dMin * dMin * (1 + TIE_SLACK);
+                }
+            }
+
+            int centerOffset = centerSumsOffset + best * (dimension + 1);
+            if (weights == null) {
+                ++centerSumsAndCounts[centerOffset + dimension];
+                Program.accumulate(points, centerSumsAndCounts, pointOffset, centerOffset, dimension);
+            } else {
+                double weight = weights[assignmentsOffset + i];
+                centerSumsAndCounts[centerOffset + dimension] += weight;
+                Program.accumulate(points, centerSumsAndCounts, pointOffset, centerOffset, dimension, weight);
+            }
+            if (previous != best) {
+                ++moved;
+            }
+            clusterAssignments[assignmentsOffset + i] = best;
+        }
+        return moved;
+    }
+
+    /* Squared distance, or a partial sum over limit once past it */
+    private static double squaredDistance(double[] points, int pointOffset, double[] blockedCenters, int c,
+                                          int numCenters, int dimension, double limit) {
+        double sum = 0.0;
+        for (int b = 0; b < dimension; b += BLOCK) {
+            int width = Math.min(BLOCK, dimension - b);
+            int centerOffset = b * numCenters + c * width;
+            for (int j = 0; j < width; ++j) {
+                double diff = points[pointOffset + b + j] - blockedCenters[centerOffset + j];
+                sum += diff * diff;
+            }
+            if (sum > limit) return sum;
+        }
+        return sum;
+    }
+}
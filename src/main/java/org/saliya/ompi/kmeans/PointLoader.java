@@ -0,0 +1,102 @@
+package org.saliya.ompi.kmeans;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Loads the points of this rank into one array on a reader thread, so the
+ * first iteration can start on the rows already there. Rows are read in
+ * rounds of blockRows from every thread's range in turn, in the order the
+ * threads assign them with static scheduling, and each with one bulk get.
+ */
+public class PointLoader {
+    private final double[] points;
+    private final int blockRows;
+    // Rows of each thread's range loaded so far, guarded by this
+    private final int[] loadedRows;
+    private IOException failure;
+    private final Thread reader;
+    private volatile double loadMs;
+
+    public PointLoader(String pointsFile, int dimension, boolean isBigEndian, int blockRows, int numThreads) {
+        this.blockRows = Math.max(1, blockRows);
+        points = new double[ParallelOps.pointsForProc * dimension];
+        loadedRows = new int[numThreads];
+        reader = new Thread(() -> load(pointsFile, dimension, isBigEndian, numThreads), "loader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void load(String pointsFile, int dimension, boolean isBigEndian, int numThreads) {
+        long t = System.nanoTime();
+        try {
+            PointReader pointReader = PointReader.readRowRange(pointsFile, ParallelOps.pointStartIdxForProc,
+                    ParallelOps.pointsForProc, dimension, isBigEndian);
+            boolean more = true;
+            for (int start = 0; more; start += blockRows) {
+                more = false;
+                for (int threadIdx = 0; threadIdx < numThreads; ++threadIdx) {
+                    int rows = Math.min(blockRows, ParallelOps.pointsForThread[threadIdx] - start);
+                    if (rows <= 0) continue;
+                    int row = ParallelOps.pointStartIdxForThread[threadIdx] + start;
+                    pointReader.getRows(ParallelOps.pointStartIdxForProc + row, rows, points, row * dimension);
+                    synchronized (this) {
+                        loadedRows[threadIdx] = start + rows;
+                        notifyAll();
+                    }
+                    more = true;
+                }
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                failure = e;
+                notifyAll();
+            }
+        }
+        loadMs = (System.nanoTime() - t) * 1e-6;
+    }
+
+    public double[] getPoints() {
+        return points;
+    }
+
+    public int getBlockRows() {
+        return blockRows;
+    }
+
+    /**
+     * Waits until the first rows of the thread's range are loaded
+     */
+    public synchronized void await(int threadIdx, int rows) {
+        while (loadedRows[threadIdx] < rows) {
+            if (failure != null) {
+                throw new UncheckedIOException(failure);
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while loading points", e);
+            }
+        }
+    }
+
+    public void awaitAll() {
+        try {
+            reader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while loading points", e);
+        }
+        synchronized (this) {
+            if (failure != null) {
+                throw new UncheckedIOException(failure);
+            }
+        }
+    }
+
+    /* Wall time of the whole load, valid after awaitAll() */
+    public double getLoadMs() {
+        return loadMs;
+    }
+}
@@ -0,0 +1,144 @@
+package org.saliya.ompi.kmeans;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Reorders the points of every thread's range along a space filling curve,
+ * so consecutive points tend to fall in the same cluster and the writes to
+ * the center sums stay in a few cache lines. Points only move within their
+ * thread's range, so the decomposition and NUMA placement are unchanged.
+ *
+ * Keys pack the curve position over the bounding box of the range above
+ * the point's index, so a single sort of longs orders the points and ties
+ * keep file order. Past 63 bits of key the trailing dimensions are left out.
+ */
+public class PointOrder {
+    public static final String ORDER_FILE = "file";
+    public static final String ORDER_MORTON = "morton";
+    public static final String ORDER_HILBERT = "hilbert";
+    private static final int MAX_BITS_PER_DIMENSION = 20;
+
+    /**
+     * Sorts the points of every thread's range in place
+     *
+     * @return rank local row of the point now at each position
+     */
+    public static int[] sort(String curve, double[][] threadPoints, int[] threadPointOffsets, int dimension,
+                             int numThreads) {
+        boolean hilbert = ORDER_HILBERT.equals(curve);
+        int[] order = new int[ParallelOps.pointsForProc];
+        IntStream.range(0, numThreads).parallel().forEach(
+                t -> sort(hilbert, threadPoints[t], threadPointOffsets[t], ParallelOps.pointsForThread[t],
+                        ParallelOps.pointStartIdxForThread[t], dimension, order));
+        return order;
+    }
+
+    private static void sort(boolean hilbert, double[] points, int pointsOffset, int count, int start, int dimension,
+                             int[] order) {
+        if (count == 0) return;
+        int indexBits = Math.max(1, 32 - Integer.numberOfLeadingZeros(count - 1));
+        int keyBits = 63 - indexBits;
+        int dims = Math.min(dimension, keyBits);
+        int bits = Math.min(MAX_BITS_PER_DIMENSION, keyBits / dims);
+        long cells = (1L << bits) - 1;
+
+        double[] min = new double[dims];
+        double[] scale = new double[dims];
+        Arrays.fill(min, Double.MAX_VALUE);
+        Arrays.fill(scale, -Double.MAX_VALUE);
+        for (int i = 0; i < count; ++i) {
+            for (int j = 0; j < dims; ++j) {
+                double x = points[pointsOffset + i * dimension + j];
+                min[j] = Math.min(min[j], x);
+                scale[j] = Math.max(scale[j], x);
+            }
+        }
+        for (int j = 0; j < dims; ++j) {
+            double extent = scale[j] - min[j];
+            scale[j] = extent > 0 ? cells / extent : 0.0;
+        }
+
+        long[] keys = new long[count];
+        long[] coordinates = new long[dims];
+        for (int i = 0; i < count; ++i) {
+            for (int j = 0; j < dims; ++j) {
+                coordinates[j] = Math.min(cells, (long) ((points[pointsOffset + i * dimension + j] - min[j]) * scale[j]));
+            }
+            if (hilbert) {
+                toHilbertTranspose(coordinates, bits, dims);
+            }
+            keys[i] = interleave(coordinates, bits, dims) << indexBits | i;
+        }
+        Arrays.sort(keys);
+
+        double[] copy = Arrays.copyOfRange(points, pointsOffset, pointsOffset + count * dimension);
+        long mask = (1L << indexBits) - 1;
+        for (int p = 0; p < count; ++p) {
+            int i = (int) (keys[p] & mask);
+            System.arraycopy(copy, i * dimension, points, pointsOffset + p * dimension, dimension);
+            order[start + p] = start + i;
+        }
+    }
+
+    private static long interleave(long[] coordinates, int bits, int dims) {
+        long key = 0;
+        for (int b = bits - 1; b >= 0; --b) {
+            for (int j = 0; j < dims; ++j) {
+                key = key << 1 | ((coordinates[j] >>> b) & 1);
+            }
+        }
+        return key;
+    }
+
+    /* Skilling, Programming the Hilbert curve (2004). Interleaving the result gives the Hilbert index. */
+    private static void toHilbertTranspose(long[] x, int bits, int dims) {
+        long m = 1L << (bits - 1);
+        for (long q = m; q > 1; q >>= 1) {
+            long p = q - 1;
+            for (int i = 0; i < dims; ++i) {
+                if ((x[i] & q) != 0) {
+                    x[0] ^= p;
+                } else {
+                    long t = (x[0] ^ x[i]) & p;
+                    x[0] ^= t;
+                    x[i] ^= t;
+                }
+            }
+        }
+        for (int i = 1; i < dims; ++i) {
+            x[i] ^= x[i - 1];
+        }
+        long t = 0;
+        for (long q = m; q > 1; q >>= 1) {
+            if ((x[dims - 1] & q) != 0) {
+                t ^= q - 1;
+            }
+        }
+        for (int i = 0; i < dims; ++i) {
+            x[i] ^= t;
+        }
+    }
+
+    /**
+     * Consecutive points of a thread's range that are in different clusters,
+     * in the current order and in file order
+     *
+     * @param order as returned by {@link #sort}
+     */
+    public static long[] clusterChanges(int[] clusterAssignments, int[] order) {
+        int[] fileOrder = new int[clusterAssignments.length];
+        for (int p = 0; p < order.length; ++p) {
+            fileOrder[order[p]] = clusterAssignments[p];
+        }
+        long[] changes = new long[2];
+        for (int t = 0; t < ParallelOps.pointsForThread.length; ++t) {
+            int start = ParallelOps.pointStartIdxForThread[t];
+            for (int i = start + 1; i < start + ParallelOps.pointsForThread[t]; ++i) {
+                if (clusterAssignments[i] != clusterAssignments[i - 1]) ++changes[0];
+                if (fileOrder[i] != fileOrder[i - 1]) ++changes[1];
+            }
+        }
+        return changes;
+    }
+}
@@ -8,7 +8,7 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 
-public class PointReader
+public abstract class PointReader
 {
     public static PointReader readRowRange(
         String fname, int startRow, int numRows, int dimension,
@@ -41,20 +41,42 @@ public class PointReader
             {
                 @Override
                 public void getPoint(int globalRow, double[] points, int dimension, int offset)
+                {
+                    getRows(globalRow, 1, points, offset);
+                }
+
+                @Override
+                public void getRows(int globalRow, int rows, double[] points, int offset)
                 {
                     long pos = ((globalRow - startRow) *
                                 ((long) dimension)); // double position
                     // relative to start row
-                    int mapIdx = (int) (pos / m);
-                    maps[mapIdx].position((int) (pos - (m * ((long) mapIdx))));
-                    maps[mapIdx].get(points,offset,dimension);
+                    long remaining = ((long) rows) * dimension;
+                    int doublesPerMap = m / 8;
+                    while (remaining > 0)
+                    {
+                        // Ranges may straddle maps
+                        int mapIdx = (int) (pos / doublesPerMap);
+                        int mapPos = (int) (pos - ((long) doublesPerMap) * mapIdx);
+                        int length = (int) Math.min(remaining,
+                                                    doublesPerMap - mapPos);
+                        DoubleBuffer map = maps[mapIdx].duplicate();
+                        map.position(mapPos);
+                        map.get(points, offset, length);
+                        pos += length;
+                        offset += length;
+                        remaining -= length;
+                    }
                 }
             };
         }
     }
 
-    public void getPoint(int globalRow, double[] points, int dimension, int offset)
-    {
-        throw new UnsupportedOperationException();
-    }
+    public abstract void getPoint(int globalRow, double[] points, int dimension, int offset);
+
+    /**
+     * Consecutive rows starting at globalRow with one bulk get per map,
+     * safe to call from several threads at once
+     */
+    public abstract void getRows(int globalRow, int rows, double[] points, int offset);
 }
@@ -0,0 +1,186 @@
+package org.saliya.ompi.kmeans;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Streams the points of this rank from the points file in windows, for
+ * slices that don't fit in memory. A window holds the next slice of up to
+ * sliceRows rows of every thread's range, so each thread still sees its own
+ * rows in order, as with the points in memory. Two window buffers are
+ * filled alternately by a prefetch thread, which reads window i+1 (wrapping
+ * around to the next iteration's first window) while window i is computed.
+ *
+ * Java has no madvise, so rows are read with sequential positional reads of
+ * each slice into one direct buffer, which kernel readahead picks up, and
+ * copied out with one bulk DoubleBuffer get.
+ */
+public class PointStream implements AutoCloseable {
+    private final FileChannel channel;
+    private final int dimension;
+    private final int numThreads;
+    private final int sliceRows;
+    private final int windows;
+    private final ByteBuffer bytes;
+
+    private final double[][] buffers = new double[2][];
+    private final Future<?>[] pending = new Future<?>[2];
+    private final ExecutorService prefetcher;
+    // Sequence number of the next window handed out, counting over iterations
+    private long next = 0;
+
+    // Of the last read into each buffer, written by the prefetch thread and
+    // counted once the window is taken, so windows never used don't count
+    private final long[] bufferBytes = new long[2];
+    private final double[] bufferMs = new double[2];
+    private long bytesRead = 0;
+    private double readMs = 0.0;
+    private double waitMs = 0.0;
+
+    /**
+     * @param windowRows rows of the rank per window, split evenly over threads
+     */
+    public PointStream(String pointsFile, int dimension, boolean isBigEndian, int windowRows, int numThreads)
+            throws IOException {
+        this.dimension = dimension;
+        this.numThreads = numThreads;
+        channel = FileChannel.open(Paths.get(pointsFile), StandardOpenOption.READ);
+        int maxPointsForThread = 0;
+        for (int t = 0; t < numThreads; ++t) {
+            maxPointsForThread = Math.max(maxPointsForThread, ParallelOps.pointsForThread[t]);
+        }
+        sliceRows = Math.max(1, Math.min(windowRows / numThreads, maxPointsForThread));
+        windows = Math.max(1, (maxPointsForThread + sliceRows - 1) / sliceRows);
+        bytes = ByteBuffer.allocateDirect(sliceRows * dimension * Double.BYTES).order(
+                isBigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+        buffers[0] = new double[numThreads * sliceRows * dimension];
+        buffers[1] = new double[numThreads * sliceRows * dimension];
+        prefetcher = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "prefetch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        prefetch(0);
+        prefetch(1);
+    }
+
+    public int getWindows() {
+        return windows;
+    }
+
+    public int getSliceRows() {
+        return sliceRows;
+    }
+
+    /* First row of the thread's slice in a window, relative to the thread's range */
+    public int sliceStart(int window) {
+        return window * sliceRows;
+    }
+
+    public int sliceCount(int window, int threadIdx) {
+        return Math.max(0, Math.min(sliceRows, ParallelOps.pointsForThread[threadIdx] - sliceStart(window)));
+    }
+
+    /* Offset of the thread's slice within a window buffer */
+    public int sliceOffset(int threadIdx) {
+        return threadIdx * sliceRows * dimension;
+    }
+
+    /**
+     * Waits for the next window, which stays valid until {@link #release()}
+     *
+     * @return index of the window within an iteration
+     */
+    public int take() {
+        long t = System.nanoTime();
+        int buffer = (int) (next % 2);
+        try {
+            pending[buffer].get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new UncheckedIOException(new IOException("Prefetching points failed", e));
+        }
+        waitMs += (System.nanoTime() - t) * 1e-6;
+        bytesRead += bufferBytes[buffer];
+        readMs += bufferMs[buffer];
+        return (int) (next % windows);
+    }
+
+    public double[] buffer() {
+        return buffers[(int) (next % 2)];
+    }
+
+    /**
+     * Done with the window of the last {@link #take()}, its buffer gets the
+     * window after the one being prefetched
+     */
+    public void release() {
+        prefetch(next + 2);
+        ++next;
+    }
+
+    private void prefetch(long sequence) {
+        int buffer = (int) (sequence % 2);
+        int window = (int) (sequence % windows);
+        pending[buffer] = prefetcher.submit(() -> {
+            read(window, buffer);
+            return null;
+        });
+    }
+
+    private void read(int window, int bufferIdx) throws IOException {
+        double[] buffer = buffers[bufferIdx];
+        long t = System.nanoTime();
+        long total = 0;
+        for (int threadIdx = 0; threadIdx < numThreads; ++threadIdx) {
+            int rows = sliceCount(window, threadIdx);
+            if (rows == 0) continue;
+            long row = ParallelOps.pointStartIdxForProc + ParallelOps.pointStartIdxForThread[threadIdx] +
+                    sliceStart(window);
+            long position = row * dimension * Double.BYTES;
+            bytes.clear().limit(rows * dimension * Double.BYTES);
+            while (bytes.hasRemaining()) {
+                if (channel.read(bytes, position + bytes.position()) < 0) {
+                    throw new IOException("Points file ends before row " + (row + rows));
+                }
+            }
+            bytes.flip();
+            bytes.asDoubleBuffer().get(buffer, sliceOffset(threadIdx), rows * dimension);
+            total += rows * dimension * Double.BYTES;
+        }
+        bufferBytes[bufferIdx] = total;
+        bufferMs[bufferIdx] = (System.nanoTime() - t) * 1e-6;
+    }
+
+    /* Totals of the windows taken so far */
+
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    public double getReadMs() {
+        return readMs;
+    }
+
+    public double getWaitMs() {
+        return waitMs;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Only the wrap around windows are left, nobody takes them
+        for (Future<?> future : pending) {
+            future.cancel(true);
+        }
+        prefetcher.shutdownNow();
+        channel.close();
+    }
+}
@@ -0,0 +1,229 @@
+package org.saliya.ompi.kmeans;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Approximate nearest center search for very large k by product
+ * quantization (Jegou et al., Product Quantization for Nearest Neighbor
+ * Search, 2011). Dimensions are split into subspaces, and the part of every
+ * center in a subspace is replaced by the nearest of {@link #CODEWORDS}
+ * codewords, so a center is coded in one byte per subspace.
+ *
+ * A point builds a table of its squared distance to every codeword of every
+ * subspace, after which the approximate distance to a center is a sum of one
+ * table entry per subspace. The closest centers by these sums, along with the
+ * point's previous center, are re-ranked with exact distances against the
+ * centers. More subspaces and more re-ranked centers bring labels closer to
+ * exact Lloyd's at a higher cost.
+ *
+ * Codebooks are trained on (a sample of) the centers with a few Lloyd
+ * iterations, starting from the codebooks of the previous iteration, and all
+ * centers are coded again every iteration. Ranks do the same with the same
+ * centers, so they agree on the codes without communication.
+ */
+public class ProductQuantizer {
+    public static final int CODEWORDS = 256;
+    private static final int TRAIN_ITERATIONS = 4;
+    // Centers sampled to train each codebook
+    private static final int MAX_TRAIN = 64 * CODEWORDS;
+
+    private final int dimension;
+    private final int subspaces;
+    private final int rerank;
+    // Subspace s covers dimensions [subspaceStart[s], subspaceStart[s + 1])
+    private final int[] subspaceStart;
+    // Codewords of subspace s start at subspaceStart[s] * CODEWORDS, each as wide as the subspace
+    private final double[] codebooks;
+    private boolean trained = false;
+    // Codes of center c are codes[c * subspaces + s]
+    private final byte[] codes;
+    private int numCodewords;
+
+    public ProductQuantizer(int dimension, int subspaces, int rerank, int maxCenters) {
+        this.dimension = dimension;
+        this.subspaces = Math.max(1, Math.min(subspaces, dimension));
+        this.rerank = Math.max(1, rerank);
+        subspaceStart = new int[this.subspaces + 1];
+        for (int s = 0; s <= this.subspaces; ++s) {
+            subspaceStart[s] = (int) ((long) s * dimension / this.subspaces);
+        }
+        codebooks = new double[dimension * CODEWORDS];
+        codes = new byte[maxCenters * this.subspaces];
+    }
+
+    public int getSubspaces() {
+        return subspaces;
+    }
+
+    public int getRerank() {
+        return rerank;
+    }
+
+    /**
+     * Trains the codebooks on the centers and codes them
+     */
+    public void quantize(double[] centers, int numCenters) {
+        if (numCodewords != Math.min(CODEWORDS, numCenters)) {
+            numCodewords = Math.min(CODEWORDS, numCenters);
+            trained = false;
+        }
+        IntStream.range(0, subspaces).parallel().forEach(s -> quantize(s, centers, numCenters));
+        trained = true;
+    }
+
+    private void quantize(int s, double[] centers, int numCenters) {
+        int from = subspaceStart[s];
+        int width = subspaceStart[s + 1] - from;
+        int codebookOffset = from * CODEWORDS;
+        if (numCenters <= CODEWORDS) {
+            // Every center is its own codeword and distances are exact
+            for (int c = 0; c < numCenters; ++c) {
+                System.arraycopy(centers, c * dimension + from, codebooks, codebookOffset + c * width, width);
+                codes[c * subspaces + s] = (byte) c;
+            }
+            return;
+        }
+
+        int samples = Math.min(numCenters, MAX_TRAIN);
+        if (!trained) {
+            // Evenly spaced centers
+            for (int w = 0; w < numCodewords; ++w) {
+                int c = (int) ((long) w * numCenters / numCodewords);
+                System.arraycopy(centers, c * dimension + from, codebooks, codebookOffset + w * width, width);
+            }
+        }
+        double[] sums = new double[numCodewords * (width + 1)];
+        for (int itr = 0; itr < TRAIN_ITERATIONS; ++itr) {
+            Arrays.fill(sums, 0.0);
+            for (int i = 0; i < samples; ++i) {
+                int c = (int) ((long) i * numCenters / samples);
+                // Left over from an empty cluster
+                if (Double.isNaN(centers[c * dimension + from])) continue;
+                int w = nearestCodeword(centers, c * dimension + from, codebookOffset, width);
+                int sumOffset = w * (width + 1);
+                for (int j = 0; j < width; ++j) {
+                    sums[sumOffset + j] += centers[c * dimension + from + j];
+                }
+                ++sums[sumOffset + width];
+            }
+            for (int w = 0; w < numCodewords; ++w) {
+                int sumOffset = w * (width + 1);
+                double count = sums[sumOffset + width];
+                // An empty codeword stays where it is
+                if (count == 0) continue;
+                for (int j = 0; j < width; ++j) {
+                    codebooks[codebookOffset + w * width + j] = sums[sumOffset + j] / count;
+                }
+            }
+        }
+        for (int c = 0; c < numCenters; ++c) {
+            codes[c * subspaces + s] = (byte) nearestCodeword(centers, c * dimension + from, codebookOffset, width);
+        }
+    }
+
+    private int nearestCodeword(double[] vector, int vectorOffset, int codebookOffset, int width) {
+        double dMin = Double.MAX_VALUE;
+        int best = 0;
+        for (int w = 0; w < numCodewords; ++w) {
+            double sum = 0.0;
+            for (int j = 0; j < width; ++j) {
+                double diff = vector[vectorOffset + j] - codebooks[codebookOffset + w * width + j];
+                sum += diff * diff;
+            }
+            if (sum < dMin) {
+                dMin = sum;
+                best = w;
+            }
+        }
+        return best;
+    }
+
+    /* Scratch arrays of one thread for findNearestCenters */
+
+    public double[] newTable() {
+        return new double[subspaces * CODEWORDS];
+    }
+
+    public int[] newCandidates() {
+        return new int[rerank + 1];
+    }
+
+    public double[] newCandidateDistances() {
+        return new double[rerank + 1];
+    }
+
+    /**
+     * Same contract as the range kernel Program.findNearesetCenters, except
+     * a point only gets the exactly nearest of its re-ranked centers
+     *
+     * @return number of points whose cluster assignment changed
+     */
+    public int findNearestCenters(double[] points, int pointsOffset, int count, double[] centers, int numCenters,
+                                  double[] centerSumsAndCounts, int centerSumsOffset, int[] clusterAssignments,
+                                  int assignmentsOffset, double[] table, int[] candidates,
+                                  double[] candidateDistances) {
+        int moved = 0;
+        for (int i = 0; i < count; ++i) {
+            int pointOffset = pointsOffset + i * dimension;
+            for (int s = 0; s < subspaces; ++s) {
+                int from = subspaceStart[s];
+                int width = subspaceStart[s + 1] - from;
+                int codebookOffset = from * CODEWORDS;
+                for (int w = 0; w < numCodewords; ++w) {
+                    double sum = 0.0;
+                    for (int j = 0; j < width; ++j) {
+                        double diff = points[pointOffset + from + j] - codebooks[codebookOffset + w * width + j];
+                        sum += diff * diff;
+                    }
+                    table[s * CODEWORDS + w] = sum;
+                }
+            }
+
+            // Closest centers by the tables, in ascending order
+            int found = 0;
+            int limit = Math.min(rerank, numCenters);
+            for (int c = 0; c < numCenters; ++c) {
+                double sum = 0.0;
+                int codeOffset = c * subspaces;
+                for (int s = 0; s < subspaces; ++s) {
+                    sum += table[s * CODEWORDS + (codes[codeOffset + s] & 0xff)];
+                }
+                if (found == limit && sum >= candidateDistances[found - 1]) continue;
+                int p = found < limit ? found++ : found - 1;
+                while (p > 0 && candidateDistances[p - 1] > sum) {
+                    candidateDistances[p] = candidateDistances[p - 1];
+                    candidates[p] = candidates[p - 1];
+                    --p;
+                }
+                candidateDistances[p] = sum;
+                candidates[p] = c;
+            }
+            int previous = clusterAssignments[assignmentsOffset + i];
+            if (previous >= 0 && previous < numCenters) {
+                candidates[found++] = previous;
+            }
+
+            int best = candidates[0];
+            double dMin = Double.MAX_VALUE;
+            for (int p = 0; p < found; ++p) {
+                int c = candidates[p];
+                double dist = Program.getEuclideanDistance(points, centers, dimension, pointOffset, c * dimension);
+                // Lowest index wins ties, as with a plain scan
+                if (dist < dMin || (dist == dMin && c < best)) {
+                    dMin = dist;
+                    best = c;
+                }
+            }
+
+            int centerOffset = centerSumsOffset + best * (dimension + 1);
+            ++centerSumsAndCounts[centerOffset + dimension];
+            Program.accumulate(points, centerSumsAndCounts, pointOffset, centerOffset, dimension);
+            if (previous != best) {
+                ++moved;
+            }
+            clusterAssignments[assignmentsOffset + i] = best;
+        }
+        return moved;
+    }
+}
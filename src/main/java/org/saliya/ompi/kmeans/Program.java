@@ -4,12 +4,13 @@ import com.google.common.base.Optional;
 import com.google.common.base.Stopwatch;
 import com.google.common.base.Strings;
 import com.google.common.primitives.Doubles;
-import mpi.MPI;
 import mpi.MPIException;
 import net.openhft.affinity.Affinity;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Options;
+import org.saliya.ompi.kmeans.comm.Communicator;
+import org.saliya.ompi.kmeans.comm.LocalLauncher;
 
 import java.io.IOException;
 import java.io.PrintWriter;
@@ -24,13 +25,18 @@ import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Date;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.IntStream;
 
 import static edu.rice.hj.Module0.launchHabaneroApp;
 import static edu.rice.hj.Module1.forallChunked;
 
 public class Program {
+    private static final String LOAD_SERIAL = "serial";
+    private static final String LOAD_NUMA = "numa";
+    // Serial into one array on a reader thread, while the first iteration starts on the rows already in
+    private static final String LOAD_PIPELINED = "pipelined";
+
     private static DateFormat dateFormat = new SimpleDateFormat("MM/dd/yyyy HH:mm:ss");
     private static Options programOptions = new Options();
 
@@ -47,7 +53,47 @@ public class Program {
         programOptions.addOption("o", true, "Cluster assignment output file");
         programOptions.addOption("mmpn", true, "mmaps per node");
         programOptions.addOption("mmdir", true, "mmaps dir");
+        programOptions.addOption("mmhuge", false, "Huge pages for the mmaps, needs -mmdir on hugetlbfs or a huge " +
+                "page tmpfs");
         programOptions.addOption("bind", true, "Bind threads [true/false]");
+        programOptions.addOption("bindplan", true, "Binding plan [auto/juliet]");
+        programOptions.addOption("load", true, "Point loading [serial/numa/pipelined]");
+        programOptions.addOption("loadblock", true, "Rows per thread read at a time with -load pipelined" +
+                " (default 8192)");
+        programOptions.addOption("metrics", true, "Per iteration metrics file [.json/.csv]");
+        programOptions.addOption("procs", true, "Run this many ranks in-process instead of using MPI" +
+                " (the OpenMPI jar must still be on the class path)");
+        programOptions.addOption("sched", true, "Thread scheduling of points [static/dynamic]");
+        programOptions.addOption("chunk", true, "Points per chunk with dynamic scheduling (default sized to L2)");
+        programOptions.addOption("rebalance", true, "Rebalance points across ranks every this many iterations (0 = never)");
+        programOptions.addOption("ckpt", true, "Checkpoint directory");
+        programOptions.addOption("ckptevery", true, "Checkpoint every this many iterations (default 10)");
+        programOptions.addOption("ckptassign", true, "Include cluster assignments in checkpoints [true/false]");
+        programOptions.addOption("resume", false, "Resume from the latest checkpoint in the checkpoint directory");
+        programOptions.addOption("engine", true, "Assignment engine [auto/brute/kdtree/partial/float/pq/projection], auto picks" +
+                " kdtree for d <= " + Lloyd.KDTREE_MAX_DIMENSION + " and partial for d >= " + Lloyd.PARTIAL_MIN_DIMENSION);
+        programOptions.addOption("kahan", false, "Kahan compensated center sums with -engine float");
+        programOptions.addOption("pqsub", true, "Subspaces of the product quantized centers with -engine pq" +
+                " (default d/8)");
+        programOptions.addOption("pqrerank", true, "Centers re-ranked exactly per point with -engine pq (default " +
+                Lloyd.PQ_DEFAULT_RERANK + ")");
+        programOptions.addOption("projdim", true, "Dimensions of the random projection with -engine projection" +
+                " (default d/8, at least 8)");
+        programOptions.addOption("order", true, "Order of points within each thread [file/morton/hilbert]");
+        programOptions.addOption("hier", true, "Train hierarchically with this many coarse centers first (0 = flat)");
+        programOptions.addOption("hierprobe", true, "Coarse centers whose fine centers a point searches (default 2)");
+        programOptions.addOption("hierrefine", true, "Flat iterations after the hierarchical levels (default 0)");
+        programOptions.addOption("inertia", false, "Report the final inertia, always done with -hier");
+        programOptions.addOption("stream", true, "Stream points from the points file on every iteration in windows" +
+                " of this many rows per rank instead of loading them (0 = load)");
+        programOptions.addOption("sparse", false, "Points file is sparse, see SparsePoints and DataConverter");
+        programOptions.addOption("w", true, "Point weights file, a double per point, see DataDeduplicator");
+        programOptions.addOption("metric", true, "Distance metric [euclidean/cosine]");
+        programOptions.addOption("tune", true, "Time threads per rank and mmaps per node on sampled points first," +
+                " and print [report] or use [apply] the fastest");
+        programOptions.addOption("tunesample", true, "Points per rank sampled with -tune (default " +
+                Tuner.DEFAULT_SAMPLE + ")");
+        programOptions.addOption("sweep", true, "Run the configurations in this file over a single load of the points");
     }
 
     public static void main(String[] args) {
@@ -59,19 +105,126 @@ public class Program {
         }
 
         CommandLine cmd = parserResult.get();
-        if (!(cmd.hasOption("n") && cmd.hasOption("d") && cmd.hasOption("k") &&
-                cmd.hasOption("t") && cmd.hasOption("m") && cmd.hasOption("b") &&
-                cmd.hasOption("c") && cmd.hasOption("p") && cmd.hasOption("T"))) {
-            System.out.println(Utils.ERR_INVALID_PROGRAM_ARGUMENTS);
+        Optional<String> error = validate(cmd);
+        if (error.isPresent()) {
+            System.out.println(Utils.ERR_INVALID_PROGRAM_ARGUMENTS + error.get());
             new HelpFormatter().printHelp(Utils.PROGRAM_NAME, programOptions);
             return;
         }
 
+        try {
+            if (cmd.hasOption("procs")) {
+                // In-process ranks, no MPI
+                LocalLauncher.launch(Integer.parseInt(cmd.getOptionValue("procs")), Program.class.getName(),
+                        "runLocalRank", args);
+            } else {
+                run(cmd, args, null);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Checks the options against each other
+     *
+     * @return why the options are invalid, absent if they are valid
+     */
+    private static Optional<String> validate(CommandLine cmd) {
+        // A sweep file may give k, t and m for each run, and needs the centers file only for runs without a seed
+        boolean sweep = cmd.hasOption("sweep");
+        if (!(cmd.hasOption("n") && cmd.hasOption("d") && (sweep || cmd.hasOption("k")) &&
+                (sweep || cmd.hasOption("t")) && (sweep || cmd.hasOption("m")) && cmd.hasOption("b") &&
+                (sweep || cmd.hasOption("c")) && cmd.hasOption("p") && cmd.hasOption("T"))) {
+            return Optional.of("");
+        }
+        if (sweep && !cmd.hasOption("c")) {
+            try {
+                if (!Sweep.allSeeded(Sweep.parse(cmd.getOptionValue("sweep"), 0, 0.0, 0))) {
+                    return Optional.of(" -sweep needs -c unless every configuration has a seed");
+                }
+            } catch (IOException | NumberFormatException e) {
+                return Optional.of(" -sweep file can't be read: " + e.getMessage());
+            }
+        }
+        if (cmd.hasOption("resume") && !cmd.hasOption("ckpt")) {
+            return Optional.of(" -resume needs -ckpt");
+        }
+        if (cmd.hasOption("ckptevery") && Integer.parseInt(cmd.getOptionValue("ckptevery")) <= 0) {
+            return Optional.of(" -ckptevery needs a positive number of iterations");
+        }
+        if (cmd.hasOption("hier") && (sweep ||
+                Integer.parseInt(cmd.getOptionValue("hier")) >= Integer.parseInt(cmd.getOptionValue("k")))) {
+            return Optional.of(" -hier needs fewer coarse centers than k and no -sweep");
+        }
+        // Everything else that goes over the points needs them in memory
+        if (cmd.hasOption("stream") && Integer.parseInt(cmd.getOptionValue("stream")) > 0 && (sweep ||
+                cmd.hasOption("hier") || cmd.hasOption("inertia") ||
+                Integer.parseInt(cmd.getOptionValue("rebalance", "0")) > 0 ||
+                !PointOrder.ORDER_FILE.equals(cmd.getOptionValue("order", PointOrder.ORDER_FILE)) ||
+                ChunkScheduler.SCHED_DYNAMIC.equals(cmd.getOptionValue("sched")) ||
+                Lloyd.ENGINE_KDTREE.equals(cmd.getOptionValue("engine")) ||
+                Lloyd.ENGINE_FLOAT.equals(cmd.getOptionValue("engine")) ||
+                Lloyd.ENGINE_PROJECTION.equals(cmd.getOptionValue("engine")))) {
+            return Optional.of(" -stream needs -sched static, -engine brute, partial or pq, and no -sweep," +
+                    " -hier, -inertia, -rebalance or -order");
+        }
+        if (cmd.hasOption("sparse") && (sweep || cmd.hasOption("hier") || cmd.hasOption("stream") ||
+                Integer.parseInt(cmd.getOptionValue("rebalance", "0")) > 0 ||
+                !PointOrder.ORDER_FILE.equals(cmd.getOptionValue("order", PointOrder.ORDER_FILE)) ||
+                !LOAD_SERIAL.equals(cmd.getOptionValue("load", LOAD_SERIAL)) ||
+                !Lloyd.ENGINE_AUTO.equals(cmd.getOptionValue("engine", Lloyd.ENGINE_AUTO)) &&
+                        !Lloyd.ENGINE_BRUTE.equals(cmd.getOptionValue("engine")))) {
+            return Optional.of(" -sparse needs -load serial, -engine brute, and no -sweep, -hier, -stream," +
+                    " -rebalance or -order");
+        }
+        String weightsEngine = cmd.getOptionValue("engine", Lloyd.ENGINE_AUTO);
+        if (cmd.hasOption("w") && (sweep || cmd.hasOption("hier") || cmd.hasOption("stream") ||
+                cmd.hasOption("sparse") || Integer.parseInt(cmd.getOptionValue("rebalance", "0")) > 0 ||
+                !PointOrder.ORDER_FILE.equals(cmd.getOptionValue("order", PointOrder.ORDER_FILE)) ||
+                !Lloyd.ENGINE_AUTO.equals(weightsEngine) && !Lloyd.ENGINE_BRUTE.equals(weightsEngine) &&
+                        !Lloyd.ENGINE_PARTIAL.equals(weightsEngine))) {
+            return Optional.of(" -w needs -engine brute or partial, and no -sweep, -hier, -stream, -sparse," +
+                    " -rebalance or -order");
+        }
+        if (cmd.hasOption("tune") && (cmd.hasOption("sparse") ||
+                !Tuner.TUNE_REPORT.equals(cmd.getOptionValue("tune")) &&
+                        !Tuner.TUNE_APPLY.equals(cmd.getOptionValue("tune")))) {
+            return Optional.of(" -tune is report or apply, and needs dense points");
+        }
+        String metricName = cmd.getOptionValue("metric", Metric.METRIC_EUCLIDEAN);
+        if (!Metric.METRIC_EUCLIDEAN.equals(metricName) && !Metric.METRIC_COSINE.equals(metricName)) {
+            // Manhattan centers are per dimension medians, and the update step only computes means
+            return Optional.of(" -metric is euclidean or cosine" + ("manhattan".equals(metricName) ?
+                    ", manhattan would need median centers" : ""));
+        }
+        String metricEngine = cmd.getOptionValue("engine", Lloyd.ENGINE_AUTO);
+        if (!Metric.METRIC_EUCLIDEAN.equals(cmd.getOptionValue("metric", Metric.METRIC_EUCLIDEAN)) && (sweep ||
+                cmd.hasOption("hier") || cmd.hasOption("stream") || cmd.hasOption("sparse") ||
+                !Lloyd.ENGINE_AUTO.equals(metricEngine) && !Lloyd.ENGINE_BRUTE.equals(metricEngine))) {
+            return Optional.of(" -metric other than euclidean needs -engine brute, and no -sweep, -hier," +
+                    " -stream or -sparse");
+        }
+        String load = cmd.getOptionValue("load", LOAD_SERIAL);
+        if (!LOAD_SERIAL.equals(load) && !LOAD_NUMA.equals(load) && !LOAD_PIPELINED.equals(load)) {
+            return Optional.of(" -load is serial, numa or pipelined");
+        }
+        return Optional.absent();
+    }
+
+    /**
+     * Entry point of a rank when running in-process, see {@link LocalLauncher}
+     */
+    public static void runLocalRank(String[] args, Communicator comm) throws MPIException, IOException {
+        run(Utils.parseCommandLineArguments(args, programOptions).get(), args, comm);
+    }
+
+    private static void run(CommandLine cmd, String[] args, Communicator localComm) throws MPIException, IOException {
         int numPoints = Integer.parseInt(cmd.getOptionValue("n"));
         int dimension = Integer.parseInt(cmd.getOptionValue("d"));
-        int numCenters = Integer.parseInt(cmd.getOptionValue("k"));
-        int maxIterations = Integer.parseInt(cmd.getOptionValue("m"));
-        double errorThreshold = Double.parseDouble(cmd.getOptionValue("t"));
+        int numCenters = cmd.hasOption("k") ? Integer.parseInt(cmd.getOptionValue("k")) : 0;
+        int maxIterations = cmd.hasOption("m") ? Integer.parseInt(cmd.getOptionValue("m")) : 100;
+        double errorThreshold = cmd.hasOption("t") ? Double.parseDouble(cmd.getOptionValue("t")) : 0.0;
         int numThreads = Integer.parseInt(cmd.getOptionValue("T"));
         boolean isBigEndian = Boolean.parseBoolean(cmd.getOptionValue("b"));
         String outputFile = cmd.hasOption("o") ? cmd.getOptionValue("o") : "";
@@ -79,165 +232,382 @@ public class Program {
         String pointsFile = cmd.hasOption("p") ? cmd.getOptionValue("p") : "";
         int mmapsPerNode = cmd.hasOption("mmpn") ? Integer.parseInt(cmd.getOptionValue("mmpn")) : 1;
         String mmapDir = cmd.hasOption("mmdir") ? cmd.getOptionValue("mmdir") : "/dev/shm";
+        ParallelOps.mmapHugePages = cmd.hasOption("mmhuge");
         // the default is to bind
         boolean bind = !cmd.hasOption("bind") || Boolean.parseBoolean(cmd.getOptionValue("bind"));
+        String bindPlan = cmd.hasOption("bindplan") ? cmd.getOptionValue("bindplan") : BindingPlanner.PLAN_AUTO;
+        String loadMode = cmd.hasOption("load") ? cmd.getOptionValue("load") : LOAD_SERIAL;
+        String metricsFile = cmd.hasOption("metrics") ? cmd.getOptionValue("metrics") : "";
+        String schedule = cmd.hasOption("sched") ? cmd.getOptionValue("sched") : ChunkScheduler.SCHED_STATIC;
+        int rebalanceEvery = cmd.hasOption("rebalance") ? Integer.parseInt(cmd.getOptionValue("rebalance")) : 0;
+        String checkpointDir = cmd.hasOption("ckpt") ? cmd.getOptionValue("ckpt") : "";
+        int checkpointEvery = cmd.hasOption("ckptevery") ? Integer.parseInt(cmd.getOptionValue("ckptevery")) : 10;
+        boolean checkpointAssignments = !cmd.hasOption("ckptassign") ||
+                Boolean.parseBoolean(cmd.getOptionValue("ckptassign"));
+        boolean resume = cmd.hasOption("resume");
+        String engine = Lloyd.resolveEngine(cmd.hasOption("engine") ? cmd.getOptionValue("engine") :
+                Lloyd.ENGINE_AUTO, dimension);
+        int numCoarse = cmd.hasOption("hier") ? Integer.parseInt(cmd.getOptionValue("hier")) : 0;
+        int probes = cmd.hasOption("hierprobe") ? Integer.parseInt(cmd.getOptionValue("hierprobe")) : 2;
+        int refineIterations = cmd.hasOption("hierrefine") ? Integer.parseInt(cmd.getOptionValue("hierrefine")) : 0;
+        String pointOrder = cmd.hasOption("order") ? cmd.getOptionValue("order") : PointOrder.ORDER_FILE;
+        boolean reorder = !PointOrder.ORDER_FILE.equals(pointOrder);
+        boolean reportInertia = cmd.hasOption("inertia") || numCoarse > 0;
+        int streamRows = cmd.hasOption("stream") ? Integer.parseInt(cmd.getOptionValue("stream")) : 0;
+        boolean isSparse = cmd.hasOption("sparse");
+        Metric metric = Metric.of(cmd.hasOption("metric") ? cmd.getOptionValue("metric") : Metric.METRIC_EUCLIDEAN);
+        String weightsFile = cmd.hasOption("w") ? cmd.getOptionValue("w") : "";
+        // Only -engine auto gets here with an engine these can't use, the checks in main reject the rest
+        String fallback = null;
+        if (isSparse && !Lloyd.ENGINE_BRUTE.equals(engine)) {
+            fallback = "-sparse";
+        } else if (metric != Metric.EUCLIDEAN && !Lloyd.ENGINE_BRUTE.equals(engine)) {
+            fallback = "-metric " + metric.getName();
+        } else if (!Strings.isNullOrEmpty(weightsFile) && Lloyd.ENGINE_KDTREE.equals(engine)) {
+            // Trees sum whole cells at once
+            fallback = "-w";
+        } else if (streamRows > 0 && Lloyd.ENGINE_KDTREE.equals(engine)) {
+            // Trees are built over points in memory
+            fallback = "-stream";
+        }
+        String autoEngine = engine;
+        if (fallback != null) {
+            engine = Lloyd.ENGINE_BRUTE;
+        }
+        List<Sweep.Config> sweepConfigs = null;
+        if (cmd.hasOption("sweep")) {
+            sweepConfigs = Sweep.parse(cmd.getOptionValue("sweep"), numCenters, errorThreshold, maxIterations);
+            // Buffers, including the mmap ones, are sized once for the largest k
+            numCenters = Sweep.maxCenters(sweepConfigs);
+        }
 
-        try {
+        if (localComm == null) {
             ParallelOps.setupParallelism(args, mmapsPerNode, mmapDir);
-            ParallelOps.setParallelDecomposition(numPoints, dimension, numCenters, numThreads);
+        } else {
+            ParallelOps.setupLocalParallelism(localComm);
+        }
+        if (cmd.hasOption("tune")) {
+            print("  Tuning threads and mmaps ... ");
+            long t = System.nanoTime();
+            Tuner tuner = Tuner.tune(pointsFile, numPoints, dimension, isBigEndian,
+                    readCenters(centersFile, numCenters, dimension, isBigEndian), numCenters, numThreads,
+                    mmapsPerNode, cmd.hasOption("tunesample") ? Integer.parseInt(cmd.getOptionValue("tunesample")) :
+                            Tuner.DEFAULT_SAMPLE);
+            for (String line : tuner.report(numCenters, dimension)) {
+                print("    " + line);
+            }
+            print("    Recommended -T " + tuner.getBestThreads() + " -mmpn " + tuner.getBestMmapsPerNode() + " for " +
+                    ParallelOps.worldProcsCountLocalToNode + " processes per node, predicted " +
+                    tuner.getPredictedMs() + " ms per iteration, tuned in " + (System.nanoTime() - t) * 1e-6 + " ms");
+            if (Tuner.TUNE_APPLY.equals(cmd.getOptionValue("tune"))) {
+                numThreads = tuner.getBestThreads();
+                if (tuner.getBestMmapsPerNode() != mmapsPerNode) {
+                    ParallelOps.regroup(tuner.getBestMmapsPerNode());
+                }
+                print("    Applied");
+            }
+        }
+        ParallelOps.setParallelDecomposition(numPoints, dimension, numCenters, numThreads);
+        final BitSet[] threadBitSets = bind ? planBindings(bindPlan, numThreads) : null;
+        final boolean dynamic = ChunkScheduler.SCHED_DYNAMIC.equals(schedule) && numThreads > 1;
+        final ChunkScheduler scheduler = dynamic ? new ChunkScheduler(numThreads, ParallelOps.pointsForThread,
+                cmd.hasOption("chunk") ? Integer.parseInt(cmd.getOptionValue("chunk")) :
+                        ChunkScheduler.chunkPointsFor(dimension, ParallelOps.pointsForProc, numThreads)) : null;
 
-            Stopwatch mainTimer = Stopwatch.createStarted();
+        Stopwatch mainTimer = Stopwatch.createStarted();
+        long startNanos = System.nanoTime();
 
-            print("=== Program Started on " + dateFormat.format(new Date()) + " ===");
-            print("  Reading points ... ");
+        print("=== Program Started on " + dateFormat.format(new Date()) + " ===");
+        if (fallback != null) {
+            print("  Engine " + autoEngine + " can't run with " + fallback + ", using " + engine + " instead");
+        }
+        print("  Reading points ... ");
 
-            Stopwatch timer = Stopwatch.createStarted();
-            final double[] points = readPoints(pointsFile, dimension, ParallelOps.pointStartIdxForProc,
+        Stopwatch timer = Stopwatch.createStarted();
+        // Points of each thread start at threadPointOffsets[t] within threadPoints[t]. These refer to
+        // one array for the process when loaded serially, and to a slab per thread with NUMA loading.
+        final double[][] threadPoints = new double[numThreads][];
+        final int[] threadPointOffsets = new int[numThreads];
+        PointStream stream = null;
+        PointLoader loader = null;
+        SparsePoints sparse = null;
+        if (isSparse) {
+            sparse = SparsePoints.readRowRange(pointsFile, numPoints, dimension, ParallelOps.pointStartIdxForProc,
                     ParallelOps.pointsForProc, isBigEndian);
+            long[] nonzeros = new long[]{sparse.getNonzeros()};
+            if (ParallelOps.worldProcsCount > 1) {
+                ParallelOps.worldProcsComm.allReduce(nonzeros, 1, Communicator.Op.SUM);
+            }
+            print("    Sparse points with " + nonzeros[0] + " nonzeros, " + 100.0 * nonzeros[0] / numPoints / dimension +
+                    "% dense");
+        } else if (streamRows > 0) {
+            stream = new PointStream(pointsFile, dimension, isBigEndian, streamRows, numThreads);
+            print("    Streaming in " + stream.getWindows() + " windows of up to " + stream.getSliceRows() +
+                    " points per thread instead");
+        } else if (LOAD_NUMA.equals(loadMode)) {
+            if (!bind) {
+                print("    Warning: NUMA loading without -bind true leaves slab placement to the OS scheduler");
+            }
+            double[] threadLoadTimes = readPointsFirstTouch(pointsFile, dimension, isBigEndian, numThreads,
+                    threadBitSets, threadPoints);
+            double[] loadMin = new double[]{Arrays.stream(threadLoadTimes).min().getAsDouble()};
+            double[] loadMax = new double[]{Arrays.stream(threadLoadTimes).max().getAsDouble()};
+            if (ParallelOps.worldProcsCount > 1) {
+                ParallelOps.worldProcsComm.allReduce(loadMin, 1, Communicator.Op.MIN);
+                ParallelOps.worldProcsComm.allReduce(loadMax, 1, Communicator.Op.MAX);
+            }
+            print("    Thread load time ms (across all threads and procs) min " + loadMin[0] + " max " +
+                    loadMax[0]);
+        } else if (LOAD_PIPELINED.equals(loadMode)) {
+            loader = new PointLoader(pointsFile, dimension, isBigEndian, cmd.hasOption("loadblock") ?
+                    Integer.parseInt(cmd.getOptionValue("loadblock")) : 8192, numThreads);
+            shareAmongThreads(loader.getPoints(), dimension, threadPoints, threadPointOffsets);
+            if (reorder) {
+                // Sorting needs them all
+                loader.awaitAll();
+                loader = null;
+            } else {
+                print("    Loading in the background in blocks of " + loader.getBlockRows() + " points per thread");
+            }
+        } else {
+            shareAmongThreads(readPoints(pointsFile, dimension, ParallelOps.pointStartIdxForProc,
+                    ParallelOps.pointsForProc, isBigEndian), dimension, threadPoints, threadPointOffsets);
+        }
 
-            timer.stop();
-            print("    Done in " + timer.elapsed(TimeUnit.MILLISECONDS) + " ms");
-            timer.reset();
+        double[] weights = null;
+        if (!Strings.isNullOrEmpty(weightsFile)) {
+            weights = new double[ParallelOps.pointsForProc];
+            PointReader.readRowRange(weightsFile, ParallelOps.pointStartIdxForProc, ParallelOps.pointsForProc, 1,
+                    isBigEndian).getRows(ParallelOps.pointStartIdxForProc, ParallelOps.pointsForProc, weights, 0);
+            double[] total = new double[]{Arrays.stream(weights).sum()};
+            if (ParallelOps.worldProcsCount > 1) {
+                ParallelOps.worldProcsComm.allReduce(total, 1, Communicator.Op.SUM);
+            }
+            print("    Weighted points standing for " + total[0] + " points, " + total[0] / numPoints +
+                    " on average");
+        }
+
+        timer.stop();
+        print("    Done in " + timer.elapsed(TimeUnit.MILLISECONDS) + " ms");
+        timer.reset();
+
+        int[] order = null;
+        if (reorder) {
+            long t = System.nanoTime();
+            order = PointOrder.sort(pointOrder, threadPoints, threadPointOffsets, dimension, numThreads);
+            print("    Sorted points of each thread in " + pointOrder + " order in " + (System.nanoTime() - t) * 1e-6 +
+                    " ms");
+        }
 
-            print("  Reading centers ...");
+        // Bind all process case here
+        if (numThreads == 1 && bind){
+            Affinity.setAffinity(threadBitSets[0]);
+        }
+
+        if (sweepConfigs != null) {
+            print("  Sweeping " + sweepConfigs.size() + " configurations .. ");
+            Lloyd sweepLloyd = new Lloyd(dimension, numCenters, numThreads, bind, threadBitSets, threadPoints,
+                    threadPointOffsets, scheduler, engine);
+            sweepLloyd.setOrder(order);
+            sweepLloyd.setKahan(cmd.hasOption("kahan"));
+            setQuantization(cmd, sweepLloyd);
+            if (cmd.hasOption("projdim")) {
+                sweepLloyd.setProjection(Integer.parseInt(cmd.getOptionValue("projdim")));
+            }
+            sweepLloyd.setLoader(loader);
+            Sweep.run(sweepConfigs, sweepLloyd, centersFile, pointsFile, numPoints, dimension, isBigEndian,
+                    numThreads);
+            mainTimer.stop();
+            print("=== Program terminated successfully on " +
+                    dateFormat.format(new Date()) + " took " +
+                    (mainTimer.elapsed(TimeUnit.MILLISECONDS)) + " ms ===");
+            ParallelOps.endParallelism();
+            return;
+        }
+
+        print("  Reading centers ...");
+        timer.start();
+        final double[] centers = readCenters(centersFile, numCenters, dimension, isBigEndian);
+        timer.stop();
+        print("    Done in " + timer.elapsed(TimeUnit.MILLISECONDS) + " ms");
+        timer.reset();
+
+        int[] allClusterAssignments = null;
+        if (ParallelOps.worldProcsCount > 1) {
+            print("  Allocating buffers");
             timer.start();
-            final double[] centers = readCenters(centersFile, numCenters, dimension, isBigEndian);
+            allClusterAssignments = new int[numPoints];
             timer.stop();
-            print("    Done in " + timer.elapsed(TimeUnit.MILLISECONDS) + " ms");
+            // This would be similar across
+            // all processes, so no need to do average
+            print("  Done in " + timer.elapsed(TimeUnit.MILLISECONDS));
             timer.reset();
+        }
 
-            DoubleBuffer doubleBuffer = null;
-            IntBuffer intBuffer2 = null;
-            if (ParallelOps.worldProcsCount > 1) {
-                print("  Allocating buffers");
-                timer.start();
-                intBuffer2 = MPI.newIntBuffer(numPoints);
-                doubleBuffer = MPI.newDoubleBuffer(numCenters * (dimension+1));
-                timer.stop();
-                // This would be similar across
-                // all processes, so no need to do average
-                print("  Done in " + timer.elapsed(TimeUnit.MILLISECONDS));
-                timer.reset();
-            }
+        final Lloyd lloyd = new Lloyd(dimension, numCenters, numThreads, bind, threadBitSets, threadPoints,
+                threadPointOffsets, scheduler, engine);
+        lloyd.setOrder(order);
+        lloyd.setKahan(cmd.hasOption("kahan"));
+        setQuantization(cmd, lloyd);
+        if (cmd.hasOption("projdim")) {
+            lloyd.setProjection(Integer.parseInt(cmd.getOptionValue("projdim")));
+        }
+        if (stream != null) {
+            lloyd.setStream(stream);
+        }
+        lloyd.setLoader(loader);
+        if (sparse != null) {
+            lloyd.setSparse(sparse);
+        }
+        if (weights != null) {
+            lloyd.setWeights(weights);
+        }
+        lloyd.setMetric(metric);
 
-            final double[] centerSumsAndCountsForThread = new double[numThreads*numCenters*(dimension+1)];
-            final int[] clusterAssignments = new int[ParallelOps.pointsForProc];
+        int itrCount = 0;
+        boolean converged = false;
+        // The hierarchical levels take -m each, the loop below only refines
+        int levelIterations = maxIterations;
+        if (numCoarse > 0) {
+            maxIterations = refineIterations;
+        }
+        final IterationMetrics metrics = new IterationMetrics(maxIterations, numThreads);
 
-            // Bind all process case here
-            if (numThreads == 1 && bind){
-                BitSet bitSet = ThreadBitAssigner.getBitSet(ParallelOps.worldProcRank, 0, numThreads, (ParallelOps.nodeCount));
-                Affinity.setAffinity(bitSet);
+        Checkpointer checkpointer = null;
+        if (!Strings.isNullOrEmpty(checkpointDir)) {
+            checkpointer = new Checkpointer(checkpointDir, checkpointAssignments, resume);
+            int resumeItr = checkpointer.getCommittedIteration();
+            if (resume && resumeItr < 0) {
+                print("  No checkpoint in " + checkpointDir + ", starting from the initial centers");
+            } else if (resume) {
+                Checkpointer.readCenters(checkpointDir, resumeItr, centers, numCenters, dimension);
+                int[] resumed = new int[ParallelOps.pointsForProc];
+                if (!Checkpointer.readAssignments(checkpointDir, resumeItr, resumed,
+                        ParallelOps.pointStartIdxForProc)) {
+                    // Only the moved counts of the next iteration depend on these
+                    Arrays.fill(resumed, -1);
+                }
+                lloyd.setFileOrderAssignments(resumed);
+                itrCount = resumeItr;
+                metrics.startAt(resumeItr);
+                print("  Resuming from the checkpoint of iteration " + resumeItr);
             }
+        }
 
-            int itrCount = 0;
-            boolean converged = false;
-            print("  Computing K-Means .. ");
-            Stopwatch loopTimer = Stopwatch.createStarted();
-            Stopwatch commTimerWithCopy = Stopwatch.createUnstarted();
-            Stopwatch commTimer = Stopwatch.createUnstarted();
-            long[] times = new long[]{0, 0, 0};
+        if (numCoarse > 0 && itrCount == 0) {
+            print("  Computing hierarchical K-Means .. ");
+            Hierarchy.train(lloyd, centers, numCenters, dimension, numCoarse, probes, errorThreshold, levelIterations,
+                    numThreads);
+        }
 
-            double[] threadComputTimes = new double[numThreads];
-            IntStream.range(0, numThreads).forEach(i -> threadComputTimes[i] = 0.0);
-//            while (!converged && itrCount < maxIterations) {
-            while (itrCount < maxIterations) {
-                ++itrCount;
-                resetCenterSumsAndCounts(centerSumsAndCountsForThread);
-
-                final int finalItrCount = itrCount;
-                if (numThreads > 1) {
-                    launchHabaneroApp(() -> forallChunked(0, numThreads - 1, (threadIdx) -> {
-                        Thread.currentThread().setName("HJ"+threadIdx);
-                        if (bind) {
-                            BitSet bitSet = ThreadBitAssigner.getBitSet(ParallelOps.worldProcRank, threadIdx, numThreads, (ParallelOps.nodeCount));
-                            Affinity.setAffinity(bitSet);
-                        }
+        print("  Computing K-Means .. ");
+        Stopwatch loopTimer = Stopwatch.createStarted();
+        final int loopStart = itrCount;
+        long[] times = new long[]{0, 0, 0};
 
-                        try {
-                            double t = MPI.wtime();
-                            findNearesetCenters(dimension, numCenters, points, centers, centerSumsAndCountsForThread,
-                                    clusterAssignments, threadIdx);
-                            threadComputTimes[threadIdx] += (MPI.wtime() - t)*1e3; //milliseconds
-                        } catch (MPIException e) {
-                            e.printStackTrace();
-                        }
-                    }));
-                } else {
-                    double t = MPI.wtime();
-                    findNearesetCenters(dimension, numCenters, points, centers, centerSumsAndCountsForThread,
-                            clusterAssignments, 0);
-                    threadComputTimes[0] += (MPI.wtime() - t)*1e3;
-                }
+        // Critical path compute time of this rank since the last rebalancing
+        double rankComputeMs = 0.0;
+//            while (!converged && itrCount < maxIterations) {
+        while (itrCount < maxIterations) {
+            ++itrCount;
+            final int itr = itrCount - 1;
+            converged = !(lloyd.iterate(centers, numCenters, itr, metrics) > errorThreshold);
 
-                if (numThreads > 1) {
-                    // Sum over threads
-                    // Place results to arrays of thread 0
-                    for (int t = 1; t < numThreads; ++t) {
-                        for (int c = 0; c < numCenters; ++c) {
-                            for (int d = 0; d < (dimension + 1); ++d) {
-                                int offsetWithinThread = (c * (dimension + 1)) + d;
-                                centerSumsAndCountsForThread[offsetWithinThread] += centerSumsAndCountsForThread[
-                                        (t * numCenters * (dimension + 1)) + offsetWithinThread];
-                            }
-                        }
+            rankComputeMs += metrics.slowestThreadMs(itr);
+            if (rebalanceEvery > 0 && ParallelOps.worldProcsCount > 1 && itrCount % rebalanceEvery == 0 &&
+                    itrCount < maxIterations) {
+                long t = System.nanoTime();
+                int oldStart = ParallelOps.pointStartIdxForProc;
+                int oldCount = ParallelOps.pointsForProc;
+                int[] oldLengths = ParallelOps.getLengthsArray(numPoints);
+                if (ParallelOps.rebalance(rankComputeMs)) {
+                    // Assignments only decide the moved counts, but keep those exact
+                    gatherAssignments(lloyd.getFileOrderAssignments(), allClusterAssignments, oldLengths, oldStart);
+                    int[] clusterAssignments = Arrays.copyOfRange(allClusterAssignments,
+                            ParallelOps.pointStartIdxForProc, ParallelOps.pointStartIdxForProc + ParallelOps.pointsForProc);
+                    if (LOAD_NUMA.equals(loadMode)) {
+                        readPointsFirstTouch(pointsFile, dimension, isBigEndian, numThreads, threadBitSets,
+                                threadPoints);
+                    } else {
+                        // Sorted points no longer line up with the file rows, so read them all again
+                        shareAmongThreads(readPoints(pointsFile, dimension, ParallelOps.pointStartIdxForProc,
+                                ParallelOps.pointsForProc, isBigEndian, threadPoints[0], oldStart,
+                                reorder ? 0 : oldCount),
+                                dimension, threadPoints, threadPointOffsets);
                     }
-                }
-
-                if (ParallelOps.worldProcsCount > 1) {
-//                    commTimerWithCopy.start();
-//                    copyToBuffer(centerSumsAndCountsForThread, doubleBuffer, numCenters*(dimension+1));
-//                    commTimer.start();
-//                    ParallelOps.worldProcsComm.allReduce(doubleBuffer, (dimension+1) * numCenters, MPI.DOUBLE, MPI.SUM);
-                    // NOTE - change to mmap call
-                    ParallelOps.allReduceSum(centerSumsAndCountsForThread, 0, numCenters*(dimension+1));
-//                    commTimer.stop();
-//                    copyFromBuffer(doubleBuffer, centerSumsAndCountsForThread, numCenters*(dimension+1));
-//                    commTimerWithCopy.stop();
-//                    times[0] += commTimerWithCopy.elapsed(TimeUnit.MILLISECONDS);
-//                    times[1] += commTimer.elapsed(TimeUnit.MILLISECONDS);
-//                    commTimerWithCopy.reset();
-//                    commTimer.reset();
-                }
-
-                converged = true;
-                for (int i = 0; i < numCenters; ++i) {
-                    final int c = i;
-                    IntStream.range(0, dimension).forEach(j -> centerSumsAndCountsForThread[(c * (dimension + 1)) +
-                            j] /= centerSumsAndCountsForThread[(c * (dimension + 1)) + dimension]);
-                    double dist = getEuclideanDistance(centerSumsAndCountsForThread, centers, dimension, (c * (dimension + 1)), c*dimension);
-                    if (dist > errorThreshold) {
-                        // Can't break as center sums need to be divided to
-                        // form new centers
-                        converged = false;
+                    if (dynamic) {
+                        scheduler.resize(ParallelOps.pointsForThread);
                     }
-                    IntStream.range(0, dimension).forEach(j -> centers[(c * dimension) + j] = centerSumsAndCountsForThread[(c * (dimension + 1)) + j]);
+                    // Trees are rebuilt over the new ranges by the next iteration
+                    lloyd.relayout(clusterAssignments, scheduler,
+                            reorder ? PointOrder.sort(pointOrder, threadPoints, threadPointOffsets, dimension,
+                                    numThreads) : null);
+                    int[] lengths = ParallelOps.getLengthsArray(numPoints);
+                    print("    Rebalanced points at iteration " + itrCount + " min " +
+                            Arrays.stream(lengths).min().getAsInt() + " max " + Arrays.stream(lengths).max().getAsInt() +
+                            " per rank in " + (System.nanoTime() - t) * 1e-6 + " ms");
                 }
+                rankComputeMs = 0.0;
             }
-            loopTimer.stop();
-            times[2] = loopTimer.elapsed(TimeUnit.MILLISECONDS);
-            loopTimer.reset();
 
+            if (checkpointer != null && itrCount % checkpointEvery == 0) {
+                checkpointer.write(itrCount, centers, numCenters, dimension, lloyd.getFileOrderAssignments(),
+                        ParallelOps.pointStartIdxForProc);
+            }
+        }
+        loopTimer.stop();
+        times[2] = loopTimer.elapsed(TimeUnit.MILLISECONDS);
+        loopTimer.reset();
+        if (stream != null) {
+            stream.close();
+        }
+        if (checkpointer != null) {
+            checkpointer.finish();
+            print("    Latest checkpoint is of iteration " + checkpointer.getCommittedIteration() + " in " +
+                    checkpointDir);
+        }
 
-            /* Find min and max computing times across threads*/
-            double[] tmpMin = new double[]{threadComputTimes[0]};
-            double[] tmpMax = new double[]{threadComputTimes[0]};
-            double t;
-            for (int i = 1; i < numThreads; ++i){
-                t = threadComputTimes[i];
-                if (t > tmpMax[0]){
-                    tmpMax[0] = t;
-                }
-                if (t < tmpMin[0]){
-                    tmpMin[0] = t;
-                }
+
+        /* Find min and max computing times across threads*/
+        double[] tmpMin = new double[]{lloyd.threadComputTimes[0]};
+        double[] tmpMax = new double[]{lloyd.threadComputTimes[0]};
+        double t;
+        for (int i = 1; i < numThreads; ++i){
+            t = lloyd.threadComputTimes[i];
+            if (t > tmpMax[0]){
+                tmpMax[0] = t;
+            }
+            if (t < tmpMin[0]){
+                tmpMin[0] = t;
             }
+        }
 
 
-            if (ParallelOps.worldProcsCount > 1) {
-                ParallelOps.worldProcsComm.reduce(times, 3, MPI.LONG, MPI.SUM, 0);
-                ParallelOps.worldProcsComm.allReduce(tmpMin, 1, MPI.DOUBLE, MPI.MIN);
-                ParallelOps.worldProcsComm.allReduce(tmpMax, 1, MPI.DOUBLE, MPI.MAX);
+        // Worst max/min ratio among the threads of a single proc
+        // 0 when a thread computed nothing, so it doesn't count towards the max
+        double[] procSkew = new double[]{tmpMin[0] > 0 ? tmpMax[0] / tmpMin[0] : 0.0};
+        // Chunks taken and stolen over all iterations
+        long[] chunkCounts = new long[2];
+        if (dynamic) {
+            for (int i = 0; i < numThreads; ++i) {
+                chunkCounts[0] += lloyd.scheduler.taken(i);
+                chunkCounts[1] += lloyd.scheduler.stolen(i);
+            }
+        }
+
+        if (ParallelOps.worldProcsCount > 1) {
+            ParallelOps.worldProcsComm.reduce(times, 3, Communicator.Op.SUM, 0);
+            ParallelOps.worldProcsComm.allReduce(tmpMin, 1, Communicator.Op.MIN);
+            ParallelOps.worldProcsComm.allReduce(tmpMax, 1, Communicator.Op.MAX);
+            ParallelOps.worldProcsComm.allReduce(procSkew, 1, Communicator.Op.MAX);
+            if (dynamic) {
+                ParallelOps.worldProcsComm.allReduce(chunkCounts, 2, Communicator.Op.SUM);
             }
+        }
+        if (numCoarse > 0 && maxIterations == 0) {
+            // The levels reported their own iterations
+            print("    Done, no flat refinement after the hierarchical levels with -hierrefine 0");
+        } else {
             if (!converged) {
                 print("    Stopping K-Means as max iteration count " +
                         maxIterations +
@@ -246,73 +616,244 @@ public class Program {
             print("    Done in " + itrCount + " iterations and " +
                     times[2] * 1.0 / ParallelOps.worldProcsCount + " ms on average (across all MPI)");
             print("      Compute time ms (across all threads and procs) min " + tmpMin[0] + " max " + tmpMax[0] + " diff " + (tmpMax[0] - tmpMin[0]));
-            /*if (ParallelOps.worldProcsCount > 1) {
-                print("    Avg. comm time " +
-                        times[1] * 1.0 / ParallelOps.worldProcsCount +
-                        " ms (across all MPI)");
-                print("    Avg. comm time w/ copy " +
-                        times[0] * 1.0 / ParallelOps.worldProcsCount + " ms (across all MPI)");
-            }*/
+            print("      Compute skew max/min (across all threads and procs) " +
+                    (tmpMin[0] > 0 ? Double.toString(tmpMax[0] / tmpMin[0]) : "n/a, a thread computed nothing") +
+                    " worst within a proc " + procSkew[0]);
+            if (dynamic) {
+                print("      Dynamic scheduling chunk " + scheduler.chunkPoints + " points, stolen chunks " +
+                        chunkCounts[1] + " of " + chunkCounts[0] + " (" + (100.0 * chunkCounts[1] / chunkCounts[0]) +
+                        "%)");
+            }
+        }
 
-            if (!Strings.isNullOrEmpty(outputFile)) {
+        if (stream != null) {
+            // Reads of every rank, and waits for windows not read in time by the compute threads
+            double[] io = new double[]{stream.getBytesRead(), stream.getReadMs(), stream.getWaitMs()};
+            if (ParallelOps.worldProcsCount > 1) {
+                ParallelOps.worldProcsComm.allReduce(io, 3, Communicator.Op.SUM);
+            }
+            print("      Streamed " + io[0] / (1 << 20) + " MB at " + io[0] / (1 << 20) / (io[1] * 1e-3) +
+                    " MB/s per rank, " + 100.0 * Math.max(0.0, 1 - io[2] / io[1]) + "% of reading hidden behind" +
+                    " compute (waited " + io[2] / ParallelOps.worldProcsCount + " ms on average)");
+        }
+
+        if (!Lloyd.ENGINE_BRUTE.equals(engine) && stream == null) {
+            double quantizeMs = lloyd.quantizeMs / Math.max(1, itrCount - loopStart);
+            double[] buildMs = new double[]{lloyd.treeBuildMs};
+            if (ParallelOps.worldProcsCount > 1) {
+                ParallelOps.worldProcsComm.allReduce(buildMs, 1, Communicator.Op.MAX);
+            }
+            // One pass of each over the final centers, slowest thread of any rank
+            double[] engineMs = lloyd.compareEngines(centers, numCenters);
+            print("      Engine " + engine + " assignment " + engineMs[1] + " ms vs brute force " + engineMs[0] +
+                    " ms, speedup " + (engineMs[0] / engineMs[1]) + (lloyd.treeBuildMs > 0 ?
+                    " (trees built in " + buildMs[0] + " ms)" : ""));
+            if (Lloyd.ENGINE_PQ.equals(engine)) {
+                // Against exact assignment to the same centers
+                ProductQuantizer quantizer = lloyd.getQuantizer();
+                print("      Engine pq with " + quantizer.getSubspaces() + " subspaces and " +
+                        quantizer.getRerank() + " re-ranked centers assigned " + (100.0 * engineMs[2] / numPoints) +
+                        "% of points differently than exact, quantizing centers took " + quantizeMs +
+                        " ms per iteration");
+            }
+            if (Lloyd.ENGINE_PROJECTION.equals(engine)) {
+                long[] shortlist = new long[]{lloyd.shortlisted, lloyd.shortlistedPoints};
                 if (ParallelOps.worldProcsCount > 1) {
-                    // Gather cluster assignments
-                    print("  Gathering cluster assignments ...");
-                    timer.start();
-                    int[] lengths = ParallelOps.getLengthsArray(numPoints);
-                    int[] displas = new int[ParallelOps.worldProcsCount];
-                    displas[0] = 0;
-                    System.arraycopy(lengths, 0, displas, 1, ParallelOps.worldProcsCount - 1);
-                    Arrays.parallelPrefix(displas, (p, q) -> p + q);
-                    intBuffer2.position(ParallelOps.pointStartIdxForProc);
-                    intBuffer2.put(clusterAssignments);
-                    ParallelOps.worldProcsComm.allGatherv(intBuffer2, lengths, displas, MPI.INT);
-                    timer.stop();
-                    long[] time = new long[]{timer.elapsed(TimeUnit.MILLISECONDS)};
-                    timer.reset();
-                    ParallelOps.worldProcsComm.reduce(time, 1, MPI.LONG, MPI.SUM, 0);
-                    print("    Done in " + time[0] * 1.0 / ParallelOps.worldProcsCount +
-                            " ms on average");
+                    ParallelOps.worldProcsComm.allReduce(shortlist, 2, Communicator.Op.SUM);
                 }
+                print("      Engine projection to " + lloyd.getProjection().getProjected() + " dimensions shortlisted " +
+                        (double) shortlist[0] / shortlist[1] + " of " + numCenters + " centers per point on average");
+            }
+        }
+
+        if (reorder) {
+            long[] changes = PointOrder.clusterChanges(lloyd.clusterAssignments, lloyd.getOrder());
+            if (ParallelOps.worldProcsCount > 1) {
+                ParallelOps.worldProcsComm.allReduce(changes, 2, Communicator.Op.SUM);
+            }
+            // Fewer changes between consecutive points means fewer distinct center sums touched per cache window
+            print("      Consecutive points in different clusters " + (100.0 * changes[0] / numPoints) + "% in " +
+                    pointOrder + " order vs " + (100.0 * changes[1] / numPoints) + "% in file order, mean iteration " +
+                    times[2] * 1.0 / ParallelOps.worldProcsCount / Math.max(1, itrCount - loopStart) + " ms");
+        }
+        if (reportInertia) {
+            print("      Final inertia " + lloyd.inertia(centers) + (metric != Metric.EUCLIDEAN ?
+                    " (" + metric.getName() + " distances)" : ""));
+        }
+
+        if (lloyd.firstIterationEndNanos > 0) {
+            metrics.timeToFirstIteration((lloyd.firstIterationEndNanos - startNanos) * 1e-6);
+        }
+        metrics.aggregate();
+        double[] loadMs = new double[1];
+        if (loader != null) {
+            loader.awaitAll();
+            loadMs[0] = loader.getLoadMs();
+            if (ParallelOps.worldProcsCount > 1) {
+                ParallelOps.worldProcsComm.allReduce(loadMs, 1, Communicator.Op.MAX);
+            }
+        }
+        print("      Time to first iteration " + metrics.timeToFirstIterationMs() + " ms (slowest rank)" +
+                (loader != null ? ", points loaded in the background in " + loadMs[0] + " ms" : ""));
+        if (Lloyd.ENGINE_FLOAT.equals(engine)) {
+            int iterations = Math.max(1, metrics.getIterations() - loopStart);
+            print("      Float distances re-checked in double for " + metrics.totalRechecks() / iterations +
+                    " points per iteration (" + 100.0 * metrics.totalRechecks() / iterations / numPoints + "%)");
+        }
+        print("      Load imbalance max/min threads " + metrics.threadImbalance() + " ranks " +
+                metrics.rankImbalance());
+        if (ParallelOps.worldProcsCount > 1) {
+            print("    Avg. comm time node local " + metrics.totalAllReduceMs(false) + " ms inter-node " +
+                    metrics.totalAllReduceMs(true) + " ms (across all MPI)");
+        }
+        if (!Strings.isNullOrEmpty(metricsFile) && ParallelOps.worldProcRank == 0) {
+            metrics.write(metricsFile, numPoints, dimension, numCenters, engine);
+            print("    Wrote per iteration metrics to " + metricsFile);
+        }
 
-                if (ParallelOps.worldProcRank == 0) {
-                    print("  Writing output file ...");
-                    timer.start();
-                    try (PrintWriter writer = new PrintWriter(
-                            Files.newBufferedWriter(Paths.get(outputFile), Charset.defaultCharset(),
-                                    StandardOpenOption.CREATE, StandardOpenOption.WRITE), true)) {
+        if (!Strings.isNullOrEmpty(outputFile)) {
+            final int[] clusterAssignments = lloyd.getFileOrderAssignments();
+            if (ParallelOps.worldProcsCount > 1) {
+                // Gather cluster assignments
+                print("  Gathering cluster assignments ...");
+                timer.start();
+                gatherAssignments(clusterAssignments, allClusterAssignments,
+                        ParallelOps.getLengthsArray(numPoints), ParallelOps.pointStartIdxForProc);
+                timer.stop();
+                long[] time = new long[]{timer.elapsed(TimeUnit.MILLISECONDS)};
+                timer.reset();
+                ParallelOps.worldProcsComm.reduce(time, 1, Communicator.Op.SUM, 0);
+                print("    Done in " + time[0] * 1.0 / ParallelOps.worldProcsCount +
+                        " ms on average");
+            }
+
+            if (ParallelOps.worldProcRank == 0) {
+                print("  Writing output file ...");
+                timer.start();
+                try (PrintWriter writer = new PrintWriter(
+                        Files.newBufferedWriter(Paths.get(outputFile), Charset.defaultCharset(),
+                                StandardOpenOption.CREATE, StandardOpenOption.WRITE), true)) {
+                    if (isSparse) {
+                        // Nonzeros as column:value instead of every coordinate
+                        SparsePoints all = SparsePoints.readRowRange(pointsFile, numPoints, dimension, 0, numPoints,
+                                isBigEndian);
+                        for (int i = 0; i < numPoints; ++i) {
+                            writer.println(i + "\t" + all.format(i) + "\t" +
+                                    ((ParallelOps.worldProcsCount > 1) ? allClusterAssignments[i] : clusterAssignments[i]));
+                        }
+                    } else {
                         PointReader reader = PointReader.readRowRange(pointsFile, 0, numPoints, dimension,
                                 isBigEndian);
                         double[] point = new double[dimension];
                         for (int i = 0; i < numPoints; ++i) {
                             reader.getPoint(i, point, dimension, 0);
                             writer.println(i + "\t" + Doubles.join("\t", point) + "\t" +
-                                    ((ParallelOps.worldProcsCount > 1) ? intBuffer2.get(i) : clusterAssignments[i]));
+                                    ((ParallelOps.worldProcsCount > 1) ? allClusterAssignments[i] : clusterAssignments[i]));
                         }
                     }
-                    timer.stop();
-                    print("    Done in " + timer.elapsed(TimeUnit.MILLISECONDS) +
-                            "ms");
-                    timer.reset();
                 }
+                timer.stop();
+                print("    Done in " + timer.elapsed(TimeUnit.MILLISECONDS) +
+                        "ms");
+                timer.reset();
             }
-            mainTimer.stop();
-            print("=== Program terminated successfully on " +
-                    dateFormat.format(new Date()) + " took " +
-                    (mainTimer.elapsed(TimeUnit.MILLISECONDS)) + " ms ===");
+        }
+        mainTimer.stop();
+        print("=== Program terminated successfully on " +
+                dateFormat.format(new Date()) + " took " +
+                (mainTimer.elapsed(TimeUnit.MILLISECONDS)) + " ms ===");
 
-            ParallelOps.endParallelism();
-        } catch (MPIException | IOException e) {
-            e.printStackTrace();
+        ParallelOps.endParallelism();
+    }
+
+    /**
+     * Collective call. Gathers the assignments of all ranks, laid out by lengths,
+     * into allClusterAssignments.
+     */
+    private static void gatherAssignments(int[] clusterAssignments, int[] allClusterAssignments, int[] lengths,
+                                          int pointStartIdxForProc) throws MPIException {
+        int[] displas = new int[lengths.length];
+        displas[0] = 0;
+        System.arraycopy(lengths, 0, displas, 1, lengths.length - 1);
+        Arrays.parallelPrefix(displas, (p, q) -> p + q);
+        System.arraycopy(clusterAssignments, 0, allClusterAssignments, pointStartIdxForProc,
+                clusterAssignments.length);
+        ParallelOps.worldProcsComm.allGatherv(allClusterAssignments, lengths, displas);
+    }
+
+    private static BitSet[] planBindings(String bindPlan, int numThreads) throws MPIException {
+        if (!BindingPlanner.PLAN_JULIET.equals(bindPlan)) {
+            // Read the mask MPI applied before any thread of ours gets bound
+            BitSet processMask;
+            Exception failure = null;
+            try {
+                processMask = CpuTopology.readProcessMask();
+            } catch (IOException | RuntimeException e) {
+                processMask = new BitSet();
+                failure = e;
+            }
+            // Every rank of the node takes part, even one that couldn't read its mask
+            int[] share = ParallelOps.shareOfMask(processMask);
+            try {
+                if (failure != null) throw failure;
+                CpuTopology topology = CpuTopology.read();
+                BitSet[] plan = BindingPlanner.plan(topology, processMask, share[0], share[1], numThreads);
+                System.out.println("  Binding plan (auto) rank " + ParallelOps.worldProcRank + " on " +
+                        ParallelOps.machineName + " [" + topology + ", process mask " +
+                        BindingPlanner.toCpuList(processMask) + "]" + BindingPlanner.describe(plan, topology));
+                return plan;
+            } catch (Exception e) {
+                System.out.println("  Rank " + ParallelOps.worldProcRank + " could not read the node topology (" + e +
+                        "), falling back to the Juliet binding plan");
+            }
         }
+        BitSet[] plan = BindingPlanner.julietPlan(ParallelOps.worldProcRank, numThreads, ParallelOps.nodeCount);
+        System.out.println("  Binding plan (juliet) rank " + ParallelOps.worldProcRank + " on " +
+                ParallelOps.machineName + BindingPlanner.describe(plan, null));
+        return plan;
     }
 
-    private static void findNearesetCenters(int dimension, int numCenters, double[] points, double[] centers, double[] centerSumsAndCountsForThread, int[] clusterAssignments, Integer threadIdx) {
-        int pointsForThread = ParallelOps.pointsForThread[threadIdx];
-        int pointStartIdxForThread = ParallelOps.pointStartIdxForThread[threadIdx];
+    /**
+     * @return number of points whose cluster assignment changed
+     */
+    static int findNearesetCenters(int dimension, int numCenters, double[] points, int pointsOffset, double[] centers, double[] centerSumsAndCountsForThread, int[] clusterAssignments, Integer threadIdx) {
+        return findNearesetCenters(dimension, points, pointsOffset, ParallelOps.pointsForThread[threadIdx], centers,
+                centerSumsAndCountsForThread, threadIdx * numCenters * (dimension + 1), clusterAssignments,
+                ParallelOps.pointStartIdxForThread[threadIdx]);
+    }
 
-        for (int i = 0; i < pointsForThread; ++i) {
-            int pointOffset = (pointStartIdxForThread + i) * dimension;
+    /**
+     * Dynamic scheduling, runs chunks until the scheduler has none left. Points of a
+     * chunk are read from its owner's slab, sums go to this thread's accumulators.
+     * @return number of points whose cluster assignment changed
+     */
+    static int findNearesetCenters(int dimension, double[][] threadPoints, int[] threadPointOffsets, double[] centers,
+                                   double[] centerSums, int[] clusterAssignments, ChunkScheduler scheduler,
+                                   int threadIdx) {
+        int moved = 0;
+        long chunk;
+        while ((chunk = scheduler.next(threadIdx)) >= 0) {
+            int owner = ChunkScheduler.owner(chunk);
+            int start = scheduler.start(chunk);
+            moved += findNearesetCenters(dimension, threadPoints[owner],
+                    threadPointOffsets[owner] + start * dimension,
+                    scheduler.count(chunk, ParallelOps.pointsForThread[owner]), centers, centerSums, 0,
+                    clusterAssignments, ParallelOps.pointStartIdxForThread[owner] + start);
+        }
+        return moved;
+    }
+
+    /**
+     * Assigns <code>count</code> points starting at <code>pointsOffset</code>
+     * @return number of points whose cluster assignment changed
+     */
+    static int findNearesetCenters(int dimension, double[] points, int pointsOffset, int count, double[] centers,
+                                   double[] centerSumsAndCounts, int centerSumsOffset, int[] clusterAssignments,
+                                   int assignmentsOffset) {
+        int moved = 0;
+
+        for (int i = 0; i < count; ++i) {
+            int pointOffset = pointsOffset + i * dimension;
             int centerWithMinDist = findCenterWithMinDistance(points, centers, dimension,
                     pointOffset);
 
@@ -324,10 +865,67 @@ public class Program {
                         "Rank: " + ParallelOps.worldProcRank + " threadIdx: " + threadIdx + " point " + i +
                                 " closest center " + centerWithMinDist);
             }*/
-            int centerOffset = threadIdx*numCenters*(dimension+1) + centerWithMinDist*(dimension+1);
-            ++centerSumsAndCountsForThread[centerOffset+dimension];
-            accumulate(points, centerSumsAndCountsForThread, pointOffset, centerOffset, dimension);
-            clusterAssignments[i + pointStartIdxForThread] = centerWithMinDist;
+            int centerOffset = centerSumsOffset + centerWithMinDist*(dimension+1);
+            ++centerSumsAndCounts[centerOffset+dimension];
+            accumulate(points, centerSumsAndCounts, pointOffset, centerOffset, dimension);
+            if (clusterAssignments[i + assignmentsOffset] != centerWithMinDist) {
+                ++moved;
+            }
+            clusterAssignments[i + assignmentsOffset] = centerWithMinDist;
+        }
+        return moved;
+    }
+
+    /**
+     * Same as above for weighted points, the point at assignment i counts
+     * weights[i] times towards its center
+     * @return number of points whose cluster assignment changed
+     */
+    static int findNearesetCenters(int dimension, double[] points, int pointsOffset, int count, double[] centers,
+                                   double[] centerSumsAndCounts, int centerSumsOffset, int[] clusterAssignments,
+                                   int assignmentsOffset, double[] weights) {
+        int moved = 0;
+        for (int i = 0; i < count; ++i) {
+            int pointOffset = pointsOffset + i * dimension;
+            int centerWithMinDist = findCenterWithMinDistance(points, centers, dimension, pointOffset);
+            int centerOffset = centerSumsOffset + centerWithMinDist * (dimension + 1);
+            double weight = weights[i + assignmentsOffset];
+            centerSumsAndCounts[centerOffset + dimension] += weight;
+            accumulate(points, centerSumsAndCounts, pointOffset, centerOffset, dimension, weight);
+            if (clusterAssignments[i + assignmentsOffset] != centerWithMinDist) {
+                ++moved;
+            }
+            clusterAssignments[i + assignmentsOffset] = centerWithMinDist;
+        }
+        return moved;
+    }
+
+    /**
+     * Sum over threads. Place results to arrays of thread 0
+     */
+    static void sumOverThreads(double[] centerSumsAndCountsForThread, int numThreads, int numCenters, int dimension) {
+        for (int t = 1; t < numThreads; ++t) {
+            for (int c = 0; c < numCenters; ++c) {
+                for (int d = 0; d < (dimension + 1); ++d) {
+                    int offsetWithinThread = (c * (dimension + 1)) + d;
+                    centerSumsAndCountsForThread[offsetWithinThread] += centerSumsAndCountsForThread[
+                            (t * numCenters * (dimension + 1)) + offsetWithinThread];
+                }
+            }
+        }
+    }
+
+    /**
+     * Sum the first length values of the per thread accumulators of dynamic
+     * scheduling into the start of target
+     */
+    static void sumOverThreads(double[][] threadSums, double[] target, int length) {
+        System.arraycopy(threadSums[0], 0, target, 0, length);
+        for (int t = 1; t < threadSums.length; ++t) {
+            double[] sums = threadSums[t];
+            for (int i = 0; i < length; ++i) {
+                target[i] += sums[i];
+            }
         }
     }
 
@@ -373,7 +971,7 @@ public class Program {
         }
     }
 
-    private static int findCenterWithMinDistance(double[] points, double[] centers, int dimension, int pointOffset) {
+    static int findCenterWithMinDistance(double[] points, double[] centers, int dimension, int pointOffset) {
         int k = centers.length/dimension;
         double dMin = Double.MAX_VALUE;
         int dMinIdx = -1;
@@ -387,13 +985,20 @@ public class Program {
         return dMinIdx;
     }
 
-    private static void accumulate(double[] points, double[] centerSumsAndCounts, int pointOffset, int centerOffset, int dimension) {
+    static void accumulate(double[] points, double[] centerSumsAndCounts, int pointOffset, int centerOffset, int dimension) {
         for (int i = 0; i < dimension; ++i) {
             centerSumsAndCounts[centerOffset+i] += points[pointOffset+i];
         }
     }
 
-    private static double getEuclideanDistance(double[] point1, double[] point2, int dimension, int point1Offset, int point2Offset) {
+    static void accumulate(double[] points, double[] centerSumsAndCounts, int pointOffset, int centerOffset,
+                           int dimension, double weight) {
+        for (int i = 0; i < dimension; ++i) {
+            centerSumsAndCounts[centerOffset+i] += weight * points[pointOffset+i];
+        }
+    }
+
+    static double getEuclideanDistance(double[] point1, double[] point2, int dimension, int point1Offset, int point2Offset) {
         double d = 0.0;
         for (int i = 0; i < dimension; ++i) {
             d += Math.pow(point1[i+point1Offset] - point2[i+point2Offset], 2);
@@ -401,25 +1006,108 @@ public class Program {
         return Math.sqrt(d);
     }
 
-    private static void resetCenterSumsAndCounts(double[] centerSumsAndCountsForThread) {
-        IntStream.range(0, centerSumsAndCountsForThread.length).forEach(i -> centerSumsAndCountsForThread[i] = 0.0);
+    static double[] readPoints(String pointsFile, int dimension, int pointStartIdxForProc, int pointCountForProc, boolean isBigEndian) throws IOException {
+        double[] points = new double[pointCountForProc*dimension];
+        readRows(pointsFile, dimension, pointStartIdxForProc, pointCountForProc, isBigEndian, points, 0);
+        return points;
     }
 
-    private static double[] readPoints(String pointsFile, int dimension, int pointStartIdxForProc, int pointCountForProc, boolean isBigEndian) throws IOException {
+    /**
+     * Same as above after the range changed, rows still within the previous
+     * range are copied from there and only the rest is read
+     */
+    static double[] readPoints(String pointsFile, int dimension, int pointStartIdxForProc, int pointCountForProc,
+                               boolean isBigEndian, double[] previous, int previousStart, int previousCount)
+            throws IOException {
         double[] points = new double[pointCountForProc*dimension];
-        PointReader reader = PointReader.readRowRange(pointsFile, pointStartIdxForProc, pointCountForProc, dimension, isBigEndian);
-        for (int i = 0; i < pointCountForProc; i++) {
-            reader.getPoint(i + pointStartIdxForProc, points, dimension, i*dimension);
+        int end = pointStartIdxForProc + pointCountForProc;
+        int keepStart = Math.max(pointStartIdxForProc, previousStart);
+        int keepEnd = Math.min(end, previousStart + previousCount);
+        if (keepEnd <= keepStart) {
+            readRows(pointsFile, dimension, pointStartIdxForProc, pointCountForProc, isBigEndian, points, 0);
+            return points;
         }
+        System.arraycopy(previous, (keepStart - previousStart) * dimension, points,
+                (keepStart - pointStartIdxForProc) * dimension, (keepEnd - keepStart) * dimension);
+        readRows(pointsFile, dimension, pointStartIdxForProc, keepStart - pointStartIdxForProc, isBigEndian, points, 0);
+        readRows(pointsFile, dimension, keepEnd, end - keepEnd, isBigEndian, points,
+                (keepEnd - pointStartIdxForProc) * dimension);
         return points;
     }
 
+    private static void readRows(String pointsFile, int dimension, int startRow, int rows, boolean isBigEndian,
+                                 double[] points, int offset) throws IOException {
+        if (rows == 0) return;
+        PointReader.readRowRange(pointsFile, startRow, rows, dimension, isBigEndian).getRows(startRow, rows, points,
+                offset);
+    }
+
+    private static void setQuantization(CommandLine cmd, Lloyd lloyd) {
+        ProductQuantizer quantizer = lloyd.getQuantizer();
+        if (quantizer != null && (cmd.hasOption("pqsub") || cmd.hasOption("pqrerank"))) {
+            lloyd.setQuantization(cmd.hasOption("pqsub") ? Integer.parseInt(cmd.getOptionValue("pqsub")) :
+                    quantizer.getSubspaces(), cmd.hasOption("pqrerank") ?
+                    Integer.parseInt(cmd.getOptionValue("pqrerank")) : quantizer.getRerank());
+        }
+    }
+
+    /* All threads share the process' array, each starting at its own range */
+    private static void shareAmongThreads(double[] points, int dimension, double[][] threadPoints,
+                                          int[] threadPointOffsets) {
+        for (int i = 0; i < threadPoints.length; ++i) {
+            threadPoints[i] = points;
+            threadPointOffsets[i] = ParallelOps.pointStartIdxForThread[i] * dimension;
+        }
+    }
+
+    /**
+     * Each (pinned) worker allocates and fills the slab for its own range of
+     * points, so the pages are first touched, hence placed, on the NUMA node
+     * the worker computes on. Returns per thread load times in milliseconds.
+     */
+    private static double[] readPointsFirstTouch(String pointsFile, int dimension, boolean isBigEndian,
+                                                 int numThreads, BitSet[] threadBitSets, double[][] threadPoints)
+            throws IOException {
+        double[] threadLoadTimes = new double[numThreads];
+        IOException[] failures = new IOException[numThreads];
+        if (numThreads > 1) {
+            launchHabaneroApp(() -> forallChunked(0, numThreads - 1, (threadIdx) -> {
+                if (threadBitSets != null) {
+                    Affinity.setAffinity(threadBitSets[threadIdx]);
+                }
+                try {
+                    threadLoadTimes[threadIdx] = readSlab(pointsFile, dimension, isBigEndian, threadPoints, threadIdx);
+                } catch (IOException e) {
+                    failures[threadIdx] = e;
+                }
+            }));
+        } else {
+            if (threadBitSets != null) {
+                Affinity.setAffinity(threadBitSets[0]);
+            }
+            threadLoadTimes[0] = readSlab(pointsFile, dimension, isBigEndian, threadPoints, 0);
+        }
+        for (IOException failure : failures) {
+            if (failure != null) throw failure;
+        }
+        return threadLoadTimes;
+    }
+
+    private static double readSlab(String pointsFile, int dimension, boolean isBigEndian, double[][] threadPoints,
+                                   int threadIdx) throws IOException {
+        long t = System.nanoTime();
+        int pointsForThread = ParallelOps.pointsForThread[threadIdx];
+        int startRow = ParallelOps.pointStartIdxForProc + ParallelOps.pointStartIdxForThread[threadIdx];
+        double[] slab = new double[pointsForThread * dimension];
+        PointReader.readRowRange(pointsFile, startRow, pointsForThread, dimension, isBigEndian).getRows(startRow,
+                pointsForThread, slab, 0);
+        threadPoints[threadIdx] = slab;
+        return (System.nanoTime() - t) * 1e-6;
+    }
+
     private static double[] readCenters(String centersFile, int k, int dimension, boolean isBigEndian) throws IOException {
         double[] centers = new double[k*dimension];
-        PointReader reader = PointReader.readRowRange(centersFile, 0, k, dimension, isBigEndian);
-        for (int i = 0; i < k; i++) {
-            reader.getPoint(i, centers, dimension, i*dimension);
-        }
+        PointReader.readRowRange(centersFile, 0, k, dimension, isBigEndian).getRows(0, k, centers, 0);
         return centers;
     }
 
@@ -0,0 +1,153 @@
+package org.saliya.ompi.kmeans;
+
+import java.util.Random;
+
+/**
+ * Projection of points and centers onto a few random orthonormal directions
+ * (a Johnson-Lindenstrauss projection with orthogonalized rows) to shortlist
+ * the centers worth a full distance. An orthonormal projection never
+ * lengthens a vector, so the projected distance to a center is a lower bound
+ * of the full one. A point computes the full distance to its previous center
+ * first, then only to the centers whose projected distance doesn't rule them
+ * out, so labels are the same as the brute force kernel's.
+ *
+ * The matrix comes from a fixed seed, so every rank builds the same one
+ * without communication.
+ */
+public class RandomProjection {
+    private static final long SEED = 20160601L;
+    // Relative slack on pruning so rounding in the projected distances can't drop a near tie
+    private static final double MARGIN = 1e-9;
+
+    private final int dimension;
+    private final int projected;
+    // Orthonormal rows, [projected][dimension]
+    private final double[] matrix;
+
+    public RandomProjection(int dimension, int projected) {
+        this.dimension = dimension;
+        this.projected = Math.max(1, Math.min(projected, dimension));
+        matrix = new double[this.projected * dimension];
+        Random random = new Random(SEED);
+        // Gaussian rows, orthonormalized with modified Gram-Schmidt
+        for (int r = 0; r < this.projected; ++r) {
+            int row = r * dimension;
+            double norm;
+            do {
+                for (int j = 0; j < dimension; ++j) {
+                    matrix[row + j] = random.nextGaussian();
+                }
+                for (int q = 0; q < r; ++q) {
+                    double dot = 0.0;
+                    for (int j = 0; j < dimension; ++j) {
+                        dot += matrix[row + j] * matrix[q * dimension + j];
+                    }
+                    for (int j = 0; j < dimension; ++j) {
+                        matrix[row + j] -= dot * matrix[q * dimension + j];
+                    }
+                }
+                norm = 0.0;
+                for (int j = 0; j < dimension; ++j) {
+                    norm += matrix[row + j] * matrix[row + j];
+                }
+                norm = Math.sqrt(norm);
+            } while (norm < 1e-6);
+            for (int j = 0; j < dimension; ++j) {
+                matrix[row + j] /= norm;
+            }
+        }
+    }
+
+    public int getProjected() {
+        return projected;
+    }
+
+    /**
+     * Projects count vectors, to needs count * getProjected()
+     */
+    public void project(double[] from, int fromOffset, int count, double[] to, int toOffset) {
+        for (int i = 0; i < count; ++i) {
+            int vectorOffset = fromOffset + i * dimension;
+            for (int r = 0; r < projected; ++r) {
+                double dot = 0.0;
+                int row = r * dimension;
+                for (int j = 0; j < dimension; ++j) {
+                    dot += matrix[row + j] * from[vectorOffset + j];
+                }
+                to[toOffset + i * projected + r] = dot;
+            }
+        }
+    }
+
+    /**
+     * Same contract as the range kernel Program.findNearesetCenters, with
+     * the projections of the points starting at projectedOffset and of the
+     * centers
+     *
+     * @param shortlisted shortlisted[shortlistedIdx] counts the full distances computed
+     * @return number of points whose cluster assignment changed
+     */
+    public int findNearestCenters(double[] points, int pointsOffset, double[] projectedPoints, int projectedOffset,
+                                  int count, double[] centers, double[] projectedCenters, int numCenters,
+                                  double[] centerSumsAndCounts, int centerSumsOffset, int[] clusterAssignments,
+                                  int assignmentsOffset, long[] shortlisted, int shortlistedIdx) {
+        int moved = 0;
+        long full = 0;
+        double maxCenterSq = 0.0;
+        for (int c = 0; c < numCenters * projected; c += projected) {
+            double sq = 0.0;
+            for (int r = 0; r < projected; ++r) {
+                sq += projectedCenters[c + r] * projectedCenters[c + r];
+            }
+            if (sq > maxCenterSq) maxCenterSq = sq;
+        }
+        for (int i = 0; i < count; ++i) {
+            int pointOffset = pointsOffset + i * dimension;
+            int projectedPointOffset = projectedOffset + i * projected;
+            int previous = clusterAssignments[assignmentsOffset + i];
+            int first = previous >= 0 && previous < numCenters ? previous : 0;
+            int best = first;
+            double dMin = Program.getEuclideanDistance(points, centers, dimension, pointOffset, first * dimension);
+            ++full;
+            if (Double.isNaN(dMin)) {
+                // Left over from an empty cluster, never the nearest
+                dMin = Double.MAX_VALUE;
+            }
+            double pointSq = 0.0;
+            for (int r = 0; r < projected; ++r) {
+                pointSq += projectedPoints[projectedPointOffset + r] * projectedPoints[projectedPointOffset + r];
+            }
+            // Rounding of the projections grows with their lengths, which matters for distances near zero
+            double absolute = MARGIN * (pointSq + maxCenterSq);
+            double limit = dMin * dMin * (1 + MARGIN) + absolute;
+            for (int c = 0; c < numCenters; ++c) {
+                if (c == first) continue;
+                double sq = 0.0;
+                int centerOffset = c * projected;
+                for (int r = 0; r < projected; ++r) {
+                    double diff = projectedPoints[projectedPointOffset + r] - projectedCenters[centerOffset + r];
+                    sq += diff * diff;
+                }
+                if (!(sq <= limit)) continue;
+                double dist = Program.getEuclideanDistance(points, centers, dimension, pointOffset, c * dimension);
+                ++full;
+                // Lowest index wins ties, as with a plain scan
+                if (dist < dMin || (dist == dMin && c < best)) {
+                    dMin = dist;
+                    best = c;
+                    limit = dMin * dMin * (1 + MARGIN) + absolute;
+                }
+            }
+
+            int centerOffset = centerSumsOffset + best * (dimension + 1);
+            ++centerSumsAndCounts[centerOffset + dimension];
+            Program.accumulate(points, centerSumsAndCounts, pointOffset, centerOffset, dimension);
+            if (previous != best) {
+                ++moved;
+            }
+            clusterAssignments[assignmentsOffset + i] = best;
+        }
+        shortlisted[shortlistedIdx] += full;
+        return moved;
+    }
+}
@@ -0,0 +1,141 @@
+package org.saliya.ompi.kmeans;
+
+import mpi.MPIException;
+import net.openhft.lang.io.ByteBufferBytes;
+import net.openhft.lang.io.Bytes;
+import org.saliya.ompi.kmeans.comm.Communicator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Memory shared by the ranks of one mmap group, one file mapped once with
+ * each region starting on its own cache line. Replaces a file per region.
+ *
+ * The lead creates and zeroes the file, the others map it once it's there,
+ * everyone touches every page before the first collective, and the lead
+ * deletes the file as soon as all have mapped it. The mappings outlive the
+ * name, so nothing is left in the directory once the ranks exit, however
+ * they exit. Until the delete, a shutdown hook removes the file.
+ *
+ * With huge pages the size is rounded up to 2 MB, so a hugetlbfs directory,
+ * or a tmpfs mounted with huge=always, can back it with huge pages.
+ */
+public class SharedSegment {
+    public static final int ALIGNMENT = 64;
+    private static final long PAGE = 4096;
+    private static final long HUGE_PAGE = 2L << 20;
+
+    private final int[] lengths;
+    private final int[] offsets;
+    private final MappedByteBuffer mapped;
+    private final Bytes[] regions;
+
+    private SharedSegment(int[] lengths, int[] offsets, MappedByteBuffer mapped) {
+        this.lengths = lengths;
+        this.offsets = offsets;
+        this.mapped = mapped;
+        regions = new Bytes[lengths.length];
+        for (int i = 0; i < lengths.length; ++i) {
+            ByteBuffer region = mapped.duplicate();
+            region.position(offsets[i]);
+            region.limit(offsets[i] + lengths[i]);
+            regions[i] = ByteBufferBytes.wrap(region.slice());
+        }
+    }
+
+    /**
+     * Collective call over the ranks of the group, with isLead true on one
+     * of them. Regions of the lead are zero on return.
+     *
+     * @param lengths bytes of each region
+     */
+    public static SharedSegment create(Communicator group, boolean isLead, Path file, int[] lengths,
+                                       boolean hugePages) throws MPIException, IOException {
+        int[] offsets = new int[lengths.length];
+        long size = 0;
+        for (int i = 0; i < lengths.length; ++i) {
+            offsets[i] = (int) size;
+            size += (lengths[i] + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+        }
+        long page = hugePages ? HUGE_PAGE : PAGE;
+        size = Math.max(page, (size + page - 1) / page * page);
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Shared segment of " + size + " bytes is too large to map");
+        }
+
+        Thread remover = null;
+        MappedByteBuffer mapped = null;
+        if (isLead) {
+            remover = new Thread(() -> {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException ignored) {
+                }
+            });
+            Runtime.getRuntime().addShutdownHook(remover);
+            mapped = map(file, size, true);
+            // A file left by an earlier run under the same name may not be zero
+            zero(mapped, 0, (int) size);
+        }
+        group.barrier();
+        if (!isLead) {
+            mapped = map(file, size, false);
+        }
+        // Fault the pages in now, not in the first allReduce
+        mapped.load();
+        group.barrier();
+
+        if (isLead) {
+            Files.deleteIfExists(file);
+            try {
+                Runtime.getRuntime().removeShutdownHook(remover);
+            } catch (IllegalStateException ignored) {
+                // Already shutting down
+            }
+        }
+        return new SharedSegment(lengths.clone(), offsets, mapped);
+    }
+
+    private static MappedByteBuffer map(Path file, long size, boolean create) throws IOException {
+        try (FileChannel fc = create ?
+                FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE) :
+                FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return fc.map(FileChannel.MapMode.READ_WRITE, 0L, size);
+        }
+    }
+
+    private static void zero(MappedByteBuffer mapped, int offset, int length) {
+        try {
+            long address = ParallelOps.getDirectByteBufferAddressViaField(mapped);
+            ParallelOps.UNSAFE.setMemory(address + offset, length, (byte) 0);
+        } catch (NoSuchFieldException e) {
+            byte[] zeros = new byte[Math.min(length, 1 << 16)];
+            ByteBuffer buffer = mapped.duplicate();
+            buffer.position(offset);
+            for (int left = length; left > 0; left -= zeros.length) {
+                buffer.put(zeros, 0, Math.min(left, zeros.length));
+            }
+        }
+    }
+
+    public Bytes getRegion(int i) {
+        return regions[i];
+    }
+
+    /* Regions of the same lengths, so a new decomposition can keep this segment */
+    public boolean hasLengths(int[] lengths) {
+        return Arrays.equals(this.lengths, lengths);
+    }
+
+    /* Zeroes a region, called by the lead while no one else uses it */
+    public void zero(int i) {
+        zero(mapped, offsets[i], lengths[i]);
+    }
+}
@@ -0,0 +1,193 @@
+package org.saliya.ompi.kmeans;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Rows of a sparse points file in compressed sparse row form. The file holds
+ * n + 1 long row offsets, then the int column of every nonzero, then the
+ * double value of every nonzero, rows in order. See DataConverter for making
+ * one from dense or svmlight data.
+ *
+ * Distances to dense centers use ||x - c||^2 = ||x||^2 - 2 x.c + ||c||^2,
+ * with the squared norms of the centers computed once per iteration, so a
+ * point costs one pass over its nonzeros per center. Sums only add nonzeros.
+ */
+public class SparsePoints {
+    // Bytes read at a time
+    private static final int READ_BYTES = 1 << 26;
+
+    private final int dimension;
+    // Nonzeros of row i are at [rowStart[i], rowStart[i + 1])
+    private final int[] rowStart;
+    private final int[] columns;
+    private final double[] values;
+    private final double[] squaredNorms;
+
+    private SparsePoints(int dimension, int[] rowStart, int[] columns, double[] values) {
+        this.dimension = dimension;
+        this.rowStart = rowStart;
+        this.columns = columns;
+        this.values = values;
+        int rows = rowStart.length - 1;
+        squaredNorms = new double[rows];
+        for (int i = 0; i < rows; ++i) {
+            double sq = 0.0;
+            for (int e = rowStart[i]; e < rowStart[i + 1]; ++e) {
+                sq += values[e] * values[e];
+            }
+            squaredNorms[i] = sq;
+        }
+    }
+
+    /**
+     * Rows [startRow, startRow + numRows) of a file with numPoints rows
+     */
+    public static SparsePoints readRowRange(String file, int numPoints, int dimension, int startRow, int numRows,
+                                            boolean isBigEndian) throws IOException {
+        ByteOrder order = isBigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+        try (FileChannel fc = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+            long[] offsets = new long[numRows + 1];
+            ByteBuffer buffer = read(fc, (long) startRow * Long.BYTES, (numRows + 1) * Long.BYTES, order);
+            buffer.asLongBuffer().get(offsets);
+            long nonzeros = readLong(fc, (long) numPoints * Long.BYTES, order);
+            long first = offsets[0];
+            if (offsets[numRows] - first > Integer.MAX_VALUE) {
+                throw new IOException((offsets[numRows] - first) + " nonzeros don't fit in one array");
+            }
+            int count = (int) (offsets[numRows] - first);
+            int[] rowStart = new int[numRows + 1];
+            for (int i = 0; i <= numRows; ++i) {
+                rowStart[i] = (int) (offsets[i] - first);
+            }
+
+            long columnsStart = (long) (numPoints + 1) * Long.BYTES;
+            long valuesStart = columnsStart + nonzeros * Integer.BYTES;
+            int[] columns = new int[count];
+            double[] values = new double[count];
+            for (int e = 0; e < count; e += READ_BYTES / Double.BYTES) {
+                int length = Math.min(READ_BYTES / Double.BYTES, count - e);
+                read(fc, columnsStart + (first + e) * Integer.BYTES, length * Integer.BYTES, order).asIntBuffer()
+                        .get(columns, e, length);
+                read(fc, valuesStart + (first + e) * Double.BYTES, length * Double.BYTES, order).asDoubleBuffer()
+                        .get(values, e, length);
+            }
+            for (int column : columns) {
+                if (column < 0 || column >= dimension) {
+                    throw new IOException("Column " + column + " out of range for dimension " + dimension);
+                }
+            }
+            return new SparsePoints(dimension, rowStart, columns, values);
+        }
+    }
+
+    private static ByteBuffer read(FileChannel fc, long position, int bytes, ByteOrder order) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(bytes).order(order);
+        while (buffer.hasRemaining()) {
+            if (fc.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Sparse points file ends at " + (position + buffer.position()));
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static long readLong(FileChannel fc, long position, ByteOrder order) throws IOException {
+        return read(fc, position, Long.BYTES, order).getLong();
+    }
+
+    public long getNonzeros() {
+        return rowStart[rowStart.length - 1];
+    }
+
+    /**
+     * Squared norms of the centers, before assigning points to them
+     */
+    public static void squaredNorms(double[] centers, int numCenters, int dimension, double[] norms) {
+        for (int c = 0; c < numCenters; ++c) {
+            double sq = 0.0;
+            for (int j = 0; j < dimension; ++j) {
+                double x = centers[c * dimension + j];
+                sq += x * x;
+            }
+            norms[c] = sq;
+        }
+    }
+
+    /**
+     * Same contract as the range kernel Program.findNearesetCenters for rows
+     * [from, from + count), which also index the assignments
+     *
+     * @param centerNorms as computed by {@link #squaredNorms}
+     * @return number of points whose cluster assignment changed
+     */
+    public int findNearestCenters(int from, int count, double[] centers, double[] centerNorms, int numCenters,
+                                  double[] centerSumsAndCounts, int centerSumsOffset, int[] clusterAssignments) {
+        int moved = 0;
+        for (int i = from; i < from + count; ++i) {
+            int best = nearest(i, centers, centerNorms, numCenters);
+            int centerOffset = centerSumsOffset + best * (dimension + 1);
+            ++centerSumsAndCounts[centerOffset + dimension];
+            for (int e = rowStart[i]; e < rowStart[i + 1]; ++e) {
+                centerSumsAndCounts[centerOffset + columns[e]] += values[e];
+            }
+            if (clusterAssignments[i] != best) {
+                ++moved;
+            }
+            clusterAssignments[i] = best;
+        }
+        return moved;
+    }
+
+    /* Nearest by ||c||^2 - 2 x.c, the lowest index wins ties */
+    private int nearest(int i, double[] centers, double[] centerNorms, int numCenters) {
+        double dMin = Double.MAX_VALUE;
+        int best = 0;
+        for (int c = 0; c < numCenters; ++c) {
+            int centerOffset = c * dimension;
+            double dot = 0.0;
+            for (int e = rowStart[i]; e < rowStart[i + 1]; ++e) {
+                dot += values[e] * centers[centerOffset + columns[e]];
+            }
+            double dist = centerNorms[c] - 2 * dot;
+            if (dist < dMin) {
+                dMin = dist;
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Sum of squared distances from rows [from, from + count) to their nearest centers
+     */
+    public double inertia(int from, int count, double[] centers, double[] centerNorms, int numCenters) {
+        double sum = 0.0;
+        for (int i = from; i < from + count; ++i) {
+            int best = nearest(i, centers, centerNorms, numCenters);
+            double dot = 0.0;
+            for (int e = rowStart[i]; e < rowStart[i + 1]; ++e) {
+                dot += values[e] * centers[best * dimension + columns[e]];
+            }
+            // Cancellation can leave a tiny negative for points on a center
+            sum += Math.max(0.0, squaredNorms[i] - 2 * dot + centerNorms[best]);
+        }
+        return sum;
+    }
+
+    /**
+     * Nonzeros of a row as column:value pairs separated by tabs
+     */
+    public String format(int i) {
+        StringBuilder sb = new StringBuilder();
+        for (int e = rowStart[i]; e < rowStart[i + 1]; ++e) {
+            if (e > rowStart[i]) sb.append('\t');
+            sb.append(columns[e]).append(':').append(values[e]);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,153 @@
+package org.saliya.ompi.kmeans;
+
+import mpi.MPIException;
+import org.saliya.ompi.kmeans.comm.Communicator;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Runs several K-Means configurations back to back over points loaded once,
+ * e.g. for model selection over k. Each line of a sweep file lists
+ * <code>key=value[,value...]</code> for any of k, seed, t and m, and stands
+ * for all combinations of its values. Missing keys take the command line
+ * values. Without a seed the first k centers of the centers file are used,
+ * with a seed k distinct points chosen at random (the same on all ranks).
+ */
+public class Sweep {
+    public static final String KEY_K = "k";
+    public static final String KEY_SEED = "seed";
+    public static final String KEY_THRESHOLD = "t";
+    public static final String KEY_MAX_ITERATIONS = "m";
+
+    public static class Config {
+        public final int k;
+        // Negative to take the centers from the centers file
+        public final long seed;
+        public final double threshold;
+        public final int maxIterations;
+
+        Config(int k, long seed, double threshold, int maxIterations) {
+            this.k = k;
+            this.seed = seed;
+            this.threshold = threshold;
+            this.maxIterations = maxIterations;
+        }
+    }
+
+    public static List<Config> parse(String file, int k, double threshold, int maxIterations) throws IOException {
+        List<Config> configs = new ArrayList<>();
+        for (String line : Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            Map<String, String[]> values = new HashMap<>();
+            for (String token : line.split("\\s+")) {
+                int eq = token.indexOf('=');
+                if (eq < 0) {
+                    throw new IOException("Expected key=value in sweep file " + file + " but found " + token);
+                }
+                values.put(token.substring(0, eq), token.substring(eq + 1).split(","));
+            }
+            String[] ks = values.getOrDefault(KEY_K, new String[]{Integer.toString(k)});
+            String[] seeds = values.getOrDefault(KEY_SEED, new String[]{"-1"});
+            String[] thresholds = values.getOrDefault(KEY_THRESHOLD, new String[]{Double.toString(threshold)});
+            String[] iterations = values.getOrDefault(KEY_MAX_ITERATIONS,
+                    new String[]{Integer.toString(maxIterations)});
+            for (String kv : ks) {
+                for (String seed : seeds) {
+                    for (String t : thresholds) {
+                        for (String m : iterations) {
+                            configs.add(new Config(Integer.parseInt(kv), Long.parseLong(seed), Double.parseDouble(t),
+                                    Integer.parseInt(m)));
+                        }
+                    }
+                }
+            }
+        }
+        return configs;
+    }
+
+    /* Runs without a seed take their centers from the centers file */
+    public static boolean allSeeded(List<Config> configs) {
+        return configs.stream().allMatch(c -> c.seed >= 0);
+    }
+
+    public static int maxCenters(List<Config> configs) {
+        return configs.stream().mapToInt(c -> c.k).max().orElse(0);
+    }
+
+    /**
+     * Collective call. Runs every configuration with lloyd, which has to be
+     * sized for {@link #maxCenters(List)}, and prints a summary table.
+     */
+    public static void run(List<Config> configs, Lloyd lloyd, String centersFile, String pointsFile, int numPoints,
+                           int dimension, boolean isBigEndian, int numThreads) throws MPIException, IOException {
+        double[][] results = new double[configs.size()][];
+        for (int r = 0; r < configs.size(); ++r) {
+            Config config = configs.get(r);
+            double[] centers = initialCenters(config, centersFile, pointsFile, numPoints, dimension, isBigEndian);
+            IterationMetrics metrics = new IterationMetrics(config.maxIterations, numThreads);
+            lloyd.reset();
+
+            long start = System.nanoTime();
+            int itrCount = 0;
+            boolean converged = false;
+            while (!converged && itrCount < config.maxIterations) {
+                converged = !(lloyd.iterate(centers, config.k, itrCount, metrics) > config.threshold);
+                ++itrCount;
+            }
+            double[] ms = new double[]{(System.nanoTime() - start) * 1e-6};
+            if (ParallelOps.worldProcsCount > 1) {
+                // Every rank leaves the loop together, the max is the wall time
+                ParallelOps.worldProcsComm.allReduce(ms, 1, Communicator.Op.MAX);
+            }
+            double inertia = lloyd.inertia(centers);
+            results[r] = new double[]{itrCount, converged ? 1 : 0, ms[0], inertia};
+            print("  Run " + (r + 1) + "/" + configs.size() + " k " + config.k + " done in " + itrCount +
+                    " iterations and " + ms[0] + " ms, inertia " + inertia);
+        }
+
+        print("  Sweep summary");
+        print(String.format("    %4s %8s %12s %12s %10s %9s %12s %20s", "run", "k", "seed", "threshold",
+                "iterations", "converged", "time ms", "inertia"));
+        for (int r = 0; r < configs.size(); ++r) {
+            Config config = configs.get(r);
+            double[] result = results[r];
+            print(String.format("    %4d %8d %12s %12g %10d %9s %12.1f %20.10g", r + 1, config.k,
+                    config.seed < 0 ? "file" : Long.toString(config.seed), config.threshold, (int) result[0],
+                    result[1] > 0, result[2], result[3]));
+        }
+    }
+
+    private static double[] initialCenters(Config config, String centersFile, String pointsFile, int numPoints,
+                                           int dimension, boolean isBigEndian) throws IOException {
+        double[] centers = new double[config.k * dimension];
+        if (config.seed < 0) {
+            PointReader.readRowRange(centersFile, 0, config.k, dimension, isBigEndian).getRows(0, config.k, centers,
+                    0);
+            return centers;
+        }
+        if (config.k > numPoints) {
+            throw new IOException("Can't pick " + config.k + " distinct centers from " + numPoints + " points");
+        }
+        int[] rows = new Random(config.seed).ints(0, numPoints).distinct().limit(config.k).toArray();
+        PointReader reader = PointReader.readRowRange(pointsFile, 0, numPoints, dimension, isBigEndian);
+        for (int i = 0; i < config.k; i++) {
+            reader.getPoint(rows[i], centers, dimension, i * dimension);
+        }
+        return centers;
+    }
+
+    private static void print(String msg) {
+        if (ParallelOps.worldProcRank == 0) {
+            System.out.println(msg);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package org.saliya.ompi.kmeans;
+
+import mpi.MPIException;
+import org.saliya.ompi.kmeans.comm.Communicator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+import static edu.rice.hj.Module0.launchHabaneroApp;
+import static edu.rice.hj.Module1.forallChunked;
+
+/**
+ * Picks threads per rank and memory mapped groups per node from short
+ * calibration runs, instead of sweeping whole runs over them by hand.
+ *
+ * Compute is timed over a sample of each rank's own rows against the real
+ * centers, with the brute force kernel split over each candidate number of
+ * threads, and scaled up to the rank's share of the points. Communication
+ * is timed with {@link ParallelOps#allReduceSum} of the real
+ * numCenters * (dimension + 1) doubles over each candidate grouping. Both
+ * take the slowest rank, as the iterations do. Processes per node are fixed
+ * by the launcher, so a run tunes the other two for its own layout.
+ */
+public class Tuner {
+    public static final String TUNE_REPORT = "report";
+    public static final String TUNE_APPLY = "apply";
+    public static final int DEFAULT_SAMPLE = 16384;
+    private static final int PASSES = 3;
+    private static final int REDUCTIONS = 10;
+    // Fewer threads or groups within this of the fastest win, timings of short runs are noisy
+    private static final double TOLERANCE = 0.05;
+
+    private final List<Integer> threadCounts = new ArrayList<>();
+    private final List<Double> computeMs = new ArrayList<>();
+    private final List<Integer> mmapGroups = new ArrayList<>();
+    private final List<Double> allReduceMs = new ArrayList<>();
+    private int sampleRows;
+
+    /**
+     * Collective call, between setting up parallelism and the decomposition.
+     * Leaves the groups at mmapsPerNode.
+     *
+     * @param maxThreads the most threads a rank tries, next to its share of the cores
+     */
+    public static Tuner tune(String pointsFile, int numPoints, int dimension, boolean isBigEndian, double[] centers,
+                             int numCenters, int maxThreads, int mmapsPerNode, int sample)
+            throws MPIException, IOException {
+        Tuner tuner = new Tuner();
+        tuner.timeCompute(pointsFile, numPoints, dimension, isBigEndian, centers, numCenters, maxThreads, sample);
+        tuner.timeAllReduce(numPoints, dimension, numCenters, mmapsPerNode);
+        return tuner;
+    }
+
+    private void timeCompute(String pointsFile, int numPoints, int dimension, boolean isBigEndian, double[] centers,
+                             int numCenters, int maxThreads, int sample) throws MPIException, IOException {
+        int[] lengths = ParallelOps.getLengthsArray(numPoints);
+        int start = 0;
+        for (int i = 0; i < ParallelOps.worldProcRank; ++i) {
+            start += lengths[i];
+        }
+        int rows = lengths[ParallelOps.worldProcRank];
+        sampleRows = Math.max(1, Math.min(sample, rows));
+        // Evenly spaced rows of this rank
+        double[] points = new double[sampleRows * dimension];
+        PointReader reader = PointReader.readRowRange(pointsFile, start, rows, dimension, isBigEndian);
+        for (int i = 0; i < sampleRows; ++i) {
+            reader.getPoint(start + (int) ((long) i * rows / sampleRows), points, dimension, i * dimension);
+        }
+
+        // Every rank has to try the same candidates, as each runs collectives
+        int[] cores = new int[]{Math.max(1, Runtime.getRuntime().availableProcessors() /
+                Math.max(1, ParallelOps.worldProcsCountLocalToNode))};
+        if (ParallelOps.worldProcsCount > 1) {
+            ParallelOps.worldProcsComm.allReduce(cores, 1, Communicator.Op.MIN);
+        }
+        TreeSet<Integer> candidates = new TreeSet<>();
+        for (int t = 1; t <= Math.max(cores[0], maxThreads); t *= 2) {
+            candidates.add(t);
+        }
+        candidates.add(cores[0]);
+        candidates.add(maxThreads);
+
+        double scale = (double) rows / sampleRows;
+        for (int threads : candidates) {
+            double[] ms = new double[]{timePasses(points, dimension, centers, numCenters, threads) * scale};
+            if (ParallelOps.worldProcsCount > 1) {
+                ParallelOps.worldProcsComm.allReduce(ms, 1, Communicator.Op.MAX);
+            }
+            threadCounts.add(threads);
+            computeMs.add(ms[0]);
+        }
+    }
+
+    /* Median wall time of a pass over the sample with this many threads */
+    private static double timePasses(double[] points, int dimension, double[] centers, int numCenters, int threads) {
+        int count = points.length / dimension;
+        int[] assignments = new int[count];
+        double[][] sums = new double[threads][numCenters * (dimension + 1)];
+        double[] ms = new double[PASSES];
+        // One more, untimed, to warm up
+        for (int pass = -1; pass < PASSES; ++pass) {
+            long t = System.nanoTime();
+            if (threads > 1) {
+                launchHabaneroApp(() -> forallChunked(0, threads - 1, (threadIdx) -> {
+                    int from = (int) ((long) threadIdx * count / threads);
+                    int to = (int) ((long) (threadIdx + 1) * count / threads);
+                    Program.findNearesetCenters(dimension, points, from * dimension, to - from, centers,
+                            sums[threadIdx], 0, assignments, from);
+                }));
+            } else {
+                Program.findNearesetCenters(dimension, points, 0, count, centers, sums[0], 0, assignments, 0);
+            }
+            if (pass >= 0) {
+                ms[pass] = (System.nanoTime() - t) * 1e-6;
+            }
+        }
+        Arrays.sort(ms);
+        return ms[PASSES / 2];
+    }
+
+    private void timeAllReduce(int numPoints, int dimension, int numCenters, int mmapsPerNode)
+            throws MPIException, IOException {
+        TreeSet<Integer> candidates = new TreeSet<>();
+        if (ParallelOps.isLocal) {
+            // No memory maps, ranks reduce through the heap
+            candidates.add(1);
+        } else {
+            // Same candidates on every node, up to the procs of the least populated one
+            int[] procsPerNode = new int[]{ParallelOps.worldProcsCountLocalToNode};
+            ParallelOps.worldProcsComm.allReduce(procsPerNode, 1, Communicator.Op.MIN);
+            for (int g = 1; g <= procsPerNode[0]; g *= 2) {
+                candidates.add(g);
+            }
+            candidates.add(procsPerNode[0]);
+            candidates.add(mmapsPerNode);
+        }
+        int length = numCenters * (dimension + 1);
+        double[] values = new double[length];
+        for (int groups : candidates) {
+            ParallelOps.regroup(groups);
+            ParallelOps.setParallelDecomposition(numPoints, dimension, numCenters, 1);
+            double[] ms = new double[REDUCTIONS];
+            for (int r = -1; r < REDUCTIONS; ++r) {
+                ParallelOps.worldProcsComm.barrier();
+                long t = System.nanoTime();
+                ParallelOps.allReduceSum(values, 0, length);
+                if (r >= 0) {
+                    ms[r] = (System.nanoTime() - t) * 1e-6;
+                }
+            }
+            Arrays.sort(ms);
+            double[] median = new double[]{ms[REDUCTIONS / 2]};
+            if (ParallelOps.worldProcsCount > 1) {
+                ParallelOps.worldProcsComm.allReduce(median, 1, Communicator.Op.MAX);
+            }
+            mmapGroups.add(groups);
+            allReduceMs.add(median[0]);
+        }
+        ParallelOps.regroup(mmapsPerNode);
+    }
+
+    public int getBestThreads() {
+        return threadCounts.get(argMin(computeMs));
+    }
+
+    public int getBestMmapsPerNode() {
+        return mmapGroups.get(argMin(allReduceMs));
+    }
+
+    /* Of one iteration with the recommended layout */
+    public double getPredictedMs() {
+        return computeMs.get(argMin(computeMs)) + allReduceMs.get(argMin(allReduceMs));
+    }
+
+    /* First of the candidates, in ascending order, within TOLERANCE of the fastest */
+    private static int argMin(List<Double> values) {
+        double min = values.stream().mapToDouble(Double::doubleValue).min().orElse(0.0);
+        for (int i = 0; i < values.size(); ++i) {
+            if (values.get(i) <= min * (1 + TOLERANCE)) return i;
+        }
+        return 0;
+    }
+
+    /**
+     * Measurements, one line each
+     */
+    public List<String> report(int numCenters, int dimension) {
+        List<String> lines = new ArrayList<>();
+        lines.add("Compute ms per iteration (slowest rank, from " + sampleRows + " sampled points per rank)");
+        for (int i = 0; i < threadCounts.size(); ++i) {
+            lines.add("  T " + threadCounts.get(i) + " " + computeMs.get(i));
+        }
+        lines.add("allReduceSum ms of " + numCenters * (dimension + 1) + " doubles (slowest rank, median of " +
+                REDUCTIONS + ")");
+        for (int i = 0; i < mmapGroups.size(); ++i) {
+            lines.add("  mmpn " + mmapGroups.get(i) + " " + allReduceMs.get(i));
+        }
+        return lines;
+    }
+}
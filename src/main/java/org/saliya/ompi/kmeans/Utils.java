@@ -1,7 +1,6 @@
 package org.saliya.ompi.kmeans;
 
 import com.google.common.base.Optional;
-import mpi.MPI;
 import mpi.MPIException;
 import org.apache.commons.cli.*;
 
@@ -49,7 +48,7 @@ public class Utils
             {
                 nextRank[0] = i;
             }
-            ParallelOps.worldProcsComm.bcast(nextRank, 1, MPI.INT, 0);
+            ParallelOps.worldProcsComm.bcast(nextRank, 1, 0);
             if (nextRank[0] == ParallelOps.worldProcRank)
             {
                 System.out.println("Rank: " + ParallelOps.worldProcRank);
@@ -0,0 +1,66 @@
+package org.saliya.ompi.kmeans.comm;
+
+import mpi.MPIException;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The collectives the k-means code needs. Implemented over MPI by
+ * {@link MpiCommunicator} and in-process, for ranks that are thread groups
+ * of the same JVM, by {@link LocalCommunicator}.
+ *
+ * Calls follow the in place MPI style, i.e. the buffer holds the input and
+ * receives the result.
+ */
+public interface Communicator {
+    enum Op {SUM, MIN, MAX}
+
+    int getRank() throws MPIException;
+
+    int getSize() throws MPIException;
+
+    Communicator split(int color, int key) throws MPIException;
+
+    /**
+     * Collective call, releases a communicator made by split
+     */
+    void free() throws MPIException;
+
+    void barrier() throws MPIException;
+
+    void bcast(int[] buf, int count, int root) throws MPIException;
+
+    void bcast(byte[] buf, int count, int root) throws MPIException;
+
+    void allReduce(int[] buf, int count, Op op) throws MPIException;
+
+    void allReduce(long[] buf, int count, Op op) throws MPIException;
+
+    void allReduce(double[] buf, int count, Op op) throws MPIException;
+
+    /**
+     * Reduce doubles held in a direct buffer, e.g. a memory map
+     */
+    void allReduce(ByteBuffer doubles, int count, Op op) throws MPIException;
+
+    void reduce(long[] buf, int count, Op op, int root) throws MPIException;
+
+    void reduce(double[] buf, int count, Op op, int root) throws MPIException;
+
+    /**
+     * Each rank's count elements are at rank*count of buf
+     */
+    void allGather(byte[] buf, int count) throws MPIException;
+
+    void allGather(int[] send, int count, int[] recv) throws MPIException;
+
+    /**
+     * Each rank's counts[rank] elements are at displs[rank] of buf
+     */
+    void allGatherv(int[] buf, int[] counts, int[] displs) throws MPIException;
+
+    /**
+     * Whether ranks are threads of this JVM rather than MPI processes
+     */
+    boolean isLocal();
+}
@@ -0,0 +1,299 @@
+package org.saliya.ompi.kmeans.comm;
+
+import java.nio.ByteBuffer;
+import java.util.TreeMap;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+
+/**
+ * Communicator for ranks that are thread groups within one JVM. Ranks hand
+ * their buffers to each other through shared slots, so collectives are plain
+ * memory copies separated by barriers. Reductions are done reduce-scatter
+ * style: each rank combines one slice across all buffers, then everyone copies
+ * the other slices, so the work is spread over the ranks.
+ */
+public class LocalCommunicator implements Communicator {
+    private static class Group {
+        final int size;
+        final CyclicBarrier barrier;
+        final Object[] slots;
+        // Published by rank 0 of the group during split
+        Group[] splitGroups;
+        int[] splitRanks;
+
+        Group(int size) {
+            this.size = size;
+            this.barrier = new CyclicBarrier(size);
+            this.slots = new Object[size];
+        }
+    }
+
+    private final Group group;
+    private final int rank;
+
+    private LocalCommunicator(Group group, int rank) {
+        this.group = group;
+        this.rank = rank;
+    }
+
+    /**
+     * The world communicator for each of the given number of ranks
+     */
+    public static LocalCommunicator[] world(int size) {
+        Group group = new Group(size);
+        LocalCommunicator[] comms = new LocalCommunicator[size];
+        for (int i = 0; i < size; ++i) {
+            comms[i] = new LocalCommunicator(group, i);
+        }
+        return comms;
+    }
+
+    private void await() {
+        try {
+            group.barrier.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Rank " + rank + " interrupted in a collective call", e);
+        } catch (BrokenBarrierException e) {
+            throw new IllegalStateException("Rank " + rank + " aborted as another rank failed", e);
+        }
+    }
+
+    private int sliceStart(int r, int count) {
+        return (int) (((long) count) * r / group.size);
+    }
+
+    @Override
+    public int getRank() {
+        return rank;
+    }
+
+    @Override
+    public int getSize() {
+        return group.size;
+    }
+
+    @Override
+    public Communicator split(int color, int key) {
+        group.slots[rank] = new int[]{color, key};
+        await();
+        if (rank == 0) {
+            // Ranks of a color ordered by key, then by old rank
+            TreeMap<Integer, TreeMap<Long, Integer>> byColor = new TreeMap<>();
+            for (int r = 0; r < group.size; ++r) {
+                int[] colorAndKey = (int[]) group.slots[r];
+                byColor.computeIfAbsent(colorAndKey[0], c -> new TreeMap<>()).put(
+                        (((long) colorAndKey[1]) << 32) | r, r);
+            }
+            Group[] splitGroups = new Group[group.size];
+            int[] splitRanks = new int[group.size];
+            for (TreeMap<Long, Integer> members : byColor.values()) {
+                Group splitGroup = new Group(members.size());
+                int newRank = 0;
+                for (int r : members.values()) {
+                    splitGroups[r] = splitGroup;
+                    splitRanks[r] = newRank++;
+                }
+            }
+            group.splitGroups = splitGroups;
+            group.splitRanks = splitRanks;
+        }
+        await();
+        LocalCommunicator comm = new LocalCommunicator(group.splitGroups[rank], group.splitRanks[rank]);
+        await();
+        return comm;
+    }
+
+    /* Nothing outside the heap to release */
+    @Override
+    public void free() {
+    }
+
+    @Override
+    public void barrier() {
+        await();
+    }
+
+    @Override
+    public void bcast(int[] buf, int count, int root) {
+        group.slots[rank] = buf;
+        await();
+        if (rank != root) {
+            System.arraycopy(group.slots[root], 0, buf, 0, count);
+        }
+        await();
+    }
+
+    @Override
+    public void bcast(byte[] buf, int count, int root) {
+        group.slots[rank] = buf;
+        await();
+        if (rank != root) {
+            System.arraycopy(group.slots[root], 0, buf, 0, count);
+        }
+        await();
+    }
+
+    /* Copy every other rank's reduced slice into buf */
+    private void gatherSlices(Object buf, int count) {
+        await();
+        for (int r = 0; r < group.size; ++r) {
+            if (r == rank) continue;
+            int lo = sliceStart(r, count);
+            System.arraycopy(group.slots[r], lo, buf, lo, sliceStart(r + 1, count) - lo);
+        }
+        await();
+    }
+
+    @Override
+    public void allReduce(int[] buf, int count, Op op) {
+        group.slots[rank] = buf;
+        await();
+        int[][] bufs = new int[group.size][];
+        for (int r = 0; r < group.size; ++r) {
+            bufs[r] = (int[]) group.slots[r];
+        }
+        for (int i = sliceStart(rank, count); i < sliceStart(rank + 1, count); ++i) {
+            int v = bufs[0][i];
+            for (int r = 1; r < group.size; ++r) {
+                int w = bufs[r][i];
+                v = op == Op.SUM ? v + w : (op == Op.MIN ? Math.min(v, w) : Math.max(v, w));
+            }
+            buf[i] = v;
+        }
+        gatherSlices(buf, count);
+    }
+
+    @Override
+    public void allReduce(long[] buf, int count, Op op) {
+        group.slots[rank] = buf;
+        await();
+        long[][] bufs = new long[group.size][];
+        for (int r = 0; r < group.size; ++r) {
+            bufs[r] = (long[]) group.slots[r];
+        }
+        for (int i = sliceStart(rank, count); i < sliceStart(rank + 1, count); ++i) {
+            long v = bufs[0][i];
+            for (int r = 1; r < group.size; ++r) {
+                long w = bufs[r][i];
+                v = op == Op.SUM ? v + w : (op == Op.MIN ? Math.min(v, w) : Math.max(v, w));
+            }
+            buf[i] = v;
+        }
+        gatherSlices(buf, count);
+    }
+
+    @Override
+    public void allReduce(double[] buf, int count, Op op) {
+        group.slots[rank] = buf;
+        await();
+        double[][] bufs = new double[group.size][];
+        for (int r = 0; r < group.size; ++r) {
+            bufs[r] = (double[]) group.slots[r];
+        }
+        int lo = sliceStart(rank, count);
+        int hi = sliceStart(rank + 1, count);
+        if (op == Op.SUM) {
+            // Rank order, so the result does not depend on who reduced the slice
+            for (int i = lo; i < hi; ++i) {
+                double v = bufs[0][i];
+                for (int r = 1; r < group.size; ++r) {
+                    v += bufs[r][i];
+                }
+                buf[i] = v;
+            }
+        } else {
+            for (int i = lo; i < hi; ++i) {
+                double v = bufs[0][i];
+                for (int r = 1; r < group.size; ++r) {
+                    v = op == Op.MIN ? Math.min(v, bufs[r][i]) : Math.max(v, bufs[r][i]);
+                }
+                buf[i] = v;
+            }
+        }
+        gatherSlices(buf, count);
+    }
+
+    @Override
+    public void allReduce(ByteBuffer doubles, int count, Op op) {
+        double[] values = new double[count];
+        for (int i = 0; i < count; ++i) {
+            values[i] = doubles.getDouble(i * Double.BYTES);
+        }
+        allReduce(values, count, op);
+        for (int i = 0; i < count; ++i) {
+            doubles.putDouble(i * Double.BYTES, values[i]);
+        }
+    }
+
+    @Override
+    public void reduce(long[] buf, int count, Op op, int root) {
+        group.slots[rank] = buf;
+        await();
+        if (rank == root) {
+            for (int r = 0; r < group.size; ++r) {
+                if (r == root) continue;
+                long[] other = (long[]) group.slots[r];
+                for (int i = 0; i < count; ++i) {
+                    buf[i] = op == Op.SUM ? buf[i] + other[i] :
+                            (op == Op.MIN ? Math.min(buf[i], other[i]) : Math.max(buf[i], other[i]));
+                }
+            }
+        }
+        await();
+    }
+
+    @Override
+    public void reduce(double[] buf, int count, Op op, int root) {
+        group.slots[rank] = buf;
+        await();
+        if (rank == root) {
+            for (int r = 0; r < group.size; ++r) {
+                if (r == root) continue;
+                double[] other = (double[]) group.slots[r];
+                for (int i = 0; i < count; ++i) {
+                    buf[i] = op == Op.SUM ? buf[i] + other[i] :
+                            (op == Op.MIN ? Math.min(buf[i], other[i]) : Math.max(buf[i], other[i]));
+                }
+            }
+        }
+        await();
+    }
+
+    @Override
+    public void allGather(byte[] buf, int count) {
+        group.slots[rank] = buf;
+        await();
+        for (int r = 0; r < group.size; ++r) {
+            if (r == rank) continue;
+            System.arraycopy(group.slots[r], r * count, buf, r * count, count);
+        }
+        await();
+    }
+
+    @Override
+    public void allGather(int[] send, int count, int[] recv) {
+        group.slots[rank] = send;
+        await();
+        for (int r = 0; r < group.size; ++r) {
+            System.arraycopy(group.slots[r], 0, recv, r * count, count);
+        }
+        await();
+    }
+
+    @Override
+    public void allGatherv(int[] buf, int[] counts, int[] displs) {
+        group.slots[rank] = buf;
+        await();
+        for (int r = 0; r < group.size; ++r) {
+            if (r == rank) continue;
+            System.arraycopy(group.slots[r], displs[r], buf, displs[r], counts[r]);
+        }
+        await();
+    }
+
+    @Override
+    public boolean isLocal() {
+        return true;
+    }
+}
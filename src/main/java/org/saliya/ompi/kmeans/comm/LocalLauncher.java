@@ -0,0 +1,109 @@
+package org.saliya.ompi.kmeans.comm;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs N ranks as thread groups of this JVM. The k-means code keeps its
+ * per rank state in static fields (see ParallelOps), so every rank gets its
+ * own class loader, and hence its own copy of those classes. Only this
+ * package, which holds the shared communicator, and the JDK are loaded from
+ * the parent.
+ *
+ * No rank calls into MPI here, but the communicator and the k-means code
+ * declare mpi.MPIException, so the OpenMPI jar must still be on the class
+ * path. Its classes are shared with the parent like this package's.
+ */
+public class LocalLauncher {
+    private static final String[] SHARED_PREFIXES = new String[]{
+            "java.", "javax.", "sun.", "com.sun.", "jdk.", "mpi.", LocalLauncher.class.getPackage().getName() + "."};
+
+    /**
+     * Calls <code>public static void entry(String[] args, Communicator comm)</code>
+     * of mainClass on each rank and waits for all of them
+     */
+    public static void launch(int procs, String mainClass, String entry, String[] args) throws Exception {
+        URL[] classPath = classPath();
+        LocalCommunicator[] comms = LocalCommunicator.world(procs);
+        Thread[] ranks = new Thread[procs];
+        Throwable[] failures = new Throwable[procs];
+        for (int r = 0; r < procs; ++r) {
+            final int rank = r;
+            ClassLoader loader = new RankClassLoader(classPath, LocalLauncher.class.getClassLoader());
+            ranks[r] = new Thread(() -> {
+                try {
+                    Method method = loader.loadClass(mainClass).getMethod(entry, String[].class, Communicator.class);
+                    method.invoke(null, args, comms[rank]);
+                } catch (Throwable t) {
+                    failures[rank] = t instanceof InvocationTargetException ? t.getCause() : t;
+                    // Others may be blocked in a collective with this rank
+                    for (Thread other : ranks) {
+                        if (other != Thread.currentThread()) other.interrupt();
+                    }
+                }
+            }, "rank-" + r);
+            ranks[r].setContextClassLoader(loader);
+        }
+        for (Thread rank : ranks) {
+            rank.start();
+        }
+        for (Thread rank : ranks) {
+            rank.join();
+        }
+        for (Throwable failure : failures) {
+            // The first real failure, not the interruptions it caused
+            if (failure != null && !(failure instanceof IllegalStateException)) {
+                throw new Exception(failure);
+            }
+        }
+        for (Throwable failure : failures) {
+            if (failure != null) throw new Exception(failure);
+        }
+    }
+
+    private static URL[] classPath() throws MalformedURLException {
+        List<URL> urls = new ArrayList<>();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            if (!entry.isEmpty()) {
+                urls.add(new File(entry).toURI().toURL());
+            }
+        }
+        return urls.toArray(new URL[urls.size()]);
+    }
+
+    /* Child first, except for the shared prefixes */
+    private static class RankClassLoader extends URLClassLoader {
+        RankClassLoader(URL[] urls, ClassLoader parent) {
+            super(urls, parent);
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            for (String prefix : SHARED_PREFIXES) {
+                if (name.startsWith(prefix)) {
+                    return super.loadClass(name, resolve);
+                }
+            }
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> c = findLoadedClass(name);
+                if (c == null) {
+                    try {
+                        c = findClass(name);
+                    } catch (ClassNotFoundException e) {
+                        c = super.loadClass(name, false);
+                    }
+                }
+                if (resolve) {
+                    resolveClass(c);
+                }
+                return c;
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package org.saliya.ompi.kmeans.comm;
+
+import mpi.Intracomm;
+import mpi.MPI;
+import mpi.MPIException;
+
+import java.nio.ByteBuffer;
+
+public class MpiCommunicator implements Communicator {
+    private final Intracomm comm;
+
+    public MpiCommunicator(Intracomm comm) {
+        this.comm = comm;
+    }
+
+    private static mpi.Op op(Op op) {
+        switch (op) {
+            case MIN:
+                return MPI.MIN;
+            case MAX:
+                return MPI.MAX;
+            default:
+                return MPI.SUM;
+        }
+    }
+
+    @Override
+    public int getRank() throws MPIException {
+        return comm.getRank();
+    }
+
+    @Override
+    public int getSize() throws MPIException {
+        return comm.getSize();
+    }
+
+    @Override
+    public Communicator split(int color, int key) throws MPIException {
+        return new MpiCommunicator(comm.split(color, key));
+    }
+
+    @Override
+    public void free() throws MPIException {
+        comm.free();
+    }
+
+    @Override
+    public void barrier() throws MPIException {
+        comm.barrier();
+    }
+
+    @Override
+    public void bcast(int[] buf, int count, int root) throws MPIException {
+        comm.bcast(buf, count, MPI.INT, root);
+    }
+
+    @Override
+    public void bcast(byte[] buf, int count, int root) throws MPIException {
+        comm.bcast(buf, count, MPI.BYTE, root);
+    }
+
+    @Override
+    public void allReduce(int[] buf, int count, Op op) throws MPIException {
+        comm.allReduce(buf, count, MPI.INT, op(op));
+    }
+
+    @Override
+    public void allReduce(long[] buf, int count, Op op) throws MPIException {
+        comm.allReduce(buf, count, MPI.LONG, op(op));
+    }
+
+    @Override
+    public void allReduce(double[] buf, int count, Op op) throws MPIException {
+        comm.allReduce(buf, count, MPI.DOUBLE, op(op));
+    }
+
+    @Override
+    public void allReduce(ByteBuffer doubles, int count, Op op) throws MPIException {
+        comm.allReduce(doubles, count, MPI.DOUBLE, op(op));
+    }
+
+    @Override
+    public void reduce(long[] buf, int count, Op op, int root) throws MPIException {
+        comm.reduce(buf, count, MPI.LONG, op(op), root);
+    }
+
+    @Override
+    public void reduce(double[] buf, int count, Op op, int root) throws MPIException {
+        comm.reduce(buf, count, MPI.DOUBLE, op(op), root);
+    }
+
+    @Override
+    public void allGather(byte[] buf, int count) throws MPIException {
+        comm.allGather(buf, count, MPI.BYTE);
+    }
+
+    @Override
+    public void allGather(int[] send, int count, int[] recv) throws MPIException {
+        comm.allGather(send, count, MPI.INT, recv, count, MPI.INT);
+    }
+
+    @Override
+    public void allGatherv(int[] buf, int[] counts, int[] displs) throws MPIException {
+        comm.allGatherv(buf, counts, displs, MPI.INT);
+    }
+
+    @Override
+    public boolean isLocal() {
+        return false;
+    }
+}
@@ -0,0 +1,76 @@
+package org.saliya.ompi.kmeans;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.BitSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BindingPlannerTest {
+    /* Two sockets of four cores with two hardware threads each, siblings are cpu and cpu + 8 */
+    private static CpuTopology topology() throws IOException {
+        Path root = Files.createTempDirectory("topology");
+        Path cpuDir = Files.createDirectories(root.resolve("cpu"));
+        write(cpuDir.resolve("online"), "0-15");
+        for (int cpu = 0; cpu < 16; ++cpu) {
+            Path topology = Files.createDirectories(cpuDir.resolve("cpu" + cpu).resolve("topology"));
+            write(topology.resolve("physical_package_id"), Integer.toString((cpu % 8) / 4));
+            write(topology.resolve("core_id"), Integer.toString(cpu % 4));
+        }
+        return CpuTopology.read(cpuDir.toString(), root.resolve("node").toString());
+    }
+
+    private static void write(Path file, String line) throws IOException {
+        Files.write(file, (line + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static BitSet union(BitSet[] plan) {
+        BitSet all = new BitSet();
+        for (BitSet threadMask : plan) {
+            all.or(threadMask);
+        }
+        return all;
+    }
+
+    @Test
+    public void restrictedMaskSharedByTwoRanksIsSplit() throws IOException {
+        CpuTopology topology = topology();
+        // A cgroup of the first socket, given to both ranks of the node
+        BitSet mask = CpuTopology.parseCpuList("0-3,8-11");
+        BitSet first = union(BindingPlanner.plan(topology, mask, 0, 2, 2));
+        BitSet second = union(BindingPlanner.plan(topology, mask, 1, 2, 2));
+
+        assertFalse("ranks sharing a mask must not share cores", first.intersects(second));
+        assertEquals(CpuTopology.parseCpuList("0-1,8-9"), first);
+        assertEquals(CpuTopology.parseCpuList("2-3,10-11"), second);
+    }
+
+    @Test
+    public void unboundRanksSplitTheNode() throws IOException {
+        CpuTopology topology = topology();
+        BitSet first = union(BindingPlanner.plan(topology, topology.onlineCpus, 0, 2, 1));
+        BitSet second = union(BindingPlanner.plan(topology, topology.onlineCpus, 1, 2, 1));
+
+        assertFalse(first.intersects(second));
+        assertEquals(8, first.cardinality());
+        assertEquals(8, second.cardinality());
+    }
+
+    @Test
+    public void ownMaskIsKept() throws IOException {
+        CpuTopology topology = topology();
+        BitSet mask = CpuTopology.parseCpuList("4-7,12-15");
+        BitSet[] plan = BindingPlanner.plan(topology, mask, 0, 1, 4);
+
+        assertEquals(mask, union(plan));
+        for (BitSet threadMask : plan) {
+            assertTrue(threadMask.cardinality() == 2);
+        }
+    }
+}
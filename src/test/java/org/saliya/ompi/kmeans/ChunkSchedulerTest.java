@@ -0,0 +1,46 @@
+package org.saliya.ompi.kmeans;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class ChunkSchedulerTest {
+    private static void drain(ChunkScheduler scheduler, int threadIdx) {
+        scheduler.reset();
+        while (scheduler.next(threadIdx) >= 0) {
+        }
+    }
+
+    @Test
+    public void countsSurviveResize() {
+        // Thread 1 has no points and steals all four chunks of thread 0
+        ChunkScheduler scheduler = new ChunkScheduler(2, new int[]{64, 0}, 16);
+        drain(scheduler, 1);
+        assertEquals(0, scheduler.taken(0));
+        assertEquals(4, scheduler.taken(1));
+        assertEquals(4, scheduler.stolen(1));
+
+        // After a rebalance thread 0 takes its own two chunks, then steals two
+        scheduler.resize(new int[]{32, 32});
+        drain(scheduler, 0);
+        assertEquals(4, scheduler.taken(0));
+        assertEquals(2, scheduler.stolen(0));
+        assertEquals(4, scheduler.taken(1));
+        assertEquals(4, scheduler.stolen(1));
+    }
+
+    @Test
+    public void resizeCutsTheNewRanges() {
+        ChunkScheduler scheduler = new ChunkScheduler(2, new int[]{40, 40}, 16);
+        scheduler.resize(new int[]{70, 10});
+        scheduler.reset();
+        int[] points = new int[2];
+        long chunk;
+        while ((chunk = scheduler.next(0)) >= 0) {
+            int owner = ChunkScheduler.owner(chunk);
+            points[owner] += scheduler.count(chunk, owner == 0 ? 70 : 10);
+        }
+        assertEquals(70, points[0]);
+        assertEquals(10, points[1]);
+    }
+}
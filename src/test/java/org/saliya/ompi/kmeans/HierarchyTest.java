@@ -0,0 +1,85 @@
+package org.saliya.ompi.kmeans;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class HierarchyTest {
+    private static final int DIMENSION = 2;
+    private static final int BLOBS = 6;
+    private static final int POINTS_PER_BLOB = 200;
+    private static final int CENTERS_PER_BLOB = 4;
+
+    /* Blobs of radius about 3 on a line, 100 apart */
+    private static double[] points(Random random) {
+        double[] points = new double[BLOBS * POINTS_PER_BLOB * DIMENSION];
+        for (int p = 0; p < BLOBS * POINTS_PER_BLOB; ++p) {
+            points[p * DIMENSION] = 100.0 * (p / POINTS_PER_BLOB) + random.nextGaussian();
+            points[p * DIMENSION + 1] = random.nextGaussian();
+        }
+        return points;
+    }
+
+    private static int bruteForce(double[] points, int pointOffset, double[] centers, int numCenters) {
+        double dMin = Double.MAX_VALUE;
+        int dMinIdx = -1;
+        for (int c = 0; c < numCenters; ++c) {
+            double dist = Program.getEuclideanDistance(points, centers, DIMENSION, pointOffset, c * DIMENSION);
+            if (dist < dMin) {
+                dMin = dist;
+                dMinIdx = c;
+            }
+        }
+        return dMinIdx;
+    }
+
+    @Test
+    public void spreadOutPicksOneCenterPerBlob() {
+        double[] points = points(new Random(7));
+        double[] coarse = Hierarchy.spreadOut(points, BLOBS * POINTS_PER_BLOB, DIMENSION, BLOBS);
+        boolean[] seen = new boolean[BLOBS];
+        for (int g = 0; g < BLOBS; ++g) {
+            int blob = (int) Math.round(coarse[g * DIMENSION] / 100.0);
+            assertEquals("blob " + blob + " picked twice", false, seen[blob]);
+            seen[blob] = true;
+        }
+    }
+
+    @Test
+    public void labelsMatchBruteForceOverIterations() {
+        Random random = new Random(11);
+        double[] points = points(random);
+        int numPoints = BLOBS * POINTS_PER_BLOB;
+        int numCenters = BLOBS * CENTERS_PER_BLOB;
+        // Fine centers start at random points, four in each blob
+        double[] centers = new double[numCenters * DIMENSION];
+        for (int c = 0; c < numCenters; ++c) {
+            int p = (c % BLOBS) * POINTS_PER_BLOB + random.nextInt(POINTS_PER_BLOB);
+            System.arraycopy(points, p * DIMENSION, centers, c * DIMENSION, DIMENSION);
+        }
+        double[] coarse = Hierarchy.spreadOut(centers, numCenters, DIMENSION, BLOBS);
+
+        int[] assignments = new int[numPoints];
+        int[] expected = new int[numPoints];
+        for (int itr = 0; itr < 5; ++itr) {
+            Hierarchy hierarchy = new Hierarchy(coarse, BLOBS, centers, numCenters, DIMENSION, 1);
+            double[] sums = new double[numCenters * (DIMENSION + 1)];
+            hierarchy.assign(points, 0, numPoints, centers, sums, 0, assignments, 0);
+            for (int p = 0; p < numPoints; ++p) {
+                expected[p] = bruteForce(points, p * DIMENSION, centers, numCenters);
+            }
+            assertArrayEquals("iteration " + itr, expected, assignments);
+
+            for (int c = 0; c < numCenters; ++c) {
+                double count = sums[c * (DIMENSION + 1) + DIMENSION];
+                if (count == 0) continue;
+                for (int i = 0; i < DIMENSION; ++i) {
+                    centers[c * DIMENSION + i] = sums[c * (DIMENSION + 1) + i] / count;
+                }
+            }
+        }
+    }
+}